@@ -6,6 +6,7 @@ import java.util.Scanner;
 
 import io.github.bensku.skripty.core.RunnerState;
 import io.github.bensku.skripty.core.ScriptBlock;
+import io.github.bensku.skripty.core.ScriptException;
 import io.github.bensku.skripty.parser.log.ParseResult;
 import io.github.bensku.skripty.runtime.ScriptRunner;
 import io.github.bensku.skripty.runtime.ir.IrCompiler;
@@ -31,7 +32,11 @@ public class Runner {
 					String line = scan.nextLine();
 					ParseResult<ScriptBlock> result = parser.parse(line);
 					if (result.isSuccess()) {
-						runner.run(compiler.compile(result.getResult()), null);
+						try {
+							runner.run(compiler.compile(result.getResult()), null);
+						} catch (ScriptException e) {
+							System.err.println(e);
+						}
 					} else {
 						System.err.println("Can't parse that");
 					}
@@ -41,12 +46,15 @@ public class Runner {
 		
 		// Assume all arguments are file names
 		for (String name : args) {
-			// Bubble up IOException and any throwables that might be thrown by expressions
-			// TODO reconsider this, it is a pretty bad practise
+			// Script failures are reported, but IOExceptions and unexpected throwables still bubble up
 			String content = Files.readString(Paths.get(name));
 			ParseResult<ScriptBlock> block = parser.parse(content);
 			if (block.isSuccess()) {
-				runner.run(compiler.compile(block.getResult()), new SimpleRunnerState());
+				try {
+					runner.run(compiler.compile(block.getResult()), new SimpleRunnerState());
+				} catch (ScriptException e) {
+					System.err.println(name + ": " + e);
+				}
 			} else {
 				System.err.println("Failed to parse the script contents");
 			}
@@ -43,7 +43,7 @@ public class SimpleParser {
 		types.registerTypes(SimpleTypes.class);
 		
 		LiteralParser[] literalParsers = literalParsers();
-		ExpressionLayer expressions = ExpressionLayer.forAnnotatedRegistry(expressions(types));
+		ExpressionLayer expressions = ExpressionLayer.forAnnotatedRegistry(expressions(types)).freeze();
 		ExpressionParser exprParser = new ExpressionParser(literalParsers, expressions);
 		
 		ExpressionRegistry scopeExprs = new ExpressionRegistry();
@@ -51,7 +51,7 @@ public class SimpleParser {
 		
 		ScopeRegistry scopes = new ScopeRegistry(scopeExprs);		
 		Scope defaultScope = new Scope(new ExpressionParser(literalParsers, expressions,
-				ExpressionLayer.forAnnotatedRegistry(scopeExprs)), scopes, exprParser);
+				ExpressionLayer.forAnnotatedRegistry(scopeExprs).freeze()), scopes, exprParser);
 		
 		scopes.register(scopeIf, defaultScope);
 		
@@ -1,5 +1,6 @@
 package io.github.bensku.skripty.simple.expr;
 
+import io.github.bensku.skripty.core.ScriptException;
 import io.github.bensku.skripty.core.annotation.CallTarget;
 import io.github.bensku.skripty.core.annotation.Inputs;
 import io.github.bensku.skripty.core.annotation.Returns;
@@ -12,6 +13,6 @@ public class ExprCrash {
 
 	@CallTarget
 	public void crash() {
-		throw new RuntimeException("script asked us to crash");
+		throw new ScriptException("script asked us to crash");
 	}
 }
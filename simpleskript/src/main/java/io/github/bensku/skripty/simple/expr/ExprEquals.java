@@ -4,6 +4,7 @@ import java.util.Objects;
 
 import io.github.bensku.skripty.core.annotation.CallTarget;
 import io.github.bensku.skripty.core.annotation.Inputs;
+import io.github.bensku.skripty.core.annotation.Pure;
 import io.github.bensku.skripty.core.annotation.Returns;
 import io.github.bensku.skripty.parser.annotation.Pattern;
 
@@ -13,16 +14,19 @@ import io.github.bensku.skripty.parser.annotation.Pattern;
 public class ExprEquals {
 
 	@CallTarget
+	@Pure
 	public boolean compare(String a, String b) {
 		return Objects.equals(a, b);
 	}
 	
 	@CallTarget
+	@Pure
 	public boolean compare(int a, int b) {
 		return a == b;
 	}
 	
 	@CallTarget
+	@Pure
 	public boolean compare(long a, long b) {
 		return a == b;
 	}
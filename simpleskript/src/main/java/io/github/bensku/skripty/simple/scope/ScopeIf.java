@@ -2,16 +2,20 @@ package io.github.bensku.skripty.simple.scope;
 
 import io.github.bensku.skripty.core.annotation.CallTarget;
 import io.github.bensku.skripty.core.annotation.Inputs;
+import io.github.bensku.skripty.core.annotation.Pure;
 import io.github.bensku.skripty.core.annotation.Returns;
+import io.github.bensku.skripty.core.annotation.ScopeEntries;
 import io.github.bensku.skripty.core.flow.ScopeEntry;
 import io.github.bensku.skripty.parser.annotation.Pattern;
 
 @Inputs({"boolean"})
 @Returns("scope_entry")
+@ScopeEntries({ScopeEntry.ONCE, ScopeEntry.NO})
 @Pattern("if {0}")
 public class ScopeIf {
 	
 	@CallTarget
+	@Pure
 	public ScopeEntry shouldEnter(boolean condition) {
 		return condition ? ScopeEntry.ONCE : ScopeEntry.NO;
 	}
@@ -78,4 +78,19 @@ public class RadixTreeBenchmark {
 	public void getTest(FullState state, Randoms randoms, Blackhole bh) {
 		bh.consume(state.tree.get(randoms.get(), 0));
 	}
+	
+	@State(Scope.Thread)
+	public static class FrozenState {
+		public RadixTree<Object> tree = new FullState().tree.freeze();
+	}
+	
+	@Benchmark
+	public void getFrozenTest(FrozenState state, Randoms randoms, Blackhole bh) {
+		bh.consume(state.tree.get(randoms.get(), 0));
+	}
+	
+	@Benchmark
+	public void getSinkTest(FullState state, Randoms randoms, Blackhole bh) {
+		state.tree.get(randoms.get(), 0, bh::consume);
+	}
 }
@@ -0,0 +1,420 @@
+package io.github.bensku.skripty.parser.expression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import io.github.bensku.skripty.core.AstNode;
+import io.github.bensku.skripty.core.type.SkriptType;
+import io.github.bensku.skripty.parser.pattern.Pattern;
+import io.github.bensku.skripty.parser.pattern.PatternPart;
+import io.github.bensku.skripty.parser.util.ArrayHelpers;
+
+/**
+ * Earley-style chart parser for expressions. This is used instead of the
+ * backtracking search of {@link ExpressionParser} when it has the
+ * {@link ExpressionParser#CHART} flag.
+ *
+ * <p>Input is processed one position at a time. For each position, the
+ * chart contains items: patterns that have been partially matched, starting
+ * from some earlier position. Whenever an item completes, a span is created
+ * for the expression, and items that were waiting for an input where the
+ * span starts are advanced past it. Every item and span is created at most
+ * once, so parsing time is polynomial no matter how ambiguous the patterns
+ * are.
+ *
+ * <p>Spans form a shared parse forest. Alternative derivations are not
+ * packed into it: each span remembers only the first way it was derived in,
+ * and its AST node is built from that when it is needed. Nodes of spans that
+ * appear as inputs of many larger spans are shared.
+ *
+ * <p>A new chart parser is created for every parse operation.
+ *
+ */
+final class ChartParser {
+
+	/**
+	 * A partially matched pattern.
+	 *
+	 */
+	private static class Item {
+
+		/**
+		 * Expression whose pattern is being matched.
+		 */
+		final ExpressionInfo info;
+
+		/**
+		 * Index of next pattern part to match.
+		 */
+		final int part;
+
+		/**
+		 * Position where matching the pattern started.
+		 */
+		final int origin;
+
+		/**
+		 * Item this was advanced from, or null.
+		 */
+		final Item previous;
+
+		/**
+		 * Span that was used as input to advance to this item, or null if
+		 * a literal part was matched instead.
+		 */
+		final Span child;
+
+		/**
+		 * Input slot of the child span.
+		 */
+		final int slot;
+
+		Item(ExpressionInfo info, int part, int origin, Item previous, Span child, int slot) {
+			this.info = info;
+			this.part = part;
+			this.origin = origin;
+			this.previous = previous;
+			this.child = child;
+			this.slot = slot;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Item)) {
+				return false;
+			}
+			// Derivation does not matter, only first one is kept
+			Item other = (Item) obj;
+			return info == other.info && part == other.part && origin == other.origin;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(info), part, origin);
+		}
+	}
+
+	/**
+	 * A part of input that was parsed to an expression or a literal.
+	 *
+	 */
+	private static class Span {
+
+		/**
+		 * Start position (inclusive).
+		 */
+		final int start;
+
+		/**
+		 * End position (exclusive).
+		 */
+		final int end;
+
+		/**
+		 * Completed item of an expression, or null for literals.
+		 */
+		final Item item;
+
+		/**
+		 * Return type of the expression or literal.
+		 */
+		final SkriptType type;
+
+		/**
+		 * AST node, or null if it has not been built yet.
+		 */
+		private AstNode node;
+
+		Span(int start, int end, Item item, SkriptType type, AstNode node) {
+			this.start = start;
+			this.end = end;
+			this.item = item;
+			this.type = type;
+			this.node = node;
+		}
+
+		/**
+		 * Gets the AST node of this span. It is built on first call.
+		 * @return AST node.
+		 */
+		AstNode getNode() {
+			if (node == null) {
+				AstNode.Expr expr = new AstNode.Expr(item.info.getExpression());
+				AstNode[] inputs = expr.getInputs();
+				for (Item step = item; step != null; step = step.previous) {
+					if (step.child != null) {
+						inputs[step.slot] = step.child.getNode();
+					}
+				}
+				node = expr;
+			}
+			return node;
+		}
+	}
+
+	/**
+	 * If types of inputs should be ignored.
+	 */
+	private final boolean ignoreTypes;
+
+	/**
+	 * Literal parsers.
+	 */
+	private final LiteralParser[] literalParsers;
+
+	/**
+	 * Expression layers.
+	 */
+	private final ExpressionLayer[] expressions;
+
+	/**
+	 * Parser state.
+	 */
+	private final ParserState state;
+
+	/**
+	 * Bytes of UTF-8 encoded input string.
+	 */
+	private final byte[] input;
+
+	/**
+	 * Items at each position, in order they were added.
+	 */
+	private final List<List<Item>> items;
+
+	/**
+	 * Items at each position, for checking if an item already exists.
+	 */
+	private final List<Set<Item>> seen;
+
+	/**
+	 * Items that are waiting for an input at each position.
+	 */
+	private final List<List<Item>> waiting;
+
+	/**
+	 * Literals by their end positions.
+	 */
+	private final List<List<Span>> literals;
+
+	/**
+	 * Positions where literals and expressions have been predicted.
+	 */
+	private final boolean[] predicted;
+
+	/**
+	 * Spans that start at the position where parsing started.
+	 */
+	private final List<Span> results;
+
+	/**
+	 * Expressions found by the latest layer lookup. Reused between lookups.
+	 */
+	private final List<ExpressionInfo> found;
+	
+	/**
+	 * Sink that adds expressions to {@link #found}.
+	 */
+	private final Consumer<ExpressionInfo> foundSink;
+
+	/**
+	 * Position where parsing started.
+	 */
+	private int start;
+
+	ChartParser(boolean ignoreTypes, LiteralParser[] literalParsers, ExpressionLayer[] expressions,
+			ParserState state, byte[] input) {
+		this.ignoreTypes = ignoreTypes;
+		this.literalParsers = literalParsers;
+		this.expressions = expressions;
+		this.state = state;
+		this.input = input;
+		int positions = input.length + 1;
+		this.items = new ArrayList<>(positions);
+		this.seen = new ArrayList<>(positions);
+		this.waiting = new ArrayList<>(positions);
+		this.literals = new ArrayList<>(positions);
+		for (int i = 0; i < positions; i++) {
+			items.add(null);
+			seen.add(null);
+			waiting.add(null);
+			literals.add(null);
+		}
+		this.predicted = new boolean[positions];
+		this.results = new ArrayList<>();
+		this.found = new ArrayList<>();
+		this.foundSink = found::add;
+	}
+
+	/**
+	 * Parses values of given types at a position of the input.
+	 * @param from Where to start parsing from in the input array.
+	 * @param types Accepted return types of parsed expressions.
+	 * @return The parse results, longest first, or an empty list if
+	 * parsing failed.
+	 */
+	List<ExpressionParser.Result> parse(int from, SkriptType[] types) {
+		this.start = from;
+		predict(from);
+		for (int pos = from; pos < items.size(); pos++) {
+			List<Span> ending = literals.get(pos);
+			if (ending != null) {
+				for (Span literal : ending) {
+					complete(literal);
+				}
+			}
+
+			List<Item> current = items.get(pos);
+			if (current != null) {
+				for (int i = 0; i < current.size(); i++) { // Completions may add items here
+					process(current.get(i), pos);
+				}
+			}
+		}
+
+		List<ExpressionParser.Result> out = new ArrayList<>();
+		for (Span span : results) {
+			if (ignoreTypes || ArrayHelpers.contains(types, span.type)) {
+				out.add(new ExpressionParser.Result(span.getNode(), span.end));
+			}
+		}
+		// Spans completed shortest first, but callers usually want whole input
+		out.sort((a, b) -> Integer.compare(b.getEnd(), a.getEnd()));
+		return out;
+	}
+
+	/**
+	 * Adds literals and expressions that start with literal parts at a
+	 * position, unless that has already been done.
+	 * @param pos Position in input.
+	 */
+	private void predict(int pos) {
+		if (predicted[pos]) {
+			return;
+		}
+		predicted[pos] = true;
+
+		for (LiteralParser parser : literalParsers) {
+			LiteralParser.Result literal = parser.parse(state, input, pos);
+			if (literal != null && literal.getEnd() > pos) {
+				AstNode node = literal.getNode();
+				listAt(literals, literal.getEnd()).add(new Span(pos, literal.getEnd(), null, node.getReturnType(), node));
+			}
+		}
+		for (ExpressionLayer layer : expressions) {
+			found.clear();
+			layer.lookupFirst(input, pos, foundSink);
+			for (ExpressionInfo info : found) { // Adding items does not look up more expressions
+				int length = ((PatternPart.Literal) info.getPattern().partAt(0)).getText().length;
+				add(new Item(info, 1, pos, null, null, -1), pos + length);
+			}
+		}
+	}
+
+	/**
+	 * Processes an item.
+	 * @param item Item.
+	 * @param pos Position of the item.
+	 */
+	private void process(Item item, int pos) {
+		Pattern pattern = item.info.getPattern();
+		if (item.part == pattern.length()) { // Pattern fully matched
+			complete(new Span(item.origin, pos, item, item.info.getExpression().getReturnType(), null));
+			return;
+		}
+
+		PatternPart part = pattern.partAt(item.part);
+		if (part instanceof PatternPart.Literal) {
+			byte[] text = ((PatternPart.Literal) part).getText();
+			int end = pos + text.length;
+			if (end <= input.length && Arrays.equals(text, 0, text.length, input, pos, end)) {
+				add(new Item(item.info, item.part + 1, item.origin, item, null, -1), end);
+			}
+		} else { // Wait for spans that start here
+			listAt(waiting, pos).add(item);
+			predict(pos);
+		}
+	}
+
+	/**
+	 * Advances items that were waiting for a span. The span is also tried as
+	 * first input to expressions whose patterns start with inputs.
+	 * @param span A complete span.
+	 */
+	private void complete(Span span) {
+		if (span.start == start) {
+			results.add(span);
+		}
+
+		List<Item> waiters = waiting.get(span.start);
+		if (waiters != null) {
+			for (Item waiter : waiters) {
+				int slot = ((PatternPart.Input) waiter.info.getPattern().partAt(waiter.part)).getSlot();
+				if (accepts(waiter.info, slot, span.type)) {
+					add(new Item(waiter.info, waiter.part + 1, waiter.origin, waiter, span, slot), span.end);
+				}
+			}
+		}
+
+		for (ExpressionLayer layer : expressions) {
+			found.clear();
+			layer.lookupSecond(input, span.end, foundSink);
+			for (ExpressionInfo info : found) {
+				Pattern pattern = info.getPattern();
+				int slot = ((PatternPart.Input) pattern.partAt(0)).getSlot();
+				if (accepts(info, slot, span.type)) {
+					int length = ((PatternPart.Literal) pattern.partAt(1)).getText().length;
+					add(new Item(info, 2, span.start, null, span, slot), span.end + length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks if an input of an expression accepts values of a type.
+	 * @param info Expression info.
+	 * @param slot Input slot.
+	 * @param type Type of value.
+	 * @return Whether the input accepts the type.
+	 */
+	private boolean accepts(ExpressionInfo info, int slot, SkriptType type) {
+		return ignoreTypes || ArrayHelpers.contains(info.getExpression().getInputType(slot).getTypes(), type);
+	}
+
+	/**
+	 * Adds an item to the chart, unless it is already there.
+	 * @param item Item.
+	 * @param pos Position of the item.
+	 */
+	private void add(Item item, int pos) {
+		Set<Item> existing = seen.get(pos);
+		if (existing == null) {
+			existing = new HashSet<>();
+			seen.set(pos, existing);
+		}
+		if (existing.add(item)) {
+			listAt(items, pos).add(item);
+		}
+	}
+
+	/**
+	 * Gets a list at a position, creating it if necessary.
+	 * @param <E> Type of list elements.
+	 * @param lists Lists by positions.
+	 * @param pos Position.
+	 * @return List at the position.
+	 */
+	private static <E> List<E> listAt(List<List<E>> lists, int pos) {
+		List<E> list = lists.get(pos);
+		if (list == null) {
+			list = new ArrayList<>();
+			lists.set(pos, list);
+		}
+		return list;
+	}
+}
@@ -1,5 +1,7 @@
 package io.github.bensku.skripty.parser.expression;
 
+import java.util.function.Consumer;
+
 import io.github.bensku.skripty.core.expression.CallableExpression;
 import io.github.bensku.skripty.core.expression.Expression;
 import io.github.bensku.skripty.core.expression.ExpressionRegistry;
@@ -63,6 +65,7 @@ public class ExpressionLayer {
 	 * @param pattern Pattern that can be used for it.
 	 * @throws IllegalArgumentException If the pattern is not valid for given
 	 * expression, for example because it is missing inputs.
+	 * @throws IllegalStateException If this layer has been frozen.
 	 */
 	public void register(Expression expression, Pattern pattern) {
 		PatternPart first = pattern.partAt(0);
@@ -99,11 +102,48 @@ public class ExpressionLayer {
 		}
 	}
 	
+	/**
+	 * Freezes this layer. Expression lookups will be faster, but no more
+	 * patterns can be registered. This should be called once all expressions
+	 * have been registered.
+	 * @return This layer.
+	 * @see RadixTree#freeze()
+	 */
+	public ExpressionLayer freeze() {
+		byFirstPart.freeze();
+		bySecondPart.freeze();
+		return this;
+	}
+	
 	public ExpressionInfo[] lookupFirst(byte[] input, int start) {
 		return byFirstPart.get(input, start);
 	}
 	
+	/**
+	 * Gives expressions with first parts that are literals at given position
+	 * of input to a sink. Unlike {@link #lookupFirst(byte[], int)}, this does
+	 * not allocate.
+	 * @param input Input.
+	 * @param start Position in input.
+	 * @param sink Sink for the expressions.
+	 */
+	public void lookupFirst(byte[] input, int start, Consumer<? super ExpressionInfo> sink) {
+		byFirstPart.get(input, start, sink);
+	}
+	
 	public ExpressionInfo[] lookupSecond(byte[] input, int start) {
 		return bySecondPart.get(input, start);
 	}
+	
+	/**
+	 * Gives expressions with second parts that are literals at given position
+	 * of input to a sink. Unlike {@link #lookupSecond(byte[], int)}, this
+	 * does not allocate.
+	 * @param input Input.
+	 * @param start Position in input.
+	 * @param sink Sink for the expressions.
+	 */
+	public void lookupSecond(byte[] input, int start, Consumer<? super ExpressionInfo> sink) {
+		bySecondPart.get(input, start, sink);
+	}
 }
@@ -2,7 +2,11 @@ package io.github.bensku.skripty.parser.expression;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
 
 import io.github.bensku.skripty.core.AstNode;
 import io.github.bensku.skripty.core.expression.InputType;
@@ -14,6 +18,16 @@ import io.github.bensku.skripty.parser.util.RadixTree;
 
 /**
  * Parses expressions into {@link AstNode}s.
+ * 
+ * <p>Results are memoized for duration of one {@link #parse(ParserState,
+ * byte[], int, SkriptType...) parse} call, so that every start position is
+ * parsed only once no matter how many expressions want an input there.
+ * Without this, parsing time would grow exponentially with amount of
+ * nested expressions.
+ * 
+ * <p>Intermediate results are kept in an {@link Arena arena} of parallel
+ * arrays that is reused between parse operations on the same thread.
+ * Only the results that are returned are wrapped in {@link Result}s.
  *
  */
 public class ExpressionParser {
@@ -24,6 +38,15 @@ public class ExpressionParser {
 	 * messages after compiling with types has failed.
 	 */
 	public static final int IGNORE_TYPES = 1;
+	
+	/**
+	 * Parsers with this flag use a {@link ChartParser chart parser} instead
+	 * of backtracking search. It takes polynomial time even when patterns
+	 * are very ambiguous, but returns a result for every expression that
+	 * matches some part of input, not only for longest matches. Results
+	 * are ordered longest first.
+	 */
+	public static final int CHART = 2;
 
 	/**
 	 * Parser flags.
@@ -86,7 +109,7 @@ public class ExpressionParser {
 		 */
 		private final int end;
 
-		private Result(AstNode node, int end) {
+		Result(AstNode node, int end) {
 			this.node = node;
 			this.end = end;
 		}
@@ -105,6 +128,198 @@ public class ExpressionParser {
 
 	}
 	
+	/**
+	 * Results of one parse operation, stored in parallel arrays. Results
+	 * that start at same position are linked together in order they were
+	 * found. Arenas are reused by later parse operations on the same thread,
+	 * so that their arrays need not be allocated again.
+	 * 
+	 * <p>Arenas also have a stack of candidate expressions, which they
+	 * receive from expression layers as a sink.
+	 *
+	 */
+	private static class Arena implements Consumer<ExpressionInfo> {
+		
+		/**
+		 * Initial capacity for results.
+		 */
+		private static final int INITIAL_SIZE = 64;
+		
+		/**
+		 * AST nodes of results.
+		 */
+		AstNode[] nodes = new AstNode[INITIAL_SIZE];
+		
+		/**
+		 * Return types of results.
+		 */
+		SkriptType[] types = new SkriptType[INITIAL_SIZE];
+		
+		/**
+		 * End indices of results in input (exclusive).
+		 */
+		int[] ends = new int[INITIAL_SIZE];
+		
+		/**
+		 * Next result that starts at same position, or -1.
+		 */
+		int[] next = new int[INITIAL_SIZE];
+		
+		/**
+		 * Amount of results in this arena.
+		 */
+		int size;
+		
+		/**
+		 * First result by start position, or -1.
+		 */
+		int[] first = new int[INITIAL_SIZE];
+		
+		/**
+		 * Last result by start position, or -1.
+		 */
+		int[] last = new int[INITIAL_SIZE];
+		
+		/**
+		 * Positions that have already been parsed.
+		 */
+		boolean[] parsed = new boolean[INITIAL_SIZE];
+		
+		/**
+		 * Results of matching ends of patterns. Failures are stored as -1.
+		 */
+		final Map<PartialMatch, Integer> matches = new HashMap<>();
+		
+		/**
+		 * Stack of candidate expressions.
+		 */
+		ExpressionInfo[] candidates = new ExpressionInfo[INITIAL_SIZE];
+		
+		/**
+		 * Amount of candidates in the stack.
+		 */
+		int candidateCount;
+		
+		/**
+		 * If a parse operation is using this arena.
+		 */
+		boolean inUse;
+		
+		/**
+		 * Prepares this arena for a parse operation.
+		 * @param inputLength Length of input.
+		 */
+		void reset(int inputLength) {
+			int positions = inputLength + 1;
+			if (first.length < positions) { // Enlarge arrays
+				first = new int[positions];
+				last = new int[positions];
+				parsed = new boolean[positions];
+			}
+			Arrays.fill(first, 0, positions, -1);
+			Arrays.fill(last, 0, positions, -1);
+			Arrays.fill(parsed, 0, positions, false);
+			inUse = true;
+		}
+		
+		/**
+		 * Clears references to results, so that they can be garbage
+		 * collected, and releases this arena for use by other parse
+		 * operations.
+		 */
+		void release() {
+			Arrays.fill(nodes, 0, size, null);
+			Arrays.fill(types, 0, size, null);
+			size = 0;
+			candidateCount = 0;
+			matches.clear();
+			inUse = false;
+		}
+		
+		/**
+		 * Adds a result that is not linked to any position yet.
+		 * @param node AST node.
+		 * @param end End index in input (exclusive).
+		 * @return Index of the result.
+		 */
+		int add(AstNode node, int end) {
+			if (size == nodes.length) { // Enlarge arrays
+				int newSize = size * 2;
+				nodes = Arrays.copyOf(nodes, newSize);
+				types = Arrays.copyOf(types, newSize);
+				ends = Arrays.copyOf(ends, newSize);
+				next = Arrays.copyOf(next, newSize);
+			}
+			nodes[size] = node;
+			types[size] = node.getReturnType();
+			ends[size] = end;
+			next[size] = -1;
+			return size++;
+		}
+		
+		/**
+		 * Pushes a candidate expression to the stack.
+		 * @param info Expression info.
+		 */
+		@Override
+		public void accept(ExpressionInfo info) {
+			if (candidateCount == candidates.length) { // Enlarge array
+				candidates = Arrays.copyOf(candidates, candidateCount * 2);
+			}
+			candidates[candidateCount++] = info;
+		}
+		
+		/**
+		 * Links a result to end of results that start at a position.
+		 * @param start Start position.
+		 * @param result Index of the result.
+		 */
+		void link(int start, int result) {
+			if (last[start] == -1) {
+				first[start] = result;
+			} else {
+				next[last[start]] = result;
+			}
+			last[start] = result;
+		}
+	}
+	
+	/**
+	 * Arenas of threads that have used parsers.
+	 */
+	private static final ThreadLocal<Arena> ARENAS = ThreadLocal.withInitial(Arena::new);
+	
+	/**
+	 * Key for memoized result of matching a pattern from its part onwards.
+	 *
+	 */
+	private static class PartialMatch {
+		
+		private final ExpressionInfo info;
+		private final int part;
+		private final int pos;
+		
+		PartialMatch(ExpressionInfo info, int part, int pos) {
+			this.info = info;
+			this.part = part;
+			this.pos = pos;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PartialMatch)) {
+				return false;
+			}
+			PartialMatch other = (PartialMatch) obj;
+			return info == other.info && part == other.part && pos == other.pos;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(info), part, pos);
+		}
+	}
+	
 	/**
 	 * Attempts to parse values of given types at start of the input string.
 	 * @param state Parser state.
@@ -114,136 +329,140 @@ public class ExpressionParser {
 	 * @return The parse results, or an empty list if parsing failed.
 	 */
 	public List<Result> parse(ParserState state, byte[] input, int start, SkriptType... types) {
-		List<Result> results = new ArrayList<>();
+		if (hasFlag(CHART)) {
+			return new ChartParser(hasFlag(IGNORE_TYPES), literalParsers, expressions, state, input).parse(start, types);
+		}
 		
-		// TODO parse list literals here!
-		parseSingle(state, input, results, start, types);
-		return results;
+		Arena arena = ARENAS.get();
+		if (arena.inUse) { // A literal parser is parsing expressions, don't disturb our caller
+			arena = new Arena();
+		}
+		arena.reset(input.length);
+		try {
+			parseAt(arena, state, input, start);
+			
+			// Materialize results of types that the caller wants
+			List<Result> results = new ArrayList<>();
+			for (int i = arena.first[start]; i != -1; i = arena.next[i]) {
+				if (hasFlag(IGNORE_TYPES) || ArrayHelpers.contains(types, arena.types[i])) {
+					results.add(new Result(arena.nodes[i], arena.ends[i]));
+				}
+			}
+			return results;
+		} finally {
+			arena.release();
+		}
 	}
 	
 	/**
-	 * Attempts to parse a single value at start of the input string.
+	 * Parses values of all types at a position of the input string, unless
+	 * that has already been done. Results are linked to the position in the
+	 * arena.
+	 * @param arena Arena of this parse operation.
 	 * @param state Parser state.
 	 * @param input Bytes of UTF-8 encoded input string.
-	 * @param out List where results should be added.
 	 * @param start Where to start parsing from in the input array.
-	 * @param types Accepted return types of parsed expressions.
-	 * @return The parse results, or an empty list if parsing failed.
 	 */
-	private void parseSingle(ParserState state, byte[] input, List<Result> out, int start, SkriptType... types) {
+	private void parseAt(Arena arena, ParserState state, byte[] input, int start) {
+		if (arena.parsed[start]) {
+			return; // Memoized
+		}
+		arena.parsed[start] = true;
+		
+		// TODO parse list literals here!
+		
 		// Try literal parsing first
 		for (LiteralParser parser : literalParsers) {
 			LiteralParser.Result literal = parser.parse(state, input, start);
 			if (literal != null) { // This is a literal!
-				Result result = new Result(literal.getNode(), literal.getEnd());
-				if (hasFlag(IGNORE_TYPES) || ArrayHelpers.contains(types, result.getReturnType())) {
-					out.add(result);
-				}
+				int result = arena.add(literal.getNode(), literal.getEnd());
+				arena.link(start, result);
 				
 				// Even though result is literal, it could be used as input to something else
-				wrapAsFirstInput(state, input, out, result, types);
+				wrapAsFirstInput(arena, state, input, start, result);
 			}
 		}
 		
 		// Search expressions from each layer
 		for (ExpressionLayer layer : expressions) {
-			Result[] results = parseFirst(state, layer, input, start);
-			for (Result result : results) {
-				if (result == null) {
-					break; // Only nulls after this
-				}
-				
-				// Add this result if it is of correct type
-				if (hasFlag(IGNORE_TYPES) || ArrayHelpers.contains(types, result.getReturnType())) {
-					out.add(result);
-				}
-				
-				// Try using it as first input to expressions
-				wrapAsFirstInput(state, input, out, result, types);
-			}
+			parseFirst(arena, state, layer, input, start);
 		}
 	}
 	
 	/**
 	 * Attempts to wrap an expression as first input to another expression.
 	 * This is done recursively as long as parsing against input succeeds.
+	 * @param arena Arena of this parse operation.
 	 * @param state Parser state.
 	 * @param input Input string.
-	 * @param out List where we write results.
-	 * @param original Original parse result with expression we'll try to wrap.
-	 * @param types Accepted return types of the resulting expressions.
+	 * @param start Start of the original result in input.
+	 * @param original Index of original result with expression we'll try to
+	 * wrap.
 	 */
-	private void wrapAsFirstInput(ParserState state, byte[] input, List<Result> out, Result original, SkriptType[] types) {
+	private void wrapAsFirstInput(Arena arena, ParserState state, byte[] input, int start, int original) {
 		for (ExpressionLayer layer : expressions) {
-			Result[] secondResults = parseSecond(state, layer, original.getNode(), input, original.getEnd());
-			for (Result result : secondResults) {
-				if (result == null) {
-					break;
-				}
-				
-				// If this is of correct type, add it to results
-				if (hasFlag(IGNORE_TYPES) || ArrayHelpers.contains(types, result.getReturnType())) {
-					out.add(result);
-				}
-				
-				// Check if that could be used as first input to something else
-				wrapAsFirstInput(state, input, out, result, types);
-			}
+			parseSecond(arena, state, layer, input, start, original);
 		}
 	}
 	
 	/**
 	 * Parses all matching expressions by using input as a key to their first
-	 * parts.
+	 * parts. Results are linked to the start position, and then tried as
+	 * first inputs to other expressions.
+	 * @param arena Arena of this parse operation.
 	 * @param state Parser state.
 	 * @param layer Layer to query expressions from.
 	 * @param input Input to parse.
 	 * @param start Index of byte where to start parsing from in input.
-	 * @return Parse results, or an empty array if the input cannot be parsed
-	 * in any way.
 	 */
-	private Result[] parseFirst(ParserState state, ExpressionLayer layer, byte[] input, int start) {
-		ExpressionInfo[] candidates = layer.lookupFirst(input, start);
-		Result[] results = new Result[candidates.length];
-		int resultCount = 0;
+	private void parseFirst(Arena arena, ParserState state, ExpressionLayer layer, byte[] input, int start) {
+		// Push candidates to the stack; recursive calls push above them
+		int first = arena.candidateCount;
+		layer.lookupFirst(input, start, arena);
+		int last = arena.candidateCount;
 		
 		// Go through candidate expressions, find those that might match
-		for (int i = 0; i < candidates.length; i++) {
-			ExpressionInfo info = candidates[i];
+		for (int i = first; i < last; i++) {
+			ExpressionInfo info = arena.candidates[i];
 
 			// Current position (index) in input array
 			// TODO maybe something less hacky for getting current position?
 			int pos = start + ((PatternPart.Literal) info.getPattern().partAt(0)).getText().length;
 			
 			// Try to match pattern of the candidate
-			// Success or a failure, we'll return that (result or null) to caller
-			Result result = matchPattern(state, info, 1, input, pos);
-			if (result != null) {
-				results[resultCount++] = result;
+			int result = matchPattern(arena, state, info, 1, input, pos);
+			if (result != -1) {
+				arena.link(start, result);
+				
+				// Try using it as first input to expressions
+				wrapAsFirstInput(arena, state, input, start, result);
 			}
 		}
-		return results;
+		arena.candidateCount = first; // Pop the candidates
 	}
 	
 	/**
 	 * Parses all matching expressions by using input as a key to their second
-	 * parts. The first parts must be inputs that accept the given type.
+	 * parts. The first parts must be inputs that accept type of the given
+	 * first input. Results are linked to the start position, and then tried
+	 * as first inputs to other expressions.
+	 * @param arena Arena of this parse operation.
 	 * @param state Parser state.
 	 * @param layer Layer to query expressions from.
-	 * @param firstNode First input node.
 	 * @param input Input to parse.
-	 * @param start Index of byte where to start parsing from in input.
-	 * @return Parse results, or an empty array if the input cannot be parsed
-	 * in any way.
+	 * @param start Start of the first input in input.
+	 * @param first Index of first input result.
 	 */
-	private Result[] parseSecond(ParserState state, ExpressionLayer layer, AstNode firstNode, byte[] input, int start) {
-		ExpressionInfo[] candidates = layer.lookupSecond(input, start);
-		Result[] results = new Result[candidates.length];
-		int resultCount = 0;
+	private void parseSecond(Arena arena, ParserState state, ExpressionLayer layer, byte[] input, int start, int first) {
+		AstNode firstNode = arena.nodes[first];
+		int firstEnd = arena.ends[first];
+		int firstCandidate = arena.candidateCount;
+		layer.lookupSecond(input, firstEnd, arena);
+		int lastCandidate = arena.candidateCount;
 		
 		// Go through candidate expressions, find those that might match
-		for (int i = 0; i < candidates.length; i++) {
-			ExpressionInfo info = candidates[i];
+		for (int i = firstCandidate; i < lastCandidate; i++) {
+			ExpressionInfo info = arena.candidates[i];
 			Pattern pattern = info.getPattern();
 			
 			// Filter based on return type of expression we already have
@@ -255,23 +474,26 @@ public class ExpressionParser {
 
 			// Current position (index) in input array
 			// TODO maybe something less hacky for getting current position?
-			int pos = start + ((PatternPart.Literal) info.getPattern().partAt(1)).getText().length;
+			int pos = firstEnd + ((PatternPart.Literal) info.getPattern().partAt(1)).getText().length;
 			
 			// Try to match pattern of the candidate
-			// Success or a failure, we'll return that (result or null) to caller
-			Result result = matchPattern(state, info, 2, input, pos);
-			if (result != null) {
+			int result = matchPattern(arena, state, info, 2, input, pos);
+			if (result != -1) {
 				// Populate input corresponding to first pattern part
-				((AstNode.Expr) result.getNode()).getInputs()[inputSlot] = firstNode;
+				((AstNode.Expr) arena.nodes[result]).getInputs()[inputSlot] = firstNode;
+				arena.link(start, result);
 				
-				results[resultCount++] = result;
+				// Check if that could be used as first input to something else
+				wrapAsFirstInput(arena, state, input, start, result);
 			}
 		}
-		return results;
+		arena.candidateCount = firstCandidate;
 	}
 	
 	/**
-	 * Matches pattern of an expression against input.
+	 * Matches pattern of an expression against input. Returned node is not
+	 * shared, so caller may set inputs that it has matched itself.
+	 * @param arena Arena of this parse operation.
 	 * @param state Parser state.
 	 * @param info Expression info. This references both the pattern and
 	 * expression.
@@ -280,14 +502,10 @@ public class ExpressionParser {
 	 * matched by e.g {@link RadixTree the expression tree}.
 	 * @param input Input (UTF-8) bytes to match against.
 	 * @param pos Starting position in the input.
-	 * @return A parse result if the given expression matches, null otherwise.
+	 * @return Index of a result in the arena if the given expression
+	 * matches, -1 otherwise. The result is not linked to any position.
 	 */
-	private Result matchPattern(ParserState state, ExpressionInfo info, int firstPart, byte[] input, int pos) {
-		AstNode.Expr node = new AstNode.Expr(info.getExpression());
-		
-		// Initially empty array of this candidate's inputs
-		AstNode[] inputs = node.getInputs();
-		
+	private int matchPattern(Arena arena, ParserState state, ExpressionInfo info, int firstPart, byte[] input, int pos) {
 		// Pattern of candidate expression; we match input against this
 		Pattern pattern = info.getPattern();
 		
@@ -298,48 +516,97 @@ public class ExpressionParser {
 				byte[] text = ((PatternPart.Literal) part).getText();
 				
 				// Check if the literal text and input match
-				if (!Arrays.equals(text, 0, text.length, input, pos, pos + text.length)) {
-					return null; // They're not same, this candidate is not possible
+				if (pos + text.length > input.length
+						|| !Arrays.equals(text, 0, text.length, input, pos, pos + text.length)) {
+					return -1; // They're not same, this candidate is not possible
 				}
 				
 				// Next part matches after this text
 				pos += text.length;
 			} else {
+				// Literal parts matched, so this candidate needs a node
+				AstNode.Expr node = new AstNode.Expr(info.getExpression());
+				AstNode[] inputs = node.getInputs();
+				
 				// Figure out the index we'll place this in inputs array
 				int inputSlot = ((PatternPart.Input) part).getSlot();
 				
 				// Get potential inputs
 				InputType inputType = info.getExpression().getInputType(inputSlot);
-				List<Result> potentialInputs = parse(state, input, pos, inputType.getTypes());
+				int inputPos = pos;
+				parseAt(arena, state, input, inputPos);
 				
 				// Evaluate whether or not we can parse parts of this expression
 				// AFTER this input, should it be used
-				for (Result result : potentialInputs) {
-					Result after = matchPattern(state, info, i + 1, input, result.getEnd());
-					if (after != null && after.getEnd() > pos) { // Doesn't conflict with this expression
+				for (int result = arena.first[inputPos]; result != -1; result = arena.next[result]) {
+					if (!hasFlag(IGNORE_TYPES) && !ArrayHelpers.contains(inputType.getTypes(), arena.types[result])) {
+						continue; // Not of type this input accepts
+					}
+					
+					int afterEnd;
+					AstNode[] afterInputs;
+					if (i + 1 == pattern.length()) { // Nothing after this input
+						afterEnd = arena.ends[result];
+						afterInputs = null;
+					} else {
+						int after = matchRest(arena, state, info, i + 1, input, arena.ends[result]);
+						if (after == -1) {
+							continue;
+						}
+						afterEnd = arena.ends[after];
+						afterInputs = ((AstNode.Expr) arena.nodes[after]).getInputs();
+					}
+					
+					if (afterEnd > pos) { // Doesn't conflict with this expression
 						// Copy inputs parsed recursively after current one here
-						AstNode[] afterInputs = ((AstNode.Expr) after.getNode()).getInputs();
-						for (int j = inputSlot + 1; j < inputs.length; j++) {
-							inputs[j] = afterInputs[j];
+						if (afterInputs != null) {
+							for (int j = inputSlot + 1; j < inputs.length; j++) {
+								inputs[j] = afterInputs[j];
+							}
 						}
 						
 						// Assign this as input
-						inputs[inputSlot] = result.getNode();
+						inputs[inputSlot] = arena.nodes[result];
 						// Recursive matchPattern() call has set the subsequent inputs (if any) for us
-						pos = after.getEnd(); // Skip ahead what was recursively parsed
+						pos = afterEnd; // Skip ahead what was recursively parsed
 					}
 				}
 				
 				if (inputs[inputSlot] == null) {
 					// Subsequent parts of this expression were not parseable with potential inputs
 					// (or maybe there were no potential inputs at all)
-					return null; // Failed to parse this candidate!
+					return -1; // Failed to parse this candidate!
 				}
-				break; // Latter parts, if any, have been recursively processed
+				return arena.add(node, pos); // Latter parts, if any, have been recursively processed
 			}
 		}
 		
-		return new Result(node, pos);
+		// Only literal parts left, and they matched
+		return arena.add(new AstNode.Expr(info.getExpression()), pos);
+	}
+	
+	/**
+	 * Matches rest of pattern of an expression against input, unless that
+	 * has already been memoized. Nodes in results of this may be shared, and
+	 * must not be modified.
+	 * @param arena Arena of this parse operation.
+	 * @param state Parser state.
+	 * @param info Expression info.
+	 * @param firstPart Index of first pattern part that we should evaluate.
+	 * @param input Input (UTF-8) bytes to match against.
+	 * @param pos Starting position in the input.
+	 * @return Index of a result in the arena if the rest of the pattern
+	 * matches, -1 otherwise.
+	 */
+	private int matchRest(Arena arena, ParserState state, ExpressionInfo info, int firstPart, byte[] input, int pos) {
+		PartialMatch key = new PartialMatch(info, firstPart, pos);
+		Integer memoized = arena.matches.get(key);
+		if (memoized != null) {
+			return memoized;
+		}
+		int result = matchPattern(arena, state, info, firstPart, input, pos);
+		arena.matches.put(key, result);
+		return result;
 	}
 
 }
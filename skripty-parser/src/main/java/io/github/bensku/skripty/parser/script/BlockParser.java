@@ -45,12 +45,14 @@ public class BlockParser {
 	private ParseResult<ScriptBlock> parse(ParserState state, Scope scope, AstNode.Expr titleExpr, SourceNode.Section section) {
 		SourceNode[] sourceNodes = section.getNodes();
 		ScriptUnit[] units = new ScriptUnit[sourceNodes.length];
+		int[] lines = new int[sourceNodes.length];
 		
 		// Parse source nodes into source units
 		boolean errored = false;
 		for (int i = 0; i < units.length; i++) {
 			SourceNode source = sourceNodes[i];
 			if (source instanceof SourceNode.Section) { // Recursively parse sub-blocks
+				lines[i] = ((SourceNode.Section) source).getTitle().getLine();
 				ParseResult<Scope.InnerScope> subscope = scope.parseScope(state, ((SourceNode.Section) source).getTitle());
 				
 				if (subscope.isSuccess()) {
@@ -66,6 +68,7 @@ public class BlockParser {
 				}
 			} else { // Parse statements using current scope
 				assert source instanceof SourceNode.Statement;
+				lines[i] = ((SourceNode.Statement) source).getLine();
 				ParseResult<AstNode.Expr> statement = scope.parseStatement(state, (SourceNode.Statement) source);
 				if (statement.isSuccess()) {
 					units[i] = statement.getResult();
@@ -78,7 +81,7 @@ public class BlockParser {
 		if (errored) { // Looks like there were some errors
 			return ParseResult.failure(); // TODO collect messages so we have them here
 		} else { // Everything went well, we have a script block
-			return ParseResult.success(new ScriptBlock(titleExpr, units));
+			return ParseResult.success(new ScriptBlock(titleExpr, units, lines));
 		}
 	}
 }
@@ -71,15 +71,17 @@ public class Scope {
 	}
 	
 	public ParseResult<InnerScope> parseScope(ParserState state, SourceNode.Statement title) {
-		List<ExpressionParser.Result> results = scopeParser.parse(state, title.getText().getBytes(StandardCharsets.UTF_8), 0, ScopeEntry.TYPE);
-		if (results.isEmpty()) {
-			ParserMessage error = ParserMessage.error("failed to parse scope").at(title, 0, title.getText().length());
-			return ParseResult.failure(error);
+		byte[] bytes = title.getText().getBytes(StandardCharsets.UTF_8);
+		List<ExpressionParser.Result> results = scopeParser.parse(state, bytes, 0, ScopeEntry.TYPE);
+		for (ExpressionParser.Result result : results) {
+			if (result.getEnd() == bytes.length) { // Title must not have anything after the expression
+				AstNode.Expr node = (AstNode.Expr) result.getNode();
+				return ParseResult.success(new InnerScope(node, scopeRegistry.resolve(node.getExpression())));
+			}
 		}
-		AstNode node = results.get(0).getNode();
-		InnerScope scope = new InnerScope((AstNode.Expr) results.get(0).getNode(),
-				scopeRegistry.resolve(((AstNode.Expr) node).getExpression()));
-		return ParseResult.success(scope);
+		
+		ParserMessage error = ParserMessage.error("failed to parse scope").at(title, 0, title.getText().length());
+		return ParseResult.failure(error);
 	}
 	
 	public ParseResult<AstNode.Expr> parseStatement(ParserState state, SourceNode.Statement statement) {
@@ -1,10 +1,33 @@
 package io.github.bensku.skripty.parser.util;
 
+import java.io.ByteArrayOutputStream;
 import java.lang.reflect.Array;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 /**
  * A radix tree used for expression lookups. Operates on UTF-8 string data.
+ * 
+ * <p>Values are found either by {@link #get(byte[], int) copying} them to
+ * an array, or by giving them to a {@link #get(byte[], int, Consumer) sink}
+ * one by one. The latter does not allocate anything. Every value is also
+ * given an index when it is put to the tree, and lookups can
+ * {@link #getIndices(byte[], int, IntConsumer) return indices} instead.
+ * 
+ * <p>Trees that will not be modified anymore can be {@link #freeze() frozen}.
+ * Nodes of frozen trees are stored in a few flat arrays, which makes
+ * lookups faster.
+ * 
+ * <p>Trees are not thread-safe while values are being put to them. Once
+ * that is done, lookups can be made from any thread. Trees should be frozen
+ * before they are shared between threads; lookups that race with
+ * {@link #freeze()} still work, but {@link #getValue(int)} may not.
  *
  */
 public class RadixTree<T> {
@@ -96,7 +119,7 @@ public class RadixTree<T> {
 		 * @param start Start in data array.
 		 * @param data Data to write.
 		 */
-		public void write(byte[] key, int start, T data) {
+		public void write(byte[] key, int start, DataEntry<T> data) {
 			int i;
 			for (i = 0; start + i < key.length; i++) {
 				byte oldValue = readByte(i);
@@ -124,10 +147,19 @@ public class RadixTree<T> {
 			}
 			
 			// Reached a node and index matching the data
-			addData(key.length - 1, data);
+			addData(data);
 		}
 		
-		public void read(ResultCollector<T> collector, byte[] key, int start) {
+		/**
+		 * Reads data of all keys that the given key starts with. Either
+		 * values or indices of them are given to a sink.
+		 * @param values Sink for values, or null.
+		 * @param indices Sink for indices of values, used if there is no
+		 * sink for values.
+		 * @param key Key to search with.
+		 * @param start Index of first byte of the key.
+		 */
+		public void read(Consumer<? super T> values, IntConsumer indices, byte[] key, int start) {
 			DataEntry<T> currentEntry = firstEntry;
 			for (int i = 0; start + i < key.length; i++) {
 				byte value = key[start + i];
@@ -136,16 +168,20 @@ public class RadixTree<T> {
 				} else if (branchIndex == i) { // Need to select a branch
 					Node<T> branch = selectBranch(value);
 					if (branch != null) { // If there is a suitable branch, go for it
-						branch.read(collector, key, start + i);
+						branch.read(values, indices, key, start + i);
 					}
 					break;
 				} else if (bytes[i] != value) {
 					break; // No branch and values don't match -> we're out
 				}
 				
-				// Nothing interrupted us? Check if we found an expression
-				if (currentEntry != null && currentEntry.index == nodeStart + i) {
-					collector.add(currentEntry.data);
+				// Nothing interrupted us? Check if we found expressions (many may share a key)
+				while (currentEntry != null && currentEntry.index == nodeStart + i) {
+					if (values != null) {
+						values.accept(currentEntry.data);
+					} else {
+						indices.accept(currentEntry.id);
+					}
 					currentEntry = currentEntry.after; // Next (maybe null, that's ok)
 				}
 			}
@@ -256,12 +292,11 @@ public class RadixTree<T> {
 		}
 		
 		/**
-		 * Adds a data value to this node.
-		 * @param globalIndex Global (byte) index for the expression.
-		 * @param data Data value.
+		 * Adds a data entry to this node.
+		 * @param entry Data entry.
 		 */
-		public void addData(int globalIndex, T data) {
-			DataEntry<T> entry = new DataEntry<>(globalIndex, data);
+		public void addData(DataEntry<T> entry) {
+			int globalIndex = entry.index;
 			if (firstEntry == null) { // First and last expression here
 				firstEntry = entry;
 				lastEntry = entry;
@@ -303,6 +338,11 @@ public class RadixTree<T> {
 		 */
 		private final T data;
 		
+		/**
+		 * Index of the data in order of insertion.
+		 */
+		private final int id;
+		
 		/**
 		 * The entry before this one. May be null.
 		 */
@@ -313,9 +353,222 @@ public class RadixTree<T> {
 		 */
 		private DataEntry<T> after;
 		
-		DataEntry(int index, T data) {
+		DataEntry(int index, T data, int id) {
 			this.index = index;
 			this.data = data;
+			this.id = id;
+		}
+	}
+	
+	/**
+	 * Flattened, read-only representation of a tree. Each node occupies
+	 * {@link #NODE_SIZE} ints in the node table. Bytes of all nodes are
+	 * stored in one array, and so are data entries.
+	 */
+	private static class Frozen<T> {
+		
+		/**
+		 * Ints per node in {@link #nodes}.
+		 */
+		private static final int NODE_SIZE = 8;
+		
+		// Offsets of node fields
+		private static final int OFFSET = 0;
+		private static final int LENGTH = 1;
+		private static final int BRANCH_INDEX = 2;
+		private static final int BRANCH_BIT = 3;
+		private static final int BRANCH0 = 4;
+		private static final int BRANCH1 = 5;
+		private static final int DATA_START = 6;
+		private static final int DATA_END = 7;
+		
+		/**
+		 * Node table. Branches are indices of nodes, or -1.
+		 */
+		private final int[] nodes;
+		
+		/**
+		 * Bytes of all nodes.
+		 */
+		private final byte[] bytes;
+		
+		/**
+		 * Indices of bytes in their nodes that data entries appear at.
+		 * Entries of each node are sorted by these.
+		 */
+		private final int[] dataPositions;
+		
+		/**
+		 * Data of entries.
+		 */
+		private final T[] data;
+		
+		/**
+		 * Indices of data in order of insertion.
+		 */
+		private final int[] ids;
+		
+		Frozen(int[] nodes, byte[] bytes, int[] dataPositions, T[] data, int[] ids) {
+			this.nodes = nodes;
+			this.bytes = bytes;
+			this.dataPositions = dataPositions;
+			this.data = data;
+			this.ids = ids;
+		}
+		
+		/**
+		 * Reads data of all keys that the given key starts with.
+		 * @param values Sink for values, or null.
+		 * @param indices Sink for indices of values, used if there is no
+		 * sink for values.
+		 * @param key Key to search with.
+		 * @param start Index of first byte of the key.
+		 * @see Node#read(Consumer, IntConsumer, byte[], int)
+		 */
+		void read(Consumer<? super T> values, IntConsumer indices, byte[] key, int start) {
+			int node = 0;
+			int pos = start;
+			while (node != -1) {
+				int base = node * NODE_SIZE;
+				int offset = nodes[base + OFFSET];
+				int length = Math.min(nodes[base + LENGTH], key.length - pos);
+				int branchIndex = nodes[base + BRANCH_INDEX];
+				int entry = nodes[base + DATA_START];
+				int dataEnd = nodes[base + DATA_END];
+				int next = -1;
+				for (int i = 0; i < length; i++) {
+					byte value = key[pos + i];
+					if (i == branchIndex) { // Continue from a branch, if there is a suitable one
+						next = selectBranch(base, bytes[offset + i], value);
+						pos += i;
+						break;
+					} else if (bytes[offset + i] != value) {
+						break; // Values don't match -> we're out
+					}
+					
+					// Give data of keys that end here to sink
+					for (; entry < dataEnd && dataPositions[entry] == i; entry++) {
+						if (values != null) {
+							values.accept(data[entry]);
+						} else {
+							indices.accept(ids[entry]);
+						}
+					}
+				}
+				node = next;
+			}
+		}
+		
+		/**
+		 * Selects a branch of a node.
+		 * @param base Index of the node in node table.
+		 * @param ours Byte of the node at its branch index.
+		 * @param value Byte of key at branch index.
+		 * @return Index of the branch node, or -1 if there is no suitable
+		 * branch.
+		 * @see Node#selectBranch(byte)
+		 */
+		private int selectBranch(int base, byte ours, byte value) {
+			int branchBit = nodes[base + BRANCH_BIT];
+			int diffBit = Integer.numberOfLeadingZeros(ours ^ value) - Node.LEADING_ZEROS_INT_BYTE;
+			if (diffBit < branchBit) {
+				return -1;
+			}
+			int mismatchMask = 1 << (Node.BYTE_BIT_MAX - branchBit);
+			return nodes[base + ((mismatchMask & value) == 0 ? BRANCH0 : BRANCH1)];
+		}
+	}
+	
+	/**
+	 * Builds a {@link Frozen frozen} representation of a tree.
+	 */
+	private static class Freezer<T> {
+		
+		/**
+		 * Nodes in order of their indices.
+		 */
+		private final List<Node<T>> order = new ArrayList<>();
+		
+		/**
+		 * Indices of nodes.
+		 */
+		private final Map<Node<T>, Integer> indices = new IdentityHashMap<>();
+		
+		/**
+		 * Assigns indices to a node and nodes under it.
+		 * @param node Node.
+		 * @return Index of the node.
+		 */
+		private int visit(Node<T> node) {
+			int index = order.size();
+			order.add(node);
+			indices.put(node, index);
+			if (node.branchIndex != -1) {
+				if (node.branch0 != null) {
+					visit(node.branch0);
+				}
+				if (node.branch1 != null) {
+					visit(node.branch1);
+				}
+			}
+			return index;
+		}
+		
+		/**
+		 * Creates a frozen representation of a tree.
+		 * @param type Type of data.
+		 * @param root Root node of the tree.
+		 * @param dataCount Count of data entries in the tree.
+		 * @return Frozen tree.
+		 */
+		@SuppressWarnings("unchecked")
+		Frozen<T> freeze(Class<T> type, Node<T> root, int dataCount) {
+			visit(root);
+			int[] nodes = new int[order.size() * Frozen.NODE_SIZE];
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			int[] dataPositions = new int[dataCount];
+			T[] data = (T[]) Array.newInstance(type, dataCount);
+			int[] ids = new int[dataCount];
+			int entryCount = 0;
+			
+			for (int i = 0; i < order.size(); i++) {
+				Node<T> node = order.get(i);
+				int base = i * Frozen.NODE_SIZE;
+				
+				// Reads never look past the branch, or bytes of a node
+				int limit = node.branchIndex != -1 ? node.branchIndex : node.bytes.length;
+				
+				// Collect entries exactly like read() would find them
+				nodes[base + Frozen.DATA_START] = entryCount;
+				int lastPosition = -1;
+				DataEntry<T> entry = node.firstEntry;
+				for (int j = 0; j < limit; j++) {
+					while (entry != null && entry.index == node.nodeStart + j) {
+						dataPositions[entryCount] = j;
+						data[entryCount] = entry.data;
+						ids[entryCount] = entry.id;
+						entryCount++;
+						lastPosition = j;
+						entry = entry.after;
+					}
+				}
+				nodes[base + Frozen.DATA_END] = entryCount;
+				
+				// Bytes after last data entry do not matter, unless there is a branch
+				int length = node.branchIndex != -1 ? node.branchIndex + 1 : lastPosition + 1;
+				nodes[base + Frozen.OFFSET] = bytes.size();
+				nodes[base + Frozen.LENGTH] = length;
+				bytes.write(node.bytes, 0, length);
+				
+				nodes[base + Frozen.BRANCH_INDEX] = node.branchIndex;
+				nodes[base + Frozen.BRANCH_BIT] = node.branchBit;
+				boolean branches = node.branchIndex != -1;
+				nodes[base + Frozen.BRANCH0] = branches && node.branch0 != null ? indices.get(node.branch0) : -1;
+				nodes[base + Frozen.BRANCH1] = branches && node.branch1 != null ? indices.get(node.branch1) : -1;
+			}
+			
+			return new Frozen<>(nodes, bytes.toByteArray(), Arrays.copyOf(dataPositions, entryCount),
+					Arrays.copyOf(data, entryCount), Arrays.copyOf(ids, entryCount));
 		}
 	}
 	
@@ -325,45 +578,126 @@ public class RadixTree<T> {
 	private final Class<T> type;
 	
 	/**
-	 * Root node of this tree.
+	 * Root node of this tree, or null if it has been frozen.
+	 */
+	private volatile Node<T> root;
+	
+	/**
+	 * Frozen representation of this tree, or null if it has not been frozen.
+	 * It is always set before {@link #root} is cleared.
 	 */
-	private final Node<T> root;
+	private volatile Frozen<T> frozen;
 	
+	/**
+	 * Initial size of {@link #values}.
+	 */
+	private static final int INITIAL_VALUES = 16;
+	
+	/**
+	 * Values in order they were put to this tree.
+	 */
+	private T[] values;
+	
+	/**
+	 * Amount of values in this tree.
+	 */
+	private int size;
+	
+	@SuppressWarnings("unchecked")
 	public RadixTree(Class<T> type) {
 		this.type = type;
 		this.root = new Node<>(0);
 		root.bytes = new byte[Node.INITIAL_SIZE];
+		this.values = (T[]) Array.newInstance(type, INITIAL_VALUES);
 	}
 	
 	/**
 	 * Puts data to this tree.
 	 * @param key Key for the data.
 	 * @param data The data.
+	 * @return Index of the data.
+	 * @throws IllegalStateException When this tree is frozen.
 	 */
-	public void put(byte[] key, T data) {
-		root.write(key, 0, data);
+	public int put(byte[] key, T data) {
+		if (frozen != null) {
+			throw new IllegalStateException("tree is frozen");
+		}
+		if (size == values.length) { // Enlarge array
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size] = data;
+		root.write(key, 0, new DataEntry<>(key.length - 1, data, size));
+		return size++;
 	}
 	
 	/**
 	 * Puts data to this tree.
 	 * @param key Key for the data.
 	 * @param data The data.
+	 * @return Index of the data.
+	 * @throws IllegalStateException When this tree is frozen.
+	 */
+	public int put(String key, T data) {
+		return put(key.getBytes(StandardCharsets.UTF_8), data);
+	}
+	
+	/**
+	 * Gets data by its index.
+	 * @param index Index that was returned when the data was put.
+	 * @return The data.
+	 * @throws IndexOutOfBoundsException When there is no data with the
+	 * index.
 	 */
-	public void put(String key, T data) {
-		put(key.getBytes(StandardCharsets.UTF_8), data);
+	public T getValue(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("no value at " + index);
+		}
+		return values[index];
+	}
+	
+	/**
+	 * Freezes this tree. Nodes are flattened to a few arrays, which makes
+	 * lookups faster, but no more data can be put to the tree. Calling this
+	 * on a tree that is already frozen does nothing. This should be called
+	 * before the tree is shared between threads.
+	 * @return This tree.
+	 */
+	public RadixTree<T> freeze() {
+		if (frozen == null) {
+			values = Arrays.copyOf(values, size);
+			frozen = new Freezer<T>().freeze(type, root, size);
+			root = null; // Not needed anymore
+		}
+		return this;
+	}
+	
+	/**
+	 * Checks if this tree has been {@link #freeze() frozen}.
+	 * @return Whether this tree is frozen.
+	 */
+	public boolean isFrozen() {
+		return frozen != null;
+	}
+	
+	/**
+	 * Gets how many values have been put to this tree.
+	 * @return Count of values.
+	 */
+	public int size() {
+		return size;
 	}
 	
 	/**
-	 * How many results can be returned. TODO don't use a fixed-size array
+	 * Initial size of result arrays.
 	 */
-	private static final int MAX_RESULTS = 128;
+	private static final int INITIAL_RESULTS = 16;
 	
 	/**
 	 * Collects values found from the tree.
 	 *
 	 */
 	@SuppressWarnings("unchecked") // We're not exposing our unsafe stuff in public API
-	private static class ResultCollector<T> {
+	private static class ResultCollector<T> implements Consumer<T> {
 		
 		/**
 		 * Type of components in array.
@@ -371,9 +705,9 @@ public class RadixTree<T> {
 		private final Class<T> type;
 		
 		/**
-		 * Backing array.
+		 * Backing array. This grows as needed.
 		 */
-		private final T[] array;
+		private T[] array;
 		
 		/**
 		 * Amount of results in the array.
@@ -382,14 +716,18 @@ public class RadixTree<T> {
 		
 		ResultCollector(Class<T> type) {
 			this.type = type;
-			this.array = (T[]) Array.newInstance(type, MAX_RESULTS);
+			this.array = (T[]) Array.newInstance(type, INITIAL_RESULTS);
 		}
 		
 		/**
 		 * Adds a result to this collector.
 		 * @param result Result value.
 		 */
-		public void add(T result) {
+		@Override
+		public void accept(T result) {
+			if (count == array.length) { // Enlarge array
+				array = Arrays.copyOf(array, count * 2);
+			}
 			array[count++] = result;
 		}
 		
@@ -425,10 +763,21 @@ public class RadixTree<T> {
 			collector = new ResultCollector<>(type);
 			resultCollector.set(collector);
 		}
-		root.read(collector, key, start);
+		read(collector, null, key, start);
 		return collector.copyAndReset();
 	}
 	
+	/**
+	 * Gives all data that is the given key or prefix of it to a sink. Data
+	 * with shorter keys is given first.
+	 * @param key Key for the data.
+	 * @param start Index of first byte of the key.
+	 * @param sink Sink that receives the data.
+	 */
+	public void get(byte[] key, int start, Consumer<? super T> sink) {
+		read(sink, null, key, start);
+	}
+	
 	/**
 	 * Gets all data that is the given key or prefix of it.
 	 * @param key Key for the data.
@@ -437,4 +786,37 @@ public class RadixTree<T> {
 	public T[] get(String key) {
 		return get(key.getBytes(StandardCharsets.UTF_8), 0);
 	}
+	
+	/**
+	 * Gives indices of all data that is the given key or prefix of it to a
+	 * sink. Data with shorter keys is given first.
+	 * @param key Key for the data.
+	 * @param start Index of first byte of the key.
+	 * @param sink Sink that receives indices of the data.
+	 * @see #getValue(int)
+	 */
+	public void getIndices(byte[] key, int start, IntConsumer sink) {
+		read(null, sink, key, start);
+	}
+	
+	/**
+	 * Reads data from nodes or frozen representation of this tree.
+	 * @param values Sink for values, or null.
+	 * @param indices Sink for indices of values, used if there is no sink
+	 * for values.
+	 * @param key Key to search with.
+	 * @param start Index of first byte of the key.
+	 */
+	private void read(Consumer<? super T> values, IntConsumer indices, byte[] key, int start) {
+		Frozen<T> flat = frozen; // Read fields once, in case freeze() runs concurrently
+		if (flat == null) {
+			Node<T> nodes = root;
+			if (nodes != null) {
+				nodes.read(values, indices, key, start);
+				return;
+			}
+			flat = frozen; // Frozen since the first check
+		}
+		flat.read(values, indices, key, start);
+	}
 }
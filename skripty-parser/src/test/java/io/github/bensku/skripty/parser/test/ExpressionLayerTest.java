@@ -1,6 +1,7 @@
 package io.github.bensku.skripty.parser.test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.nio.charset.StandardCharsets;
 
@@ -32,6 +33,16 @@ public class ExpressionLayerTest {
 		assertEquals(nullExpr, layer.lookupFirst("null".getBytes(StandardCharsets.UTF_8), 0)[0].getExpression());
 	}
 	
+	@Test
+	public void frozen() {
+		ExpressionLayer layer = new ExpressionLayer();
+		ConstantExpression nullExpr = registry.makeConstant(SkriptType.create(Object.class), null);
+		layer.register(nullExpr, Pattern.create("null"));
+		layer.freeze();
+		assertEquals(nullExpr, layer.lookupFirst("null".getBytes(StandardCharsets.UTF_8), 0)[0].getExpression());
+		assertThrows(IllegalStateException.class, () -> layer.register(nullExpr, Pattern.create("nothing")));
+	}
+	
 	// Two different types backed by same Java class
 	public static final SkriptType BAR = SkriptType.create(String.class);
 	
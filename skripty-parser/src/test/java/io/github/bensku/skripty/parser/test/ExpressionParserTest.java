@@ -1,10 +1,13 @@
 package io.github.bensku.skripty.parser.test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -15,11 +18,16 @@ import io.github.bensku.skripty.core.AstNode;
 import io.github.bensku.skripty.core.expression.Expression;
 import io.github.bensku.skripty.core.expression.ExpressionRegistry;
 import io.github.bensku.skripty.core.expression.InputType;
+import io.github.bensku.skripty.core.flow.ScopeEntry;
 import io.github.bensku.skripty.core.type.SkriptType;
 import io.github.bensku.skripty.parser.expression.ExpressionLayer;
 import io.github.bensku.skripty.parser.expression.ExpressionParser;
 import io.github.bensku.skripty.parser.expression.LiteralParser;
+import io.github.bensku.skripty.parser.log.ParseResult;
 import io.github.bensku.skripty.parser.pattern.Pattern;
+import io.github.bensku.skripty.parser.script.Scope;
+import io.github.bensku.skripty.parser.script.ScopeRegistry;
+import io.github.bensku.skripty.parser.script.SourceNode;
 
 @TestInstance(Lifecycle.PER_METHOD) // Clean state for every test, just in case...
 public class ExpressionParserTest {
@@ -208,4 +216,117 @@ public class ExpressionParserTest {
 		parseAll("consume literal", exprConsume);
 		parseAll("consume first literal second-expr second", exprConsume);
 	}
+	
+	@Test
+	public void memoized() {
+		// Patterns with same start both want an input at same position
+		ExpressionLayer layer = new ExpressionLayer();
+		layer.register(constantStr, Pattern.create("string constant"));
+		layer.register(exprConsume, Pattern.create("consume ", 0));
+		layer.register(exprFirst, Pattern.create("first-expr ", 0));
+		ExpressionLayer otherLayer = new ExpressionLayer();
+		otherLayer.register(exprLiteralParts, Pattern.create("consume ", 0, " second"));
+		
+		// Yet each position should be parsed only once
+		Set<Integer> starts = new HashSet<>();
+		LiteralParser counting = (state, input, start) -> {
+			assertTrue(starts.add(start), "parsed twice at " + start);
+			return null;
+		};
+		ExpressionParser memoizing = new ExpressionParser(new LiteralParser[] {counting}, layer, otherLayer);
+		byte[] bytes = "consume consume first-expr string constant second".getBytes(StandardCharsets.UTF_8);
+		List<ExpressionParser.Result> results = memoizing.parse(null, bytes, 0, VOID);
+		assertEquals(1, results.size());
+		assertEquals(bytes.length, results.get(0).getEnd());
+	}
+	
+	@Test
+	public void reentrant() {
+		// Literal parsers may call expression parser while it is parsing
+		byte[] nested = "string constant".getBytes(StandardCharsets.UTF_8);
+		ExpressionParser[] self = new ExpressionParser[1];
+		LiteralParser parsing = (state, input, start) -> {
+			if (input.length - start < 2 || input[start] != '(' || input[input.length - 1] != ')') {
+				return null;
+			}
+			List<ExpressionParser.Result> results = self[0].parse(state, nested, 0, TEXT);
+			return new LiteralParser.Result(results.get(0).getNode(), input.length);
+		};
+		ExpressionLayer layer = new ExpressionLayer();
+		layer.register(constantStr, Pattern.create("string constant"));
+		layer.register(exprConsume, Pattern.create("consume ", 0));
+		layer.register(exprInputs2, Pattern.create("two inputs ", 0, 1));
+		self[0] = new ExpressionParser(new LiteralParser[] {parsing}, layer);
+		
+		// First input has been parsed when the literal parser is called
+		byte[] bytes = "consume two inputs string constant(anything)".getBytes(StandardCharsets.UTF_8);
+		List<ExpressionParser.Result> results = self[0].parse(null, bytes, 0, VOID);
+		assertEquals(1, results.size());
+		AstNode.Expr node = (AstNode.Expr) results.get(0).getNode();
+		assertEquals(exprConsume, node.getExpression());
+		AstNode[] inputs = ((AstNode.Expr) node.getInputs()[0]).getInputs();
+		assertEquals(constantStr, ((AstNode.Expr) inputs[0]).getExpression());
+		assertEquals(constantStr, ((AstNode.Expr) inputs[1]).getExpression());
+	}
+	
+	@Test
+	public void chart() {
+		parser = parser.withFlags(ExpressionParser.CHART);
+		assertTrue(parser.hasFlag(ExpressionParser.CHART));
+		parseAll("string constant", constantStr);
+		parseAll("first-expr first-expr string constant", exprFirst);
+		parseAll("consume string constant second-expr second-expr", exprConsume);
+		parseAll("consume string constant input string constant", exprConsume);
+		parseAll("consume two inputs string constantstring constant", exprConsume);
+		parseAll("consume first literal second-expr second", exprConsume);
+		
+		byte[] expr = "consume consume string constant".getBytes(StandardCharsets.UTF_8);
+		assertTrue(parser.parse(null, expr, 0, VOID).isEmpty());
+		ExpressionParser typeless = parser.withFlags(ExpressionParser.CHART | ExpressionParser.IGNORE_TYPES);
+		List<ExpressionParser.Result> results = typeless.parse(null, expr, 0, VOID);
+		assertEquals(expr.length, results.get(0).getEnd()); // Longest first
+		assertEquals(exprConsume, ((AstNode.Expr) results.get(0).getNode()).getExpression());
+	}
+	
+	@Test
+	public void chartScope() {
+		ExpressionRegistry registry = new ExpressionRegistry();
+		Expression scopeIf = registry.makeCallable(this)
+				.inputTypes(new InputType(true, TEXT))
+				.returnType(ScopeEntry.TYPE)
+				.callTargets()
+				.create();
+		ExpressionLayer layer = new ExpressionLayer();
+		layer.register(scopeIf, Pattern.create("if ", 0));
+		layer.register(constantStr, Pattern.create("string constant"));
+		layer.register(exprInputs, Pattern.create(0, " input ", 1));
+		ExpressionParser titleParser = new ExpressionParser(new LiteralParser[0], new ExpressionLayer[] {layer})
+				.withFlags(ExpressionParser.CHART);
+		ScopeRegistry scopes = new ScopeRegistry(registry);
+		Scope inner = new Scope(null, null, null);
+		scopes.register(scopeIf, inner);
+		Scope scope = new Scope(titleParser, scopes, null);
+		
+		// "if string constant" is also a valid scope title, but not whole of it
+		ParseResult<Scope.InnerScope> result = scope.parseScope(null,
+				new SourceNode.Statement(1, "if string constant input string constant", null));
+		assertTrue(result.isSuccess());
+		assertEquals(inner, result.getResult().getScope());
+		AstNode.Expr input = (AstNode.Expr) result.getResult().getTitle().getInputs()[0];
+		assertEquals(exprInputs, input.getExpression());
+		
+		// Titles with trailing text are not accepted
+		assertFalse(scope.parseScope(null, new SourceNode.Statement(1, "if string constant input", null)).isSuccess());
+	}
+	
+	@Test
+	public void chartAmbiguous() {
+		// Every way to group these is valid; there are exponentially many of them
+		StringBuilder sb = new StringBuilder("string constant");
+		for (int i = 0; i < 30; i++) {
+			sb.append(" input string constant");
+		}
+		parser = parser.withFlags(ExpressionParser.CHART);
+		parseAll(sb.toString(), exprInputs);
+	}
 }
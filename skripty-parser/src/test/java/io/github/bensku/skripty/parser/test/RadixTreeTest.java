@@ -1,9 +1,15 @@
 package io.github.bensku.skripty.parser.test;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
@@ -83,4 +89,80 @@ public class RadixTreeTest {
 		Integer[] results = intTree.get("one"); // Should not throw CCE
 		assertEquals(1, results[0]);
 	}
+	
+	@Test
+	public void sameKey() {
+		Object marker1 = new Object();
+		tree.put("alpha", marker1);
+		Object marker2 = new Object();
+		tree.put("alpha", marker2);
+		
+		Object[] results = tree.get("alpha beta");
+		assertEquals(2, results.length);
+		assertTrue(ArrayHelpers.contains(results, marker1));
+		assertTrue(ArrayHelpers.contains(results, marker2));
+	}
+	
+	@Test
+	public void sink() {
+		Object marker1 = new Object();
+		assertEquals(0, tree.put("alpha", marker1));
+		Object marker2 = new Object();
+		assertEquals(1, tree.put("alpha beta", marker2));
+		tree.put("gamma", new Object());
+		
+		byte[] key = "xalpha beta".getBytes(StandardCharsets.UTF_8);
+		List<Object> results = new ArrayList<>();
+		tree.get(key, 1, results::add);
+		assertEquals(Arrays.asList(marker1, marker2), results); // Shorter keys first
+		
+		List<Integer> indices = new ArrayList<>();
+		tree.getIndices(key, 1, indices::add);
+		assertEquals(Arrays.asList(0, 1), indices);
+		assertEquals(marker2, tree.getValue(1));
+		assertEquals(3, tree.size());
+	}
+	
+	@Test
+	public void manyResults() {
+		// Every prefix of a long key has a value
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			key.append('a');
+			tree.put(key.toString(), i);
+		}
+		Object[] results = tree.get(key.toString());
+		assertEquals(300, results.length);
+		assertEquals(299, results[299]);
+	}
+	
+	@Test
+	public void frozen() {
+		// Random keys from a small alphabet share a lot of prefixes
+		Random rng = new Random(1234);
+		String[] keys = new String[500];
+		for (int i = 0; i < keys.length; i++) {
+			StringBuilder sb = new StringBuilder();
+			int length = rng.nextInt(10) + 1;
+			for (int j = 0; j < length; j++) {
+				sb.append((char) ('a' + rng.nextInt(4)));
+			}
+			keys[i] = sb.toString();
+			tree.put(keys[i], i);
+		}
+		
+		// Frozen tree must find exactly same values, in same order
+		Object[][] expected = new Object[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			expected[i] = tree.get(keys[i] + "abcd");
+		}
+		assertTrue(tree.freeze().isFrozen());
+		for (int i = 0; i < keys.length; i++) {
+			assertArrayEquals(expected[i], tree.get(keys[i] + "abcd"));
+		}
+		assertEquals(0, tree.get("xyz").length);
+		
+		assertThrows(IllegalStateException.class, () -> tree.put("abc", new Object()));
+		assertEquals(tree, tree.freeze()); // Freezing twice is fine
+	}
 }
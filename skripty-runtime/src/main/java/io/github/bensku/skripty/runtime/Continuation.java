@@ -0,0 +1,145 @@
+package io.github.bensku.skripty.runtime;
+
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+
+/**
+ * State of a block that was run with an instruction budget. If the block
+ * used up its budget before it completed, it was suspended, and can be
+ * {@link ScriptRunner#resume(Continuation, int) resumed} later. Otherwise,
+ * this contains the result of the block.
+ *
+ * <p>Continuations contain a copy of the stack of the suspended block, so
+ * they can be resumed on any thread. Each continuation should be resumed
+ * only once; resuming it again would repeat what the block did after
+ * being resumed first time.
+ *
+ * <p>Blocks are suspended also before calls that may block, when they
+ * are run with a budget; see {@link #isBlocked()}.
+ *
+ * @param <T> Type of runner state.
+ */
+public final class Continuation<T extends RunnerState> {
+
+	/**
+	 * Creates a continuation of a completed block.
+	 * @param <T> Type of runner state.
+	 * @param result Value returned by the block.
+	 * @return A completed continuation.
+	 */
+	static <T extends RunnerState> Continuation<T> done(Object result) {
+		return new Continuation<>(null, null, -1, false, null, null, result);
+	}
+
+	/**
+	 * Creates a continuation of a suspended block.
+	 * @param <T> Type of runner state.
+	 * @param block IR block.
+	 * @param state Runner state of the block.
+	 * @param index Index of node to continue from.
+	 * @param blocked If the next node is a call that may block.
+	 * @param stack Values in normal lane of the stack.
+	 * @param primitives Values in primitive lane of the stack.
+	 * @return A suspended continuation.
+	 */
+	static <T extends RunnerState> Continuation<T> suspended(IrBlock block, T state, int index, boolean blocked,
+			Object[] stack, long[] primitives) {
+		return new Continuation<>(block, state, index, blocked, stack, primitives, null);
+	}
+
+	/**
+	 * The block, or null if it has completed.
+	 */
+	private final IrBlock block;
+
+	/**
+	 * Runner state given to the block.
+	 */
+	private final T state;
+
+	/**
+	 * Index of the node that execution continues from.
+	 */
+	private final int index;
+
+	/**
+	 * If the block was suspended before a call that may block.
+	 */
+	private final boolean blocked;
+
+	/**
+	 * Stack contents, from bottom to top.
+	 */
+	private final Object[] stack;
+
+	/**
+	 * Primitive lanes of stack contents.
+	 */
+	private final long[] primitives;
+
+	/**
+	 * Value returned by the block, if it has completed.
+	 */
+	private final Object result;
+
+	private Continuation(IrBlock block, T state, int index, boolean blocked, Object[] stack, long[] primitives,
+			Object result) {
+		this.block = block;
+		this.state = state;
+		this.index = index;
+		this.blocked = blocked;
+		this.stack = stack;
+		this.primitives = primitives;
+		this.result = result;
+	}
+
+	/**
+	 * Checks if the block has completed.
+	 * @return Whether the block has completed.
+	 */
+	public boolean isDone() {
+		return block == null;
+	}
+
+	/**
+	 * Checks if the block was suspended before a call that may block. Such
+	 * blocks should be resumed on a thread where blocking is acceptable.
+	 * They are suspended again after the call, when their budget runs out.
+	 * @return Whether the block is waiting to make a blocking call.
+	 */
+	public boolean isBlocked() {
+		return blocked;
+	}
+
+	/**
+	 * Gets the value that the block returned.
+	 * @return Return value, or null if the block did not return anything.
+	 * @throws IllegalStateException When the block has not completed.
+	 */
+	public Object getResult() {
+		if (!isDone()) {
+			throw new IllegalStateException("block is suspended");
+		}
+		return result;
+	}
+
+	IrBlock getBlock() {
+		return block;
+	}
+
+	T getState() {
+		return state;
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	Object[] getStack() {
+		return stack;
+	}
+
+	long[] getPrimitives() {
+		return primitives;
+	}
+}
@@ -0,0 +1,67 @@
+package io.github.bensku.skripty.runtime;
+
+import io.github.bensku.skripty.core.RunnerState;
+
+/**
+ * Outcome of running a block for one runner state in a
+ * {@link ScriptRunner#runAll(io.github.bensku.skripty.runtime.ir.IrBlock,
+ * java.util.Collection) batch}. The block either returned a value or threw
+ * something.
+ *
+ * @param <T> Type of runner state.
+ */
+public final class RunResult<T extends RunnerState> {
+
+	/**
+	 * Runner state that the block was run with.
+	 */
+	private final T state;
+
+	/**
+	 * Value that the block returned.
+	 */
+	private final Object value;
+
+	/**
+	 * What the block threw, or null if it returned normally.
+	 */
+	private final Throwable failure;
+
+	RunResult(T state, Object value, Throwable failure) {
+		this.state = state;
+		this.value = value;
+		this.failure = failure;
+	}
+
+	public T getState() {
+		return state;
+	}
+
+	/**
+	 * Checks if the block returned normally.
+	 * @return Whether the block did not throw.
+	 */
+	public boolean isSuccess() {
+		return failure == null;
+	}
+
+	/**
+	 * Gets the value that the block returned.
+	 * @return Return value, or null if the block did not return anything.
+	 * @throws IllegalStateException When the block threw instead.
+	 */
+	public Object getValue() {
+		if (failure != null) {
+			throw new IllegalStateException("block failed", failure);
+		}
+		return value;
+	}
+
+	/**
+	 * Gets what the block threw.
+	 * @return Failure, or null if the block returned normally.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+}
@@ -1,78 +1,703 @@
 package io.github.bensku.skripty.runtime;
 
 import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.core.ScriptException;
+import io.github.bensku.skripty.runtime.bytecode.BytecodeCompiler;
+import io.github.bensku.skripty.runtime.bytecode.CompiledBlock;
+import io.github.bensku.skripty.runtime.ir.CompactBlock;
 import io.github.bensku.skripty.runtime.ir.IrBlock;
 import io.github.bensku.skripty.runtime.ir.IrNode;
 import io.github.bensku.skripty.runtime.ir.Opcodes;
 
 /**
- * Executes {@link IrBlock IR blocks}.
+ * Executes {@link IrBlock IR blocks}, or their {@link CompactBlock compact}
+ * versions. {@link TieredBlock Tiered blocks} are interpreted until they
+ * become hot, after which compiled versions of them are executed.
  *
  */
 public class ScriptRunner<T extends RunnerState> {
 	
 	/**
-	 * Stack size of blocks.
+	 * How many parts per worker thread {@link #runAll(IrBlock, Collection)
+	 * batches} are split into. Having more parts than threads lets workers
+	 * that finish early steal work from others.
+	 */
+	private static final int SPLITS_PER_WORKER = 4;
+	
+	/**
+	 * Stacks of threads that have used this runner. Blocks executed by same
+	 * thread share a stack. If a block is executed while another is running
+	 * (e.g. from a method that a script called), its values are placed on
+	 * top of values of the outer block.
+	 */
+	private final ThreadLocal<ScriptStack> stacks;
+	
+	/**
+	 * Executor that compiles hot {@link TieredBlock tiered blocks}, or null
+	 * if they should always be interpreted.
+	 */
+	private final Executor compilerExecutor;
+	
+	/**
+	 * Hotness after which tiered blocks are compiled.
 	 */
-	private final int stackSize;
+	private final int compileThreshold;
 	
+	/**
+	 * Compiler for hot blocks.
+	 */
+	private final BytecodeCompiler compiler;
+	
+	/**
+	 * Creates a new script runner that always interprets blocks.
+	 * @param stackSize Initial stack size. Stacks are enlarged as needed
+	 * based on {@link IrBlock#getMaxStack() needs of blocks}.
+	 */
 	public ScriptRunner(int stackSize) {
-		this.stackSize = stackSize;
+		this(stackSize, null, 0);
+	}
+	
+	/**
+	 * Creates a new script runner that compiles hot
+	 * {@link TieredBlock tiered blocks} to bytecode.
+	 * @param stackSize Initial stack size. Stacks are enlarged as needed
+	 * based on {@link IrBlock#getMaxStack() needs of blocks}.
+	 * @param compilerExecutor Executor that blocks are compiled in, or null
+	 * to never compile them.
+	 * @param compileThreshold How many invocations and taken back-edges a
+	 * block may have before it is compiled.
+	 * @throws IllegalArgumentException When the threshold is negative.
+	 */
+	public ScriptRunner(int stackSize, Executor compilerExecutor, int compileThreshold) {
+		if (compileThreshold < 0) {
+			throw new IllegalArgumentException("negative compile threshold");
+		}
+		this.stacks = ThreadLocal.withInitial(() -> new ScriptStack(stackSize));
+		this.compilerExecutor = compilerExecutor;
+		this.compileThreshold = compileThreshold;
+		this.compiler = new BytecodeCompiler();
 	}
 
 	public Object run(IrBlock block, T state) throws Throwable {
+		return interpret(block, state, null);
+	}
+	
+	/**
+	 * Runs a tiered block. If it has been compiled, the compiled version is
+	 * executed. Otherwise, it is interpreted, and possibly queued for
+	 * compilation.
+	 * @param block Tiered block.
+	 * @param state Runner state.
+	 * @return Value returned by the block, or null.
+	 * @throws Throwable Anything that expressions called by the block throw.
+	 */
+	public Object run(TieredBlock<T> block, T state) throws Throwable {
+		CompiledBlock<T> compiled = block.getCompiled();
+		if (compiled == null) {
+			recordHotness(block, 1);
+			compiled = block.getCompiled(); // Executor might have compiled it already
+		}
+		if (compiled != null) {
+			return compiled.run(state);
+		}
+		return interpret(block.getBlock(), state, block);
+	}
+	
+	public Object run(CompactBlock block, T state) throws Throwable {
+		ScriptStack stack = stacks.get();
+		int base = stack.size();
+		int maxStack = block.getMaxStack();
+		stack.ensureFree(maxStack);
+		try {
+			return execute(block, state, stack, base);
+		} finally {
+			stack.unwind(base, maxStack);
+		}
+	}
+	
+	/**
+	 * Runs a block once for each of given runner states, in parallel on the
+	 * {@link ForkJoinPool#commonPool() common pool}.
+	 * @param block IR block. It is {@link IrBlock#seal() sealed} if it was not
+	 * already.
+	 * @param states Runner states.
+	 * @return Results in iteration order of the states.
+	 * @throws IllegalArgumentException When the block is not valid.
+	 * @see #runAll(IrBlock, Collection, ForkJoinPool)
+	 */
+	public List<RunResult<T>> runAll(IrBlock block, Collection<? extends T> states) {
+		return runAll(block, states, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Runs a block once for each of given runner states, in parallel. The
+	 * states are split into ranges that workers of the pool run; each worker
+	 * reuses its stack between the states. If the block throws for a state,
+	 * the failure is recorded in its result, and other states are still run.
+	 * @param block IR block. It is {@link IrBlock#seal() sealed} if it was not
+	 * already.
+	 * @param states Runner states.
+	 * @param pool Pool to run the block in.
+	 * @return Results in iteration order of the states.
+	 * @throws IllegalArgumentException When the block is not valid.
+	 */
+	public List<RunResult<T>> runAll(IrBlock block, Collection<? extends T> states, ForkJoinPool pool) {
+		block.seal(); // Verify once, not once per worker
+		@SuppressWarnings("unchecked")
+		T[] inputs = (T[]) states.toArray(new RunnerState[0]);
+		List<RunResult<T>> results = new ArrayList<>(Collections.nCopies(inputs.length, null));
+		int grain = Math.max(1, inputs.length / (pool.getParallelism() * SPLITS_PER_WORKER));
+		pool.invoke(new Batch(block, inputs, results, 0, inputs.length, grain)); // Workers set disjoint indices
+		return results;
+	}
+	
+	/**
+	 * Part of a {@link ScriptRunner#runAll(IrBlock, Collection) batch}.
+	 * Large parts are split in halves, small parts are run one state at time.
+	 *
+	 */
+	private final class Batch extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final transient IrBlock block;
+		private final transient T[] states;
+		private final transient List<RunResult<T>> results;
+		private final int start;
+		private final int end;
+		private final int grain;
+		
+		Batch(IrBlock block, T[] states, List<RunResult<T>> results, int start, int end, int grain) {
+			this.block = block;
+			this.states = states;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > grain) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new Batch(block, states, results, start, middle, grain),
+						new Batch(block, states, results, middle, end, grain));
+				return;
+			}
+			for (int i = start; i < end; i++) {
+				T state = states[i];
+				try {
+					results.set(i, new RunResult<>(state, interpret(block, state, null), null));
+				} catch (Throwable e) {
+					results.set(i, new RunResult<>(state, null, e));
+				}
+			}
+		}
+	}
+	
+	private Object interpret(IrBlock block, T state, TieredBlock<T> tiered) throws Throwable {
+		ScriptStack stack = stacks.get();
+		int base = stack.size(); // Non-zero if another block is running
+		int maxStack = block.getMaxStack();
+		stack.ensureFree(maxStack);
+		try {
+			return execute(block, state, stack, base, 0, tiered, -1);
+		} finally {
+			stack.unwind(base, maxStack);
+		}
+	}
+	
+	private Continuation<T> interpret(IrBlock block, T state, int start, Object[] values, long[] primitives,
+			int budget) throws Throwable {
+		if (budget < 0) {
+			throw new IllegalArgumentException("negative budget");
+		}
+		ScriptStack stack = stacks.get();
+		int base = stack.size();
+		int maxStack = block.getMaxStack();
+		stack.ensureFree(maxStack);
+		try {
+			for (int i = 0; i < values.length; i++) { // Restore stack of suspended block
+				stack.push(values[i], primitives[i]);
+			}
+			Object result = execute(block, state, stack, base, start, null, budget);
+			if (result instanceof Suspension) { // Save stack for resuming later
+				int height = stack.size() - base;
+				Suspension suspension = (Suspension) result;
+				return Continuation.suspended(block, state, suspension.index, suspension.blocked, stack.peek(height),
+						stack.peekPrimitives(height));
+			}
+			return Continuation.done(result);
+		} finally {
+			stack.unwind(base, maxStack);
+		}
+	}
+	
+	/**
+	 * Starts running a block with an instruction budget. The budget is
+	 * checked when loops jump back to their start; if it has been used up,
+	 * the block is suspended.
+	 * @param block IR block.
+	 * @param state Runner state.
+	 * @param budget How many times loops may jump back before the block is
+	 * suspended.
+	 * @return Continuation that contains either result of the block, or
+	 * state of it for resuming it later.
+	 * @throws IllegalArgumentException When the budget is negative.
+	 * @throws Throwable Anything that expressions called by the block throw.
+	 */
+	public Continuation<T> start(IrBlock block, T state, int budget) throws Throwable {
+		return interpret(block, state, 0, new Object[0], new long[0], budget);
+	}
+	
+	/**
+	 * Resumes a suspended block with a new instruction budget.
+	 * @param continuation Continuation of a suspended block.
+	 * @param budget How many times loops may jump back before the block is
+	 * suspended again.
+	 * @return New continuation.
+	 * @throws IllegalArgumentException When the budget is negative or the
+	 * block has already completed.
+	 * @throws Throwable Anything that expressions called by the block throw.
+	 * @see #start(IrBlock, RunnerState, int)
+	 */
+	public Continuation<T> resume(Continuation<T> continuation, int budget) throws Throwable {
+		if (continuation.isDone()) {
+			throw new IllegalArgumentException("block has already completed");
+		}
+		return interpret(continuation.getBlock(), continuation.getState(), continuation.getIndex(),
+				continuation.getStack(), continuation.getPrimitives(), budget);
+	}
+	
+	/**
+	 * Increases hotness of a tiered block, and queues it for compilation if
+	 * it became hot enough.
+	 * @param block Tiered block.
+	 * @param amount How much to add to hotness.
+	 */
+	private void recordHotness(TieredBlock<T> block, int amount) {
+		if (block.isUncompilable()) {
+			return; // Will never be compiled, don't bother profiling it
+		}
+		if (block.addHotness(amount) >= compileThreshold && compilerExecutor != null && block.markQueued()) {
+			compilerExecutor.execute(() -> {
+				try {
+					block.setCompiled(compiler.compile(block.getBlock()));
+				} catch (IllegalArgumentException e) {
+					block.markUncompilable(); // Keep interpreting it
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Handles an exception that a node of an IR block threw. If the node is
+	 * in a try region, the stack is reset for its handler. Otherwise, the
+	 * exception is rethrown.
+	 * @param block IR block.
+	 * @param stack Stack.
+	 * @param base Stack height where the block starts.
+	 * @param index Index of the node that threw.
+	 * @param e What the node threw.
+	 * @return Index of the node to continue from.
+	 * @throws Throwable When there is no handler for the exception.
+	 */
+	private int handleException(IrBlock block, ScriptStack stack, int base, int index, Throwable e)
+			throws Throwable {
+		int handler = block.findHandler(index);
+		if (handler == -1 || e instanceof Error) {
+			throw locate(e, index, block.getLine(index));
+		}
+		stack.drop(stack.size() - base - block.getHandlerHeight(handler));
+		stack.push(locate(toScriptException(e), index, block.getLine(index)));
+		return block.getHandler(handler).getTarget();
+	}
+	
+	/**
+	 * Handles an exception that an instruction of a compact block threw.
+	 * @param block Compact block.
+	 * @param stack Stack.
+	 * @param base Stack height where the block starts.
+	 * @param pc Offset of the instruction that threw.
+	 * @param e What the instruction threw.
+	 * @return Offset of the instruction to continue from.
+	 * @throws Throwable When there is no handler for the exception.
+	 * @see #handleException(IrBlock, ScriptStack, int, int, Throwable)
+	 */
+	private int handleException(CompactBlock block, ScriptStack stack, int base, int pc, Throwable e)
+			throws Throwable {
+		int handler = block.findHandler(pc);
+		if (handler == -1 || e instanceof Error) {
+			throw locate(e, pc, block.getLine(pc));
+		}
+		stack.drop(stack.size() - base - block.getHandlerHeight(handler));
+		stack.push(locate(toScriptException(e), pc, block.getLine(pc)));
+		return block.getHandlerTarget(handler);
+	}
+	
+	/**
+	 * Wraps an exception in a script exception, unless it already is one.
+	 * @param e Exception.
+	 * @return Script exception.
+	 */
+	private static ScriptException toScriptException(Throwable e) {
+		return e instanceof ScriptException ? (ScriptException) e : new ScriptException(e.toString(), e);
+	}
+	
+	/**
+	 * Records location of a script exception, if it does not yet have one.
+	 * Other throwables are not touched.
+	 * @param e Exception.
+	 * @param index Where the exception was thrown.
+	 * @param line Source line of that, or -1.
+	 * @return The exception.
+	 */
+	private static <E extends Throwable> E locate(E e, int index, int line) {
+		if (e instanceof ScriptException) {
+			((ScriptException) e).setLocation(index, line);
+		}
+		return e;
+	}
+	
+	/**
+	 * Marks that a block used up its instruction budget, or reached a
+	 * {@link IrNode.SuspendPoint suspend point}.
+	 */
+	private static final class Suspension {
+		
+		/**
+		 * Index of node to continue from.
+		 */
+		final int index;
+		
+		/**
+		 * If the block was suspended before a blocking call.
+		 */
+		final boolean blocked;
+		
+		Suspension(int index, boolean blocked) {
+			this.index = index;
+			this.blocked = blocked;
+		}
+	}
+	
+	/**
+	 * Executes an IR block.
+	 * @param block IR block.
+	 * @param state Runner state.
+	 * @param stack Stack.
+	 * @param base Stack height where the block starts.
+	 * @param start Index of node to start from.
+	 * @param tiered Tiered block that the IR block is from, or null.
+	 * @param budget How many back-edges can be taken, or -1 for no limit.
+	 * @return Value returned by block, or {@link Suspension} if the budget
+	 * was used up.
+	 * @throws Throwable Anything that expressions called by the block throw.
+	 */
+	private Object execute(IrBlock block, T state, ScriptStack stack, int base, int start, TieredBlock<T> tiered,
+			int budget) throws Throwable {
 		IrNode[] nodes = block.nodeArray(); //  Zero-copy, but might have nulls at end
 		int[] opcodes = block.opcodeArray(); // Zero-copy, zeroes at end
-		ScriptStack stack = new ScriptStack(stackSize);
+		Object[] constants = block.constantArray(); // Zero-copy, nulls at end
 		
 		// Execute all nodes
-		for (int i = 0; i < block.size();) {
+		for (int i = start; i < block.size();) {
 			int opcode = opcodes[i];
 			IrNode node = nodes[i];
 			
-			// Select what to execute based on opcode
-			// Should compile to tableswitch bytecode, which is O(1)
-			switch (opcode) {
-			case Opcodes.POP:
-				stack.pop();
+			try {
+				// Select what to execute based on opcode
+				// Should compile to tableswitch bytecode, which is O(1)
+				switch (opcode) {
+				case Opcodes.POP:
+					stack.pop();
+					break;
+				case Opcodes.LOAD_LITERAL:
+					stack.push(((IrNode.LoadLiteral) node).getValue());
+					break;
+				case Opcodes.LOAD_CONSTANT:
+					stack.push(constants[((IrNode.LoadConstant) node).getIndex()]);
+					break;
+				case Opcodes.CALL_PLAIN:
+					IrNode.CallMethod call = (IrNode.CallMethod) node;
+					stack.push(callPlain(callHandle(call), call.getArgumentCount(), stack));
+					break;
+				case Opcodes.CALL_WITH_STATE:
+					call = (IrNode.CallMethod) node;
+					stack.push(callWithState(callHandle(call), call.getArgumentCount(), state, stack));
+					break;
+				case Opcodes.LOAD_PRIMITIVE:
+					stack.pushPrimitive(((IrNode.LoadPrimitive) node).getBits());
+					break;
+				case Opcodes.CALL_LANED:
+					call = (IrNode.CallMethod) node;
+					callLaned(call.getLaneInvoker(), call.getArgumentCount(), call.hasPrimitiveReturn(), state, stack);
+					break;
+				case Opcodes.SUSPEND_POINT:
+					if (budget != -1) { // Let caller make the call on a thread that may block
+						return new Suspension(i + 1, true);
+					}
+					break;
+				case Opcodes.JUMP:
+					Object expected = ((IrNode.Jump) node).getConstant();
+					if (expected == stack.peek()) { // Jump to somewhere
+						int target = ((IrNode.Jump) node).getTarget();
+						if (target <= i && tiered != null) { // Back-edge of a loop
+							recordHotness(tiered, 1);
+							CompiledBlock<T> compiled = tiered.getCompiled();
+							if (compiled != null && compiled.canResume(target)) {
+								// Loop got hot, continue it in compiled code (on-stack replacement)
+								return compiled.resume(state, target, stack.peek(stack.size() - base));
+							}
+						}
+						if (target <= i && budget != -1) { // Check budget when looping
+							if (budget == 0) {
+								return new Suspension(target, false);
+							}
+							budget--;
+						}
+						i = target;
+						continue; // Override control flow
+					}
+					break;
+				case Opcodes.RETURN:
+					if (stack.size() == base) {
+						return null;
+					} else {
+						return stack.pop();
+					}
+				}
+				i++; // Next node
+			} catch (Throwable e) { // Free unless something is thrown
+				i = handleException(block, stack, base, i, e);
+			}
+		}
+		
+		return null; // No explicit return
+	}
+	
+	private Object execute(CompactBlock block, T state, ScriptStack stack, int base) throws Throwable {
+		int[] code = block.codeArray();
+		Object[] pool = block.poolArray();
+		
+		// Opcode is followed by its operands, if any
+		for (int pc = 0; pc < code.length;) {
+			int at = pc; // Start of current instruction
+			try {
+				switch (code[pc++]) {
+				case Opcodes.POP:
+					stack.pop();
+					break;
+				case Opcodes.LOAD_CONSTANT:
+					stack.push(pool[code[pc++]]);
+					break;
+				case Opcodes.CALL_PLAIN:
+					int argCount = code[pc++];
+					stack.push(callPlain((MethodHandle) pool[code[pc++]], argCount, stack));
+					break;
+				case Opcodes.CALL_WITH_STATE:
+					argCount = code[pc++];
+					stack.push(callWithState((MethodHandle) pool[code[pc++]], argCount, state, stack));
+					break;
+				case Opcodes.JUMP:
+					Object expected = pool[code[pc++]];
+					int target = code[pc++];
+					if (expected == stack.peek()) {
+						pc = target;
+					}
+					break;
+				case Opcodes.RETURN:
+					return stack.size() == base ? null : stack.pop();
+				case Opcodes.CALL_PLAIN_AND_POP: // Superinstructions
+					argCount = code[pc++];
+					callPlain((MethodHandle) pool[code[pc++]], argCount, stack);
+					break;
+				case Opcodes.CALL_WITH_STATE_AND_POP:
+					argCount = code[pc++];
+					callWithState((MethodHandle) pool[code[pc++]], argCount, state, stack);
+					break;
+				case Opcodes.LOAD_CONSTANT2:
+					stack.push(pool[code[pc++]]);
+					stack.push(pool[code[pc++]]);
+					break;
+				case Opcodes.JUMP_AND_POP:
+					expected = pool[code[pc++]];
+					target = code[pc++];
+					if (expected == stack.peek()) {
+						stack.pop();
+						pc = target;
+					}
+					break;
+				case Opcodes.LOAD_PRIMITIVE: // High and low halves of the value
+					stack.pushPrimitive((long) code[pc++] << Integer.SIZE | Integer.toUnsignedLong(code[pc++]));
+					break;
+				case Opcodes.CALL_LANED:
+					argCount = code[pc++];
+					MethodHandle handle = (MethodHandle) pool[code[pc++]];
+					callLaned(handle, argCount, code[pc++] != 0, state, stack);
+					break;
+				case Opcodes.SUSPEND_POINT:
+					break; // Compact blocks are not run with budgets
+				default:
+					throw new AssertionError("unknown opcode " + code[pc - 1]);
+				}
+			} catch (Throwable e) {
+				pc = handleException(block, stack, base, at, e);
+			}
+		}
+		
+		return null; // No explicit return
+	}
+	
+	/**
+	 * Gets the handle that should be called for a call node.
+	 * @param node Call node.
+	 * @return Erased invoker, or spreader if the call takes too many arguments
+	 * to pass them directly.
+	 */
+	private static MethodHandle callHandle(IrNode.CallMethod node) {
+		return node.getArgumentCount() > IrNode.CallMethod.MAX_DIRECT_ARGS ? node.getSpreader() : node.getInvoker();
+	}
+	
+	/**
+	 * Calls a method with arguments from the stack. Common argument counts
+	 * are handled without allocating arrays for them.
+	 * @param handle {@link #callHandle(IrNode.CallMethod) Handle} to call.
+	 * @param argCount Amount of arguments from stack.
+	 * @param stack Stack. Arguments are popped from it.
+	 * @return Return value of the method.
+	 * @throws Throwable Whatever the method throws.
+	 */
+	private Object callPlain(MethodHandle handle, int argCount, ScriptStack stack) throws Throwable {
+		// Erased handles take and return only Objects, so we can use invokeExact
+		Object result;
+		switch (argCount) {
+		case 0:
+			return (Object) handle.invokeExact();
+		case 1:
+			result = (Object) handle.invokeExact(stack.peekAt(0));
+			break;
+		case 2:
+			result = (Object) handle.invokeExact(stack.peekAt(1), stack.peekAt(0));
+			break;
+		case IrNode.CallMethod.MAX_DIRECT_ARGS:
+			result = (Object) handle.invokeExact(stack.peekAt(2), stack.peekAt(1), stack.peekAt(0));
+			break;
+		default: // Too many arguments, pass them in an array
+			Object[] args = stack.popToBuffer(argCount);
+			try {
+				return (Object) handle.invokeExact(args);
+			} finally {
+				Arrays.fill(args, null); // Buffer is reused; don't keep arguments alive
+			}
+		}
+		stack.drop(argCount);
+		return result;
+	}
+	
+	/**
+	 * Calls a method with runner state and arguments from the stack.
+	 * @param handle {@link #callHandle(IrNode.CallMethod) Handle} to call.
+	 * @param argCount Amount of arguments from stack.
+	 * @param state Runner state.
+	 * @param stack Stack. Arguments are popped from it.
+	 * @return Return value of the method.
+	 * @throws Throwable Whatever the method throws.
+	 */
+	private Object callWithState(MethodHandle handle, int argCount, Object state, ScriptStack stack) throws Throwable {
+		Object result;
+		switch (argCount) {
+		case 0:
+			return (Object) handle.invokeExact(state);
+		case 1:
+			result = (Object) handle.invokeExact(state, stack.peekAt(0));
+			break;
+		case 2:
+			result = (Object) handle.invokeExact(state, stack.peekAt(1), stack.peekAt(0));
+			break;
+		case IrNode.CallMethod.MAX_DIRECT_ARGS:
+			result = (Object) handle.invokeExact(state, stack.peekAt(2), stack.peekAt(1), stack.peekAt(0));
+			break;
+		default: // Too many arguments, pass them in an array
+			Object[] args = stack.popToBuffer(argCount);
+			try {
+				return (Object) handle.invokeExact(state, args);
+			} finally {
+				Arrays.fill(args, null); // Buffer is reused; don't keep arguments alive
+			}
+		}
+		stack.drop(argCount);
+		return result;
+	}
+	
+	/**
+	 * Calls a method with arguments from both lanes of the stack.
+	 * @param handle {@link IrNode.CallMethod#getLaneInvoker() Lane invoker}
+	 * to call.
+	 * @param argCount Amount of arguments from stack.
+	 * @param primitiveReturn If the return value should be pushed to
+	 * primitive lane.
+	 * @param state Runner state.
+	 * @param stack Stack. Arguments are popped from it, and return value is
+	 * pushed to it.
+	 * @throws Throwable Whatever the method throws.
+	 */
+	private void callLaned(MethodHandle handle, int argCount, boolean primitiveReturn, Object state,
+			ScriptStack stack) throws Throwable {
+		if (primitiveReturn) {
+			long result;
+			switch (argCount) {
+			case 0:
+				result = (long) handle.invokeExact(state);
 				break;
-			case Opcodes.LOAD_LITERAL:
-				stack.push(((IrNode.LoadLiteral) node).getValue());
+			case 1:
+				result = (long) handle.invokeExact(state, stack.peekAt(0), stack.peekPrimitiveAt(0));
 				break;
-			case Opcodes.LOAD_CONSTANT:
-				stack.push(((IrNode.LoadConstant) node).getValue());
+			case 2:
+				result = (long) handle.invokeExact(state, stack.peekAt(1), stack.peekPrimitiveAt(1),
+						stack.peekAt(0), stack.peekPrimitiveAt(0));
 				break;
-			case Opcodes.CALL_PLAIN:
-				MethodHandle handle = ((IrNode.CallPlain) node).getHandle();
-				int argCount = handle.type().parameterCount();
-				stack.push(handle.invokeWithArguments(stack.pop(argCount)));
+			case IrNode.CallMethod.MAX_DIRECT_ARGS:
+				result = (long) handle.invokeExact(state, stack.peekAt(2), stack.peekPrimitiveAt(2),
+						stack.peekAt(1), stack.peekPrimitiveAt(1), stack.peekAt(0), stack.peekPrimitiveAt(0));
 				break;
-			case Opcodes.CALL_WITH_STATE:
-				handle = ((IrNode.CallWithState) node).getHandle();
-				argCount = handle.type().parameterCount();
-				Object[] args = new Object[argCount];
-				args[0] = state; // Inject runner state
-				stack.popInto(args, 1, argCount - 1); // Pop other arguments from stack
-				stack.push(handle.invokeWithArguments(args));
+			default:
+				throw new AssertionError("too many arguments for laned call: " + argCount);
+			}
+			stack.drop(argCount);
+			stack.pushPrimitive(result);
+		} else {
+			Object result;
+			switch (argCount) {
+			case 0:
+				result = (Object) handle.invokeExact(state);
 				break;
-			case Opcodes.JUMP:
-				Object expected = ((IrNode.Jump) node).getConstant();
-				if (expected == stack.peek()) { // Jump to somewhere
-					i = ((IrNode.Jump) node).getTarget();
-					continue; // Override control flow
-				}
+			case 1:
+				result = (Object) handle.invokeExact(state, stack.peekAt(0), stack.peekPrimitiveAt(0));
 				break;
-			case Opcodes.RETURN:
-				if (stack.size() == 0) {
-					return null;
-				} else {
-					return stack.pop();
-				}
+			case 2:
+				result = (Object) handle.invokeExact(state, stack.peekAt(1), stack.peekPrimitiveAt(1),
+						stack.peekAt(0), stack.peekPrimitiveAt(0));
+				break;
+			case IrNode.CallMethod.MAX_DIRECT_ARGS:
+				result = (Object) handle.invokeExact(state, stack.peekAt(2), stack.peekPrimitiveAt(2),
+						stack.peekAt(1), stack.peekPrimitiveAt(1), stack.peekAt(0), stack.peekPrimitiveAt(0));
+				break;
+			default:
+				throw new AssertionError("too many arguments for laned call: " + argCount);
 			}
-			i++; // Next node
+			stack.drop(argCount);
+			stack.push(result);
 		}
-		
-		return null; // No explicit return
 	}
 }
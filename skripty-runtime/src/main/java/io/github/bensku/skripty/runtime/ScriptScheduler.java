@@ -0,0 +1,126 @@
+package io.github.bensku.skripty.runtime;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+
+/**
+ * Runs blocks in time slices, so that long-running loops do not starve
+ * other blocks that share the same threads. Each slice is run with an
+ * {@link ScriptRunner#start(IrBlock, RunnerState, int) instruction budget}.
+ * When a block uses up its budget, it is suspended and submitted back to
+ * the executor, behind blocks that were waiting for their turn.
+ *
+ * <p>Usually, the executor should be a fixed-size thread pool. Since blocks
+ * may move between threads between slices, expressions they call must not
+ * rely on thread-local state.
+ *
+ * <p>Calls to {@link io.github.bensku.skripty.core.annotation.Blocking
+ * blocking} call targets are made on a separate executor, so that scripts
+ * waiting for I/O do not hold threads of the main executor. Once the call
+ * returns, the script continues there until its time slice is used up.
+ * On Java 21 or newer, an executor that creates a virtual thread per task is
+ * well suited for this.
+ *
+ * @param <T> Type of runner state.
+ */
+public class ScriptScheduler<T extends RunnerState> {
+
+	/**
+	 * Runner that executes the slices.
+	 */
+	private final ScriptRunner<T> runner;
+
+	/**
+	 * Executor where slices are run.
+	 */
+	private final Executor executor;
+
+	/**
+	 * Executor where slices that begin with blocking calls are run.
+	 */
+	private final Executor blockingExecutor;
+
+	/**
+	 * How many back-edges a block may take in one slice.
+	 */
+	private final int timeSlice;
+
+	/**
+	 * Creates a new scheduler.
+	 * @param runner Runner for the blocks.
+	 * @param executor Executor to run slices in.
+	 * @param blockingExecutor Executor to run slices that begin with
+	 * blocking calls in.
+	 * @param timeSlice How many times loops may jump back in a slice before
+	 * the block is suspended.
+	 * @throws IllegalArgumentException When the time slice is not positive.
+	 */
+	public ScriptScheduler(ScriptRunner<T> runner, Executor executor, Executor blockingExecutor, int timeSlice) {
+		if (timeSlice <= 0) {
+			throw new IllegalArgumentException("time slice must be positive");
+		}
+		this.runner = runner;
+		this.executor = executor;
+		this.blockingExecutor = blockingExecutor;
+		this.timeSlice = timeSlice;
+	}
+
+	/**
+	 * Creates a new scheduler that makes blocking calls on same executor as
+	 * everything else.
+	 * @param runner Runner for the blocks.
+	 * @param executor Executor to run slices in.
+	 * @param timeSlice How many times loops may jump back in a slice before
+	 * the block is suspended.
+	 * @throws IllegalArgumentException When the time slice is not positive.
+	 */
+	public ScriptScheduler(ScriptRunner<T> runner, Executor executor, int timeSlice) {
+		this(runner, executor, executor, timeSlice);
+	}
+
+	/**
+	 * Submits a block to be run.
+	 * @param block IR block.
+	 * @param state Runner state.
+	 * @return Future that is completed with result of the block. If it is
+	 * cancelled, the block is not resumed after its current slice.
+	 */
+	public CompletableFuture<Object> submit(IrBlock block, T state) {
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		executor.execute(() -> {
+			try {
+				schedule(runner.start(block, state, timeSlice), future);
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Completes the future if the block is done, or schedules next slice
+	 * of it.
+	 * @param continuation Continuation of the block.
+	 * @param future Future for result of the block.
+	 */
+	private void schedule(Continuation<T> continuation, CompletableFuture<Object> future) {
+		if (continuation.isDone()) {
+			future.complete(continuation.getResult());
+			return;
+		}
+		Executor next = continuation.isBlocked() ? blockingExecutor : executor;
+		next.execute(() -> {
+			if (future.isDone()) {
+				return; // Cancelled while waiting
+			}
+			try {
+				schedule(runner.resume(continuation, timeSlice), future);
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		});
+	}
+}
@@ -1,23 +1,43 @@
 package io.github.bensku.skripty.runtime;
 
+import java.util.Arrays;
+
 /**
  * Stack used for interpreting scripts.
  *
+ * <p>Every slot has two lanes. Most values are stored in the normal lane as
+ * objects, but primitive values can be stored in the primitive lane without
+ * boxing them. Which lane a slot uses is decided by the IR that is executed;
+ * the stack does not track it.
+ *
  */
 public class ScriptStack {
 
 	/**
 	 * Stack slots.
 	 */
-	private final Object[] slots;
+	private Object[] slots;
+	
+	/**
+	 * Primitive lanes of stack slots. Primitives of all types are stored as
+	 * longs.
+	 */
+	private long[] primitives;
 	
 	/**
 	 * Current size of the stack.
 	 */
 	private int size;
 	
+	/**
+	 * Reusable arrays for passing arguments, by their lengths. Lazily
+	 * allocated.
+	 */
+	private Object[][] argumentBuffers;
+	
 	public ScriptStack(int stackSize) {
 		this.slots = new Object[stackSize];
+		this.primitives = new long[stackSize];
 	}
 	
 	/**
@@ -28,6 +48,33 @@ public class ScriptStack {
 		return size;
 	}
 	
+	/**
+	 * Makes sure that given amount of values can be pushed to this stack.
+	 * If there is not enough free slots, the stack is enlarged.
+	 * @param free Amount of free slots required.
+	 */
+	public void ensureFree(int free) {
+		int required = size + free;
+		if (required > slots.length) {
+			Object[] newSlots = new Object[Math.max(required, slots.length * 2)];
+			System.arraycopy(slots, 0, newSlots, 0, size);
+			slots = newSlots;
+			primitives = Arrays.copyOf(primitives, newSlots.length);
+		}
+	}
+	
+	/**
+	 * Discards all values above given stack height and clears the slots
+	 * that they were in, so that this stack does not keep them from being
+	 * garbage collected.
+	 * @param height New stack height.
+	 * @param used How many slots above the new height may have been used.
+	 */
+	public void unwind(int height, int used) {
+		Arrays.fill(slots, height, Math.min(height + used, slots.length), null);
+		size = height;
+	}
+	
 	/**
 	 * Pushes a value to this stack.
 	 * @param value Value to push.
@@ -36,6 +83,25 @@ public class ScriptStack {
 		slots[size++] = value;
 	}
 	
+	/**
+	 * Pushes a value to both lanes of this stack.
+	 * @param value Value for normal lane.
+	 * @param primitive Value for primitive lane.
+	 */
+	public void push(Object value, long primitive) {
+		slots[size] = value;
+		primitives[size++] = primitive;
+	}
+	
+	/**
+	 * Pushes a value to primitive lane of this stack.
+	 * @param value Primitive value, converted to long.
+	 */
+	public void pushPrimitive(long value) {
+		slots[size] = null; // Don't keep an old object alive
+		primitives[size++] = value;
+	}
+	
 	/**
 	 * Pops the top value from this stack.
 	 * @return Former top value of the stack.
@@ -55,6 +121,14 @@ public class ScriptStack {
 		return slice;
 	}
 	
+	/**
+	 * Removes values from top of this stack without returning them.
+	 * @param count How many values to remove.
+	 */
+	public void drop(int count) {
+		size -= count;
+	}
+	
 	/**
 	 * Pops values to given array.
 	 * @param array Array to put popped values to.
@@ -84,5 +158,57 @@ public class ScriptStack {
 		System.arraycopy(slots, this.size - length, slice, 0, length);
 		return slice;
 	}
+	
+	/**
+	 * Peeks at a value near the top of this stack without removing it.
+	 * @param depth Depth of the value; 0 is the top value.
+	 * @return Value at given depth.
+	 */
+	public Object peekAt(int depth) {
+		return slots[size - 1 - depth];
+	}
+	
+	/**
+	 * Peeks at primitive lane of a value near the top of this stack.
+	 * @param depth Depth of the value; 0 is the top value.
+	 * @return Primitive value at given depth.
+	 */
+	public long peekPrimitiveAt(int depth) {
+		return primitives[size - 1 - depth];
+	}
+	
+	/**
+	 * Returns a slice of primitive lanes from top of stack.
+	 * @param length Size of the slice.
+	 * @return Slice of primitive lanes.
+	 */
+	public long[] peekPrimitives(int length) {
+		return Arrays.copyOfRange(primitives, size - length, size);
+	}
+	
+	/**
+	 * Pops values to an array owned by this stack. The array is reused by
+	 * subsequent calls that request same amount of values, so it must not
+	 * be stored anywhere. Callers should clear it after use, so that the
+	 * popped values are not kept from being garbage collected.
+	 * @param count How many values to pop.
+	 * @return An array of exactly given length with the popped values.
+	 */
+	public Object[] popToBuffer(int count) {
+		if (argumentBuffers == null || argumentBuffers.length <= count) {
+			Object[][] buffers = new Object[count + 1][];
+			if (argumentBuffers != null) {
+				System.arraycopy(argumentBuffers, 0, buffers, 0, argumentBuffers.length);
+			}
+			argumentBuffers = buffers;
+		}
+		Object[] buffer = argumentBuffers[count];
+		if (buffer == null) {
+			buffer = new Object[count];
+			argumentBuffers[count] = buffer;
+		}
+		popInto(buffer, 0, count);
+		return buffer;
+	}
 
 }
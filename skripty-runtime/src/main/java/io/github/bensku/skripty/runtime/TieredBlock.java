@@ -0,0 +1,122 @@
+package io.github.bensku.skripty.runtime;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.runtime.bytecode.BytecodeCompiler;
+import io.github.bensku.skripty.runtime.bytecode.CompiledBlock;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+
+/**
+ * An {@link IrBlock IR block} that is interpreted until it becomes hot, and
+ * then compiled to JVM bytecode. {@link ScriptRunner} counts how many times
+ * the block has been executed and how many times loops in it have jumped
+ * back. When that exceeds the compile threshold of the runner, the block is
+ * compiled with {@link BytecodeCompiler} in background. Once compilation is
+ * done, the compiled version is used instead.
+ *
+ * @param <T> Type of runner state.
+ */
+public final class TieredBlock<T extends RunnerState> {
+
+	/**
+	 * The IR block.
+	 */
+	private final IrBlock block;
+
+	/**
+	 * Invocations and taken back-edges so far. This is updated without
+	 * synchronization, because losing a few increments does not matter.
+	 */
+	private int hotness;
+
+	/**
+	 * If the block has been queued for compilation.
+	 */
+	private final AtomicBoolean queued;
+
+	/**
+	 * Compiled version of the block, or null if it is not (yet) available.
+	 */
+	private volatile CompiledBlock<T> compiled;
+
+	/**
+	 * If compiling the block failed. Hotness of such blocks is not tracked,
+	 * since they will be interpreted anyway.
+	 */
+	private volatile boolean uncompilable;
+
+	/**
+	 * Creates a new tiered block. The IR block is {@link IrBlock#seal()
+	 * sealed}, if it was not already.
+	 * @param block IR block.
+	 * @throws IllegalArgumentException When the IR block is not valid.
+	 */
+	public TieredBlock(IrBlock block) {
+		this.block = block.seal();
+		this.queued = new AtomicBoolean();
+	}
+
+	public IrBlock getBlock() {
+		return block;
+	}
+
+	/**
+	 * Gets how hot this block is.
+	 * @return Count of invocations and taken back-edges while the block was
+	 * interpreted.
+	 */
+	public int getHotness() {
+		return hotness;
+	}
+
+	/**
+	 * Gets the compiled version of this block.
+	 * @return Compiled block, or null if it is not available.
+	 */
+	public CompiledBlock<T> getCompiled() {
+		return compiled;
+	}
+
+	/**
+	 * Checks if this block could not be compiled.
+	 * @return Whether compilation has failed.
+	 */
+	public boolean isUncompilable() {
+		return uncompilable;
+	}
+
+	/**
+	 * Increases hotness of this block.
+	 * @param amount How much to add.
+	 * @return New hotness.
+	 */
+	int addHotness(int amount) {
+		hotness += amount;
+		return hotness;
+	}
+
+	/**
+	 * Marks this block as queued for compilation.
+	 * @return Whether the block was not queued before.
+	 */
+	boolean markQueued() {
+		return queued.compareAndSet(false, true);
+	}
+
+	/**
+	 * Sets the compiled version of this block. Runs that start after this
+	 * will use it.
+	 * @param compiled Compiled block.
+	 */
+	void setCompiled(CompiledBlock<T> compiled) {
+		this.compiled = compiled;
+	}
+
+	/**
+	 * Marks this block as one that cannot be compiled.
+	 */
+	void markUncompilable() {
+		this.uncompilable = true;
+	}
+}
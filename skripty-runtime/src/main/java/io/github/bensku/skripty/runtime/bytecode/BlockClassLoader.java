@@ -0,0 +1,47 @@
+package io.github.bensku.skripty.runtime.bytecode;
+
+/**
+ * Loads classes generated by {@link BytecodeCompiler}. Each compiled block
+ * gets a loader of its own, which allows unloading the class once it is no
+ * longer used.
+ *
+ */
+public final class BlockClassLoader extends ClassLoader {
+
+	/**
+	 * Constants for the static fields of the generated class.
+	 */
+	private final Object[] constants;
+
+	BlockClassLoader(ClassLoader parent, Object[] constants) {
+		super(parent);
+		this.constants = constants;
+	}
+
+	/**
+	 * Defines the generated class.
+	 * @param name Binary name of the class.
+	 * @param bytes Class file.
+	 * @return The class.
+	 */
+	Class<?> define(String name, byte[] bytes) {
+		return defineClass(name, bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Gets constants of a generated class. Static initializers of generated
+	 * classes call this to initialize their fields, because there is no
+	 * other way to pass live objects to them.
+	 * @param owner Generated class.
+	 * @return Constants of the class.
+	 * @throws IllegalArgumentException When the class was not generated by
+	 * the bytecode compiler.
+	 */
+	public static Object[] constants(Class<?> owner) {
+		ClassLoader loader = owner.getClassLoader();
+		if (!(loader instanceof BlockClassLoader)) {
+			throw new IllegalArgumentException("not a compiled block");
+		}
+		return ((BlockClassLoader) loader).constants;
+	}
+}
@@ -0,0 +1,419 @@
+package io.github.bensku.skripty.runtime.bytecode;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.runtime.ScriptRunner;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+import io.github.bensku.skripty.runtime.ir.IrNode;
+import io.github.bensku.skripty.runtime.ir.IrVerifier;
+import io.github.bensku.skripty.runtime.ir.Opcodes;
+
+/**
+ * Compiles {@link IrBlock IR blocks} to JVM bytecode. This is an alternative
+ * to interpreting them with {@link ScriptRunner}.
+ *
+ * <p>Values on the IR stack are kept in JVM local variables, and IR jumps
+ * become JVM branches. This requires that blocks pass
+ * {@link IrVerifier verification}. Calls are made with
+ * {@link MethodHandle#invokeExact(Object...)} on handles stored in static
+ * final fields, which JIT compilers treat as constants and can inline.
+ *
+ */
+public class BytecodeCompiler {
+
+	/**
+	 * Internal name of generated classes. Each of them has its own class
+	 * loader, so the name does not need to be unique.
+	 */
+	private static final String CLASS_NAME = "io/github/bensku/skripty/runtime/bytecode/GeneratedBlock";
+
+	private static final String OBJECT = "java/lang/Object";
+	private static final String OBJECT_DESC = "Ljava/lang/Object;";
+	private static final String METHOD_HANDLE = "java/lang/invoke/MethodHandle";
+	private static final String METHOD_HANDLE_DESC = "Ljava/lang/invoke/MethodHandle;";
+	private static final String COMPILED_BLOCK = "io/github/bensku/skripty/runtime/bytecode/CompiledBlock";
+	private static final String CLASS_LOADER = "io/github/bensku/skripty/runtime/bytecode/BlockClassLoader";
+	private static final String RUN_DESC = "(Lio/github/bensku/skripty/core/RunnerState;)Ljava/lang/Object;";
+	private static final String CAN_RESUME_DESC = "(I)Z";
+	private static final String RESUME_DESC = "(Lio/github/bensku/skripty/core/RunnerState;I[Ljava/lang/Object;)"
+			+ "Ljava/lang/Object;";
+	private static final String ILLEGAL_ARGUMENT = "java/lang/IllegalArgumentException";
+
+	/**
+	 * Local variable that contains the runner state.
+	 */
+	private static final int STATE_LOCAL = 1;
+
+	/**
+	 * Local variable that contains bottom of the IR stack.
+	 */
+	private static final int STACK_LOCAL = 2;
+
+	/**
+	 * Parameter of resume method that contains index of node to resume at.
+	 */
+	private static final int RESUME_INDEX_PARAM = 2;
+
+	/**
+	 * Parameter of resume method that contains the IR stack.
+	 */
+	private static final int RESUME_FRAME_PARAM = 3;
+
+	/**
+	 * Operand stack size needed by static initializer of generated classes.
+	 */
+	private static final int CLINIT_STACK = 3;
+
+	/**
+	 * Compiles an IR block to JVM bytecode and loads it.
+	 * @param <T> Type of runner state.
+	 * @param block IR block.
+	 * @return Compiled block.
+	 * @throws IllegalArgumentException When the block cannot be compiled,
+	 * for example because stack heights are not consistent. Blocks with
+	 * exception handlers are not supported yet.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends RunnerState> CompiledBlock<T> compile(IrBlock block) {
+		if (block.getHandlers().length != 0) {
+			throw new IllegalArgumentException("exception handlers are not supported");
+		}
+		ClassFileWriter writer = new ClassFileWriter();
+		List<Object> constants = new ArrayList<>();
+		List<String> constantTypes = new ArrayList<>();
+
+		IrVerifier.Result verified = new IrVerifier().verify(block);
+		int[] entries = findResumeEntries(block, verified);
+		writer.method(ClassFileWriter.ACC_PUBLIC, "run", RUN_DESC,
+				emitRun(writer, block, verified.getStackHeights(), constants, constantTypes));
+		writer.method(ClassFileWriter.ACC_PUBLIC, "canResume", CAN_RESUME_DESC, emitCanResume(writer, entries));
+		writer.method(ClassFileWriter.ACC_PUBLIC, "resume", RESUME_DESC,
+				emitResume(writer, block, verified, entries, constants, constantTypes));
+		writer.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", emitConstructor(writer));
+		writer.method(ClassFileWriter.ACC_STATIC, "<clinit>", "()V", emitInitializer(writer, constantTypes));
+		for (int i = 0; i < constantTypes.size(); i++) {
+			writer.field(ClassFileWriter.ACC_STATIC | ClassFileWriter.ACC_FINAL, "c" + i, constantTypes.get(i));
+		}
+		byte[] bytes = writer.toByteArray(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER,
+				CLASS_NAME, OBJECT, COMPILED_BLOCK);
+
+		BlockClassLoader loader = new BlockClassLoader(BytecodeCompiler.class.getClassLoader(), constants.toArray());
+		Class<?> generated = loader.define(CLASS_NAME.replace('/', '.'), bytes);
+		try {
+			return (CompiledBlock<T>) generated.getConstructor().newInstance();
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException
+				| NoSuchMethodException e) {
+			throw new AssertionError("generated class is broken", e);
+		}
+	}
+
+	/**
+	 * Adds a constant that generated code can load from a static field.
+	 * @param constants Constant values.
+	 * @param types Field descriptors of constants.
+	 * @param value Constant value.
+	 * @param type Field descriptor.
+	 * @return Name of the field.
+	 */
+	private String addConstant(List<Object> constants, List<String> types, Object value, String type) {
+		constants.add(value);
+		types.add(type);
+		return "c" + (constants.size() - 1);
+	}
+
+	/**
+	 * Finds nodes where execution of a block can be resumed in compiled code.
+	 * These are loop headers, i.e. targets of jumps backwards, where no
+	 * values are in primitive lanes of the stack.
+	 * @param block IR block.
+	 * @param verified Verification results of the block.
+	 * @return Indices of the nodes in ascending order.
+	 */
+	private int[] findResumeEntries(IrBlock block, IrVerifier.Result verified) {
+		IrNode[] nodes = block.nodeArray();
+		int size = block.size();
+		boolean[] entries = new boolean[size];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (nodes[i].getOpcode() != Opcodes.JUMP || verified.getStackHeight(i) == -1) {
+				continue;
+			}
+			int target = ((IrNode.Jump) nodes[i]).getTarget();
+			if (target > i || target == size || entries[target]) {
+				continue; // Not a back-edge, or already found
+			}
+			boolean primitives = false;
+			for (Class<?> type : verified.getStackTypes(target)) {
+				primitives |= type != null && type.isPrimitive();
+			}
+			if (!primitives) { // Compiled code keeps only objects in stack
+				entries[target] = true;
+				count++;
+			}
+		}
+		int[] indices = new int[count];
+		int found = 0;
+		for (int i = 0; i < size; i++) {
+			if (entries[i]) {
+				indices[found++] = i;
+			}
+		}
+		return indices;
+	}
+
+	/**
+	 * Emits the method that executes the block.
+	 * @param writer Class file writer.
+	 * @param block IR block.
+	 * @param heights Stack heights before nodes.
+	 * @param constants Constant values.
+	 * @param types Field descriptors of constants.
+	 * @return Method code.
+	 */
+	private ClassFileWriter.Code emitRun(ClassFileWriter writer, IrBlock block, int[] heights, List<Object> constants,
+			List<String> types) {
+		// One label per node, and one for end of block
+		ClassFileWriter.Code code = new ClassFileWriter.Code(block.size() + 1);
+		code.maxLocals = STACK_LOCAL;
+		emitBody(writer, code, block, heights, constants, types);
+		return code;
+	}
+
+	/**
+	 * Emits the method that tells if execution can be resumed at a node.
+	 * @param writer Class file writer.
+	 * @param entries Nodes where execution can be resumed.
+	 * @return Method code.
+	 */
+	private ClassFileWriter.Code emitCanResume(ClassFileWriter writer, int[] entries) {
+		ClassFileWriter.Code code = new ClassFileWriter.Code(1);
+		for (int entry : entries) {
+			code.local(ClassFileWriter.ILOAD, 1);
+			code.pushInt(writer, entry);
+			code.branch(ClassFileWriter.IF_ICMPEQ, 0);
+		}
+		code.pushInt(writer, 0);
+		code.op(ClassFileWriter.IRETURN);
+		code.label(0); // Found
+		code.pushInt(writer, 1);
+		code.op(ClassFileWriter.IRETURN);
+		code.maxStack = 2;
+		code.maxLocals = 2;
+		return code;
+	}
+
+	/**
+	 * Emits the method that resumes execution of the block at a loop header.
+	 * It copies the given stack to local variables, and then jumps to the
+	 * header in a copy of the code that {@link #emitRun run method} has.
+	 * @param writer Class file writer.
+	 * @param block IR block.
+	 * @param verified Verification results of the block.
+	 * @param entries Nodes where execution can be resumed.
+	 * @param constants Constant values.
+	 * @param types Field descriptors of constants.
+	 * @return Method code.
+	 */
+	private ClassFileWriter.Code emitResume(ClassFileWriter writer, IrBlock block, IrVerifier.Result verified,
+			int[] entries, List<Object> constants, List<String> types) {
+		int size = block.size();
+		int[] heights = verified.getStackHeights();
+
+		// Labels for nodes, end of block and checks of entries
+		ClassFileWriter.Code code = new ClassFileWriter.Code(size + 1 + entries.length);
+		code.maxStack = 2;
+
+		// Parameters are where IR stack will be, so move them out of way
+		int indexLocal = Math.max(STACK_LOCAL + verified.getMaxStack(), RESUME_FRAME_PARAM + 1);
+		int frameLocal = indexLocal + 1;
+		code.local(ClassFileWriter.ILOAD, RESUME_INDEX_PARAM);
+		code.local(ClassFileWriter.ISTORE, indexLocal);
+		code.local(ClassFileWriter.ALOAD, RESUME_FRAME_PARAM);
+		code.local(ClassFileWriter.ASTORE, frameLocal);
+
+		for (int i = 0; i < entries.length; i++) {
+			int entry = entries[i];
+			code.local(ClassFileWriter.ILOAD, indexLocal);
+			code.pushInt(writer, entry);
+			code.branch(ClassFileWriter.IF_ICMPNE, size + 1 + i);
+			for (int j = 0; j < heights[entry]; j++) { // Load the stack
+				code.local(ClassFileWriter.ALOAD, frameLocal);
+				code.pushInt(writer, j);
+				code.op(ClassFileWriter.AALOAD);
+				code.local(ClassFileWriter.ASTORE, STACK_LOCAL + j);
+			}
+			code.branch(ClassFileWriter.GOTO, entry);
+			code.label(size + 1 + i); // Not this entry, try next one
+		}
+
+		// Not an entry at all
+		code.op(ClassFileWriter.NEW, writer.classRef(ILLEGAL_ARGUMENT));
+		code.op(ClassFileWriter.DUP);
+		code.op(ClassFileWriter.INVOKESPECIAL, writer.methodRef(ILLEGAL_ARGUMENT, "<init>", "()V"));
+		code.op(ClassFileWriter.ATHROW);
+
+		emitBody(writer, code, block, heights, constants, types);
+		return code;
+	}
+
+	/**
+	 * Emits code of all nodes of the block.
+	 * @param writer Class file writer.
+	 * @param code Method code.
+	 * @param block IR block.
+	 * @param heights Stack heights before nodes.
+	 * @param constants Constant values.
+	 * @param types Field descriptors of constants.
+	 */
+	private void emitBody(ClassFileWriter writer, ClassFileWriter.Code code, IrBlock block, int[] heights,
+			List<Object> constants, List<String> types) {
+		IrNode[] nodes = block.nodeArray();
+		int size = block.size();
+		for (int i = 0; i < size; i++) {
+			code.label(i);
+			int height = heights[i];
+			if (height == -1) {
+				continue; // Unreachable, don't emit anything
+			}
+			IrNode node = nodes[i];
+			switch (node.getOpcode()) {
+			case Opcodes.POP:
+				break; // Stack slot will be overwritten later, if needed
+			case Opcodes.LOAD_LITERAL:
+				emitLoad(writer, code, addConstant(constants, types, ((IrNode.LoadLiteral) node).getValue(), OBJECT_DESC));
+				code.local(ClassFileWriter.ASTORE, STACK_LOCAL + height);
+				code.maxStack = Math.max(code.maxStack, 1);
+				break;
+			case Opcodes.LOAD_CONSTANT:
+				Object value = block.getConstant(((IrNode.LoadConstant) node).getIndex());
+				emitLoad(writer, code, addConstant(constants, types, value, OBJECT_DESC));
+				code.local(ClassFileWriter.ASTORE, STACK_LOCAL + height);
+				code.maxStack = Math.max(code.maxStack, 1);
+				break;
+			case Opcodes.LOAD_PRIMITIVE: // Locals hold only objects, so primitive lanes are not used
+				emitLoad(writer, code, addConstant(constants, types, ((IrNode.LoadPrimitive) node).getValue(), OBJECT_DESC));
+				code.local(ClassFileWriter.ASTORE, STACK_LOCAL + height);
+				code.maxStack = Math.max(code.maxStack, 1);
+				break;
+			case Opcodes.CALL_PLAIN:
+			case Opcodes.CALL_WITH_STATE:
+			case Opcodes.CALL_LANED:
+				emitCall(writer, code, (IrNode.CallMethod) node, height, constants, types);
+				break;
+			case Opcodes.JUMP:
+				IrNode.Jump jump = (IrNode.Jump) node;
+				code.local(ClassFileWriter.ALOAD, STACK_LOCAL + height - 1);
+				emitLoad(writer, code, addConstant(constants, types, jump.getConstant(), OBJECT_DESC));
+				code.branch(ClassFileWriter.IF_ACMPEQ, jump.getTarget());
+				code.maxStack = Math.max(code.maxStack, 2);
+				break;
+			case Opcodes.RETURN:
+				if (height == 0) {
+					code.op(ClassFileWriter.ACONST_NULL);
+				} else {
+					code.local(ClassFileWriter.ALOAD, STACK_LOCAL + height - 1);
+				}
+				code.op(ClassFileWriter.ARETURN);
+				code.maxStack = Math.max(code.maxStack, 1);
+				break;
+			case Opcodes.SUSPEND_POINT:
+				break; // Compiled code always runs to completion
+			default:
+				throw new AssertionError("unknown opcode " + node.getOpcode());
+			}
+		}
+
+		// No explicit return at end of block
+		code.label(size);
+		code.op(ClassFileWriter.ACONST_NULL);
+		code.op(ClassFileWriter.ARETURN);
+		code.maxStack = Math.max(code.maxStack, 1);
+	}
+
+	/**
+	 * Emits a load from a static field of the generated class.
+	 * @param writer Class file writer.
+	 * @param code Method code.
+	 * @param field Field name.
+	 */
+	private void emitLoad(ClassFileWriter writer, ClassFileWriter.Code code, String field) {
+		code.op(ClassFileWriter.GETSTATIC, writer.fieldRef(CLASS_NAME, field, OBJECT_DESC));
+	}
+
+	/**
+	 * Emits a method call.
+	 * @param writer Class file writer.
+	 * @param code Method code.
+	 * @param node Call node.
+	 * @param height Stack height before the call.
+	 * @param constants Constant values.
+	 * @param types Field descriptors of constants.
+	 */
+	private void emitCall(ClassFileWriter writer, ClassFileWriter.Code code, IrNode.CallMethod node, int height,
+			List<Object> constants, List<String> types) {
+		int paramCount = node.getHandle().type().parameterCount();
+		int argCount = node.getArgumentCount();
+
+		// Use the erased invoker, because values in stack slots are just Objects
+		String field = addConstant(constants, types, node.getInvoker(), METHOD_HANDLE_DESC);
+		code.op(ClassFileWriter.GETSTATIC, writer.fieldRef(CLASS_NAME, field, METHOD_HANDLE_DESC));
+		if (node instanceof IrNode.CallWithState) {
+			code.local(ClassFileWriter.ALOAD, STATE_LOCAL);
+		}
+		int firstArg = height - argCount;
+		for (int i = 0; i < argCount; i++) {
+			code.local(ClassFileWriter.ALOAD, STACK_LOCAL + firstArg + i);
+		}
+		code.op(ClassFileWriter.INVOKEVIRTUAL, writer.methodRef(METHOD_HANDLE, "invokeExact",
+				MethodType.genericMethodType(paramCount).toMethodDescriptorString()));
+		code.local(ClassFileWriter.ASTORE, STACK_LOCAL + firstArg); // Replaces the first argument
+		code.maxStack = Math.max(code.maxStack, paramCount + 1);
+	}
+
+	/**
+	 * Emits constructor of the generated class.
+	 * @param writer Class file writer.
+	 * @return Constructor code.
+	 */
+	private ClassFileWriter.Code emitConstructor(ClassFileWriter writer) {
+		ClassFileWriter.Code code = new ClassFileWriter.Code(0);
+		code.op(ClassFileWriter.ALOAD_0);
+		code.op(ClassFileWriter.INVOKESPECIAL, writer.methodRef(OBJECT, "<init>", "()V"));
+		code.op(ClassFileWriter.RETURN);
+		code.maxStack = 1;
+		code.maxLocals = 1;
+		return code;
+	}
+
+	/**
+	 * Emits static initializer that fills the constant fields.
+	 * @param writer Class file writer.
+	 * @param types Field descriptors of constants.
+	 * @return Initializer code.
+	 */
+	private ClassFileWriter.Code emitInitializer(ClassFileWriter writer, List<String> types) {
+		ClassFileWriter.Code code = new ClassFileWriter.Code(0);
+		code.op(ClassFileWriter.LDC_W, writer.classRef(CLASS_NAME));
+		code.op(ClassFileWriter.INVOKESTATIC, writer.methodRef(CLASS_LOADER, "constants",
+				"(Ljava/lang/Class;)[Ljava/lang/Object;"));
+		for (int i = 0; i < types.size(); i++) {
+			String type = types.get(i);
+			code.op(ClassFileWriter.DUP);
+			code.pushInt(writer, i);
+			code.op(ClassFileWriter.AALOAD);
+			if (!type.equals(OBJECT_DESC)) {
+				code.op(ClassFileWriter.CHECKCAST, writer.classRef(METHOD_HANDLE));
+			}
+			code.op(ClassFileWriter.PUTSTATIC, writer.fieldRef(CLASS_NAME, "c" + i, type));
+		}
+		code.op(ClassFileWriter.POP);
+		code.op(ClassFileWriter.RETURN);
+		code.maxStack = CLINIT_STACK;
+		return code;
+	}
+}
@@ -0,0 +1,435 @@
+package io.github.bensku.skripty.runtime.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JVM class file writer. Supports only what
+ * {@link BytecodeCompiler} needs: static fields, a few methods and
+ * reference-typed code with forward and backward branches.
+ *
+ * <p>Classes are written in version 49 (Java 5) format, which does not
+ * require stack map frames. This way we don't need to compute them.
+ *
+ */
+class ClassFileWriter {
+
+	private static final int MAGIC = 0xCAFEBABE;
+	private static final int MAJOR_VERSION = 49;
+
+	// Access flags
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	// Constant pool tags
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	// Opcodes that are used by the compiler
+	static final int ACONST_NULL = 0x01;
+	static final int ICONST_0 = 0x03;
+	static final int ICONST_5 = 0x08;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int LDC_W = 0x13;
+	static final int ILOAD = 0x15;
+	static final int ALOAD = 0x19;
+	static final int ALOAD_0 = 0x2a;
+	static final int AALOAD = 0x32;
+	static final int ISTORE = 0x36;
+	static final int ASTORE = 0x3a;
+	static final int POP = 0x57;
+	static final int DUP = 0x59;
+	static final int IF_ICMPEQ = 0x9f;
+	static final int IF_ICMPNE = 0xa0;
+	static final int IF_ACMPEQ = 0xa5;
+	static final int GOTO = 0xa7;
+	static final int IRETURN = 0xac;
+	static final int ARETURN = 0xb0;
+	static final int RETURN = 0xb1;
+	static final int GETSTATIC = 0xb2;
+	static final int PUTSTATIC = 0xb3;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+	static final int NEW = 0xbb;
+	static final int ATHROW = 0xbf;
+	static final int CHECKCAST = 0xc0;
+	static final int WIDE = 0xc4;
+
+	/**
+	 * Largest local variable index that can be accessed without
+	 * {@link #WIDE} prefix.
+	 */
+	private static final int MAX_NARROW_INDEX = 0xff;
+
+	/**
+	 * Largest value of an unsigned short (u2).
+	 */
+	private static final int MAX_U2 = 0xffff;
+
+	/**
+	 * Constant pool entries, serialized. Index 0 is not used by JVM.
+	 */
+	private final ByteArrayOutputStream constants;
+
+	/**
+	 * Constant pool entries by their serialized forms, to avoid duplicates.
+	 */
+	private final Map<String, Integer> constantIndices;
+
+	/**
+	 * Index of next constant pool entry.
+	 */
+	private int constantCount;
+
+	/**
+	 * Fields, serialized.
+	 */
+	private final List<byte[]> fields;
+
+	/**
+	 * Methods, serialized.
+	 */
+	private final List<byte[]> methods;
+
+	ClassFileWriter() {
+		this.constants = new ByteArrayOutputStream();
+		this.constantIndices = new HashMap<>();
+		this.constantCount = 1;
+		this.fields = new ArrayList<>();
+		this.methods = new ArrayList<>();
+	}
+
+	/**
+	 * Adds a constant to the pool, unless it already exists there.
+	 * @param key Unique key for the constant.
+	 * @param tag Constant tag.
+	 * @param data Constant data (u1 or u2 values), or a string for UTF-8
+	 * constants.
+	 * @return Constant index.
+	 */
+	private int constant(String key, int tag, Object... data) {
+		Integer existing = constantIndices.get(key);
+		if (existing != null) {
+			return existing;
+		}
+
+		DataOutputStream out = new DataOutputStream(constants);
+		try {
+			out.writeByte(tag);
+			if (tag == CONSTANT_UTF8) {
+				out.writeUTF((String) data[0]);
+			} else if (tag == CONSTANT_INTEGER) {
+				out.writeInt((int) data[0]);
+			} else {
+				for (Object value : data) {
+					out.writeShort((int) value);
+				}
+			}
+		} catch (IOException e) {
+			throw new AssertionError(e); // In-memory stream does not throw
+		}
+
+		int index = constantCount++;
+		if (index > MAX_U2) {
+			throw new IllegalArgumentException("too many constants");
+		}
+		constantIndices.put(key, index);
+		return index;
+	}
+
+	int utf8(String text) {
+		return constant("U" + text, CONSTANT_UTF8, text);
+	}
+
+	int integer(int value) {
+		return constant("I" + value, CONSTANT_INTEGER, value);
+	}
+
+	int classRef(String internalName) {
+		return constant("C" + internalName, CONSTANT_CLASS, utf8(internalName));
+	}
+
+	private int nameAndType(String name, String descriptor) {
+		return constant("N" + name + ' ' + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+	}
+
+	int fieldRef(String owner, String name, String descriptor) {
+		return constant("F" + owner + ' ' + name + ' ' + descriptor, CONSTANT_FIELDREF,
+				classRef(owner), nameAndType(name, descriptor));
+	}
+
+	int methodRef(String owner, String name, String descriptor) {
+		return constant("M" + owner + ' ' + name + ' ' + descriptor, CONSTANT_METHODREF,
+				classRef(owner), nameAndType(name, descriptor));
+	}
+
+	/**
+	 * Adds a field.
+	 * @param access Access flags.
+	 * @param name Field name.
+	 * @param descriptor Field descriptor.
+	 */
+	void field(int access, String name, String descriptor) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(0); // No attributes
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		fields.add(bytes.toByteArray());
+	}
+
+	/**
+	 * Adds a method.
+	 * @param access Access flags.
+	 * @param name Method name.
+	 * @param descriptor Method descriptor.
+	 * @param code Code of the method.
+	 */
+	void method(int access, String name, String descriptor, Code code) {
+		byte[] bytecode = code.toByteArray();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(1); // Code attribute
+
+			// Code attribute
+			out.writeShort(utf8("Code"));
+			// Length without name and length: max stack, max locals, code length, code, two empty tables
+			out.writeInt(Short.BYTES * 2 + Integer.BYTES + bytecode.length + Short.BYTES * 2);
+			out.writeShort(code.maxStack);
+			out.writeShort(code.maxLocals);
+			out.writeInt(bytecode.length);
+			out.write(bytecode);
+			out.writeShort(0); // No exception table
+			out.writeShort(0); // No attributes for code
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		methods.add(bytes.toByteArray());
+	}
+
+	/**
+	 * Writes the class file.
+	 * @param access Access flags.
+	 * @param name Internal name of the class.
+	 * @param superName Internal name of superclass.
+	 * @param interfaces Internal names of implemented interfaces.
+	 * @return Class file bytes.
+	 */
+	byte[] toByteArray(int access, String name, String superName, String... interfaces) {
+		// Add all constants before writing the pool
+		int thisIndex = classRef(name);
+		int superIndex = classRef(superName);
+		int[] interfaceIndices = new int[interfaces.length];
+		for (int i = 0; i < interfaces.length; i++) {
+			interfaceIndices[i] = classRef(interfaces[i]);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(0); // Minor version
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(constantCount);
+			constants.writeTo(out);
+			out.writeShort(access);
+			out.writeShort(thisIndex);
+			out.writeShort(superIndex);
+			out.writeShort(interfaceIndices.length);
+			for (int index : interfaceIndices) {
+				out.writeShort(index);
+			}
+			out.writeShort(fields.size());
+			for (byte[] field : fields) {
+				out.write(field);
+			}
+			out.writeShort(methods.size());
+			for (byte[] method : methods) {
+				out.write(method);
+			}
+			out.writeShort(0); // No class attributes
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Bytecode of a method.
+	 *
+	 */
+	static class Code {
+
+		/**
+		 * Largest offset a 16-bit branch instruction can have.
+		 */
+		private static final int MAX_BRANCH = Short.MAX_VALUE;
+
+		/**
+		 * Code bytes.
+		 */
+		private final ByteArrayOutputStream bytes;
+
+		/**
+		 * Branches that need to be patched when the labels they point at are
+		 * known. Each entry has instruction offset and label index.
+		 */
+		private final List<int[]> branches;
+
+		/**
+		 * Label offsets. -1 for labels that are not yet placed.
+		 */
+		private final int[] labels;
+
+		/**
+		 * Maximum operand stack size.
+		 */
+		int maxStack;
+
+		/**
+		 * Maximum local variable count.
+		 */
+		int maxLocals;
+
+		Code(int labelCount) {
+			this.bytes = new ByteArrayOutputStream();
+			this.branches = new ArrayList<>();
+			this.labels = new int[labelCount];
+			for (int i = 0; i < labelCount; i++) {
+				labels[i] = -1;
+			}
+		}
+
+		/**
+		 * Gets current offset in code.
+		 * @return Code offset.
+		 */
+		int position() {
+			return bytes.size();
+		}
+
+		/**
+		 * Places a label at current position.
+		 * @param label Label index.
+		 */
+		void label(int label) {
+			labels[label] = position();
+		}
+
+		void u1(int value) {
+			bytes.write(value);
+		}
+
+		void u2(int value) {
+			bytes.write(value >>> Byte.SIZE);
+			bytes.write(value);
+		}
+
+		void op(int opcode) {
+			bytes.write(opcode);
+		}
+
+		/**
+		 * Emits an instruction with a constant pool index.
+		 * @param opcode Opcode.
+		 * @param index Constant index.
+		 */
+		void op(int opcode, int index) {
+			op(opcode);
+			u2(index);
+		}
+
+		/**
+		 * Emits a local variable access instruction.
+		 * @param opcode {@link #ALOAD}, {@link #ASTORE}, {@link #ILOAD} or
+		 * {@link #ISTORE}.
+		 * @param local Local variable index.
+		 */
+		void local(int opcode, int local) {
+			if (local > MAX_NARROW_INDEX) {
+				op(WIDE);
+				op(opcode);
+				u2(local);
+			} else {
+				op(opcode);
+				u1(local);
+			}
+			maxLocals = Math.max(maxLocals, local + 1);
+		}
+
+		/**
+		 * Pushes an integer constant to operand stack.
+		 * @param writer Class file writer, for large constants.
+		 * @param value Value to push.
+		 */
+		void pushInt(ClassFileWriter writer, int value) {
+			if (value >= 0 && value <= ICONST_5 - ICONST_0) {
+				op(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op(BIPUSH);
+				u1(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op(SIPUSH);
+				u2(value);
+			} else {
+				op(LDC_W, writer.integer(value));
+			}
+		}
+
+		/**
+		 * Emits a branch instruction.
+		 * @param opcode Branch opcode.
+		 * @param label Label to branch to.
+		 */
+		void branch(int opcode, int label) {
+			branches.add(new int[] {position(), label});
+			op(opcode);
+			u2(0); // Patched later
+		}
+
+		/**
+		 * Gets the bytecode with branches patched.
+		 * @return Code bytes.
+		 * @throws IllegalArgumentException When a branch is too long.
+		 */
+		byte[] toByteArray() {
+			byte[] code = bytes.toByteArray();
+			if (code.length > MAX_U2) {
+				throw new IllegalArgumentException("method is too large");
+			}
+			for (int[] branch : branches) {
+				int target = labels[branch[1]];
+				assert target != -1 : "label was never placed";
+				int offset = target - branch[0];
+				if (offset > MAX_BRANCH || offset < -MAX_BRANCH) {
+					throw new IllegalArgumentException("branch is too long");
+				}
+				code[branch[0] + 1] = (byte) (offset >>> Byte.SIZE);
+				code[branch[0] + 2] = (byte) offset;
+			}
+			return code;
+		}
+	}
+}
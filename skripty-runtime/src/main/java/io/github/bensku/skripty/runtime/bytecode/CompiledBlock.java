@@ -0,0 +1,46 @@
+package io.github.bensku.skripty.runtime.bytecode;
+
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+
+/**
+ * An {@link IrBlock IR block} that has been compiled to JVM bytecode by
+ * {@link BytecodeCompiler}.
+ *
+ * @param <T> Type of runner state.
+ */
+public interface CompiledBlock<T extends RunnerState> {
+
+	/**
+	 * Executes this block.
+	 * @param state Runner state.
+	 * @return Value returned by the block, or null if it did not return
+	 * anything.
+	 * @throws Throwable Anything that expressions called by the block throw.
+	 */
+	Object run(T state) throws Throwable;
+
+	/**
+	 * Checks if execution of the block can be {@link #resume(RunnerState,
+	 * int, Object[]) resumed} in compiled code at given node. This is
+	 * possible at loop headers, unless primitive lanes of the stack are used
+	 * there.
+	 * @param index Index of IR node.
+	 * @return Whether execution can be resumed at the node.
+	 */
+	boolean canResume(int index);
+
+	/**
+	 * Continues execution that was started in interpreter. This is known as
+	 * on-stack replacement.
+	 * @param state Runner state.
+	 * @param index Index of IR node to continue at.
+	 * @param stack Values in IR stack before the node, from bottom to top.
+	 * @return Value returned by the block, or null if it did not return
+	 * anything.
+	 * @throws IllegalArgumentException When execution
+	 * {@link #canResume(int) cannot be resumed} at the node.
+	 * @throws Throwable Anything that expressions called by the block throw.
+	 */
+	Object resume(T state, int index, Object[] stack) throws Throwable;
+}
@@ -0,0 +1,392 @@
+package io.github.bensku.skripty.runtime.ir;
+
+import java.lang.invoke.MethodHandle;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import io.github.bensku.skripty.runtime.ScriptRunner;
+
+/**
+ * A compact, immutable encoding of an {@link IrBlock}. Instead of node
+ * objects, instructions are stored in a single int array. Each instruction
+ * is an {@link Opcodes opcode} followed by its operands. Values that do not
+ * fit in ints, such as literals and method handles, are stored in a constant
+ * pool and referred to by their indices.
+ *
+ * <p>Instructions and their operands are:
+ * <ul>
+ * <li>{@link Opcodes#POP}: none
+ * <li>{@link Opcodes#LOAD_CONSTANT}: index of value in pool; both literals
+ * and constants are loaded with this
+ * <li>{@link Opcodes#CALL_PLAIN} and {@link Opcodes#CALL_WITH_STATE}:
+ * amount of arguments from stack and index of
+ * {@link IrNode.CallMethod#getInvoker() invoker} in pool (or
+ * {@link IrNode.CallMethod#getSpreader() spreader}, if there are more than
+ * {@link IrNode.CallMethod#MAX_DIRECT_ARGS} arguments)
+ * <li>{@link Opcodes#JUMP}: index of the expected value in pool and offset
+ * of jump target in instruction array
+ * <li>{@link Opcodes#RETURN}: none
+ * <li>{@link Opcodes#LOAD_PRIMITIVE}: high and low 32 bits of the value in
+ * primitive lane
+ * <li>{@link Opcodes#CALL_LANED}: amount of arguments from stack, index of
+ * {@link IrNode.CallMethod#getLaneInvoker() lane invoker} in pool and 1 if
+ * return value is primitive, otherwise 0
+ * <li>{@link Opcodes#SUSPEND_POINT}: none
+ * </ul>
+ *
+ * <p>In addition to these, {@link Superinstructions superinstructions}
+ * that replace two nodes may be used. They have same operands as their first
+ * node, except that {@link Opcodes#LOAD_CONSTANT2} has pool indices of both
+ * values, and jump target of {@link Opcodes#JUMP_AND_POP} is after the pop.
+ *
+ * <p>{@link ExceptionHandler Exception handlers} are stored in a separate
+ * array, with instruction offsets of start and end of their region, offset
+ * of the handler and stack height at start of the region. Line number
+ * table of the block is kept too, with instruction offsets in place of node
+ * indices.
+ *
+ * <p>Compact blocks can be executed with {@link ScriptRunner}.
+ *
+ */
+public final class CompactBlock {
+
+	/**
+	 * Operand count of {@link Opcodes#CALL_LANED}.
+	 */
+	private static final int LANED_CALL_OPERANDS = 3;
+
+	/**
+	 * Amount of ints per exception handler in {@link #handlerArray()}.
+	 */
+	public static final int HANDLER_SIZE = 4;
+	
+	private static final int HANDLER_TARGET = 2;
+	private static final int HANDLER_HEIGHT = 3;
+
+	/**
+	 * Encodes an IR block using all {@link Superinstructions#ALL
+	 * superinstructions}. The block is {@link IrVerifier verified} first.
+	 * @param block IR block.
+	 * @return Compact version of the block.
+	 * @throws IllegalArgumentException When the block is not valid.
+	 */
+	public static CompactBlock encode(IrBlock block) {
+		return encode(block, Superinstructions.ALL);
+	}
+
+	/**
+	 * Encodes an IR block. The block is {@link IrVerifier verified} first.
+	 * @param block IR block.
+	 * @param superinstructions Superinstructions that may be used.
+	 * @return Compact version of the block.
+	 * @throws IllegalArgumentException When the block is not valid.
+	 */
+	public static CompactBlock encode(IrBlock block, Superinstructions superinstructions) {
+		int maxStack = block.getMaxStack();
+		IrNode[] nodes = block.nodeArray();
+		int size = block.size();
+
+		// Jump targets must not be fused to nodes before them
+		boolean[] targets = new boolean[size + 1];
+		for (int i = 0; i < size; i++) {
+			if (nodes[i].getOpcode() == Opcodes.JUMP) {
+				targets[((IrNode.Jump) nodes[i]).getTarget()] = true;
+			}
+		}
+		ExceptionHandler[] handlers = block.getHandlers();
+		for (ExceptionHandler handler : handlers) { // Neither can bounds of try regions
+			targets[handler.getStart()] = true;
+			targets[handler.getEnd()] = true;
+			targets[handler.getTarget()] = true;
+		}
+		int[] lines = block.getLineTable();
+		for (int i = 0; i < lines.length; i += 2) { // Or first nodes of lines
+			targets[lines[i]] = true;
+		}
+
+		// Select instructions, and figure out where each of them will be
+		int[] instructions = new int[size];
+		int[] offsets = new int[size + 1];
+		int length = 0;
+		for (int i = 0; i < size; i++) {
+			offsets[i] = length;
+			int instruction = selectInstruction(nodes, size, i, targets, superinstructions);
+			instructions[i] = instruction;
+			length += 1 + operandCount(instruction);
+			if (isFused(instruction)) {
+				i++; // Next node is part of this instruction
+				offsets[i] = -1; // Never a jump target
+			}
+		}
+		offsets[size] = length;
+
+		int[] code = new int[length];
+		Map<Object, Integer> indices = new IdentityHashMap<>();
+		int pc = 0;
+		for (int i = 0; i < size; i++) {
+			IrNode node = nodes[i];
+			int instruction = instructions[i];
+			code[pc++] = instruction;
+			switch (instruction) {
+			case Opcodes.POP:
+			case Opcodes.RETURN:
+				break; // No operands
+			case Opcodes.LOAD_CONSTANT:
+				code[pc++] = poolIndex(indices, loadedValue(block, node));
+				break;
+			case Opcodes.LOAD_CONSTANT2:
+				code[pc++] = poolIndex(indices, loadedValue(block, node));
+				code[pc++] = poolIndex(indices, loadedValue(block, nodes[++i]));
+				break;
+			case Opcodes.CALL_PLAIN:
+			case Opcodes.CALL_WITH_STATE:
+			case Opcodes.CALL_PLAIN_AND_POP:
+			case Opcodes.CALL_WITH_STATE_AND_POP:
+				IrNode.CallMethod call = (IrNode.CallMethod) node;
+				int argCount = call.getArgumentCount();
+				MethodHandle handle = argCount > IrNode.CallMethod.MAX_DIRECT_ARGS
+						? call.getSpreader() : call.getInvoker();
+				code[pc++] = argCount;
+				code[pc++] = poolIndex(indices, handle);
+				if (isFused(instruction)) {
+					i++; // Skip the pop
+				}
+				break;
+			case Opcodes.JUMP:
+				IrNode.Jump jump = (IrNode.Jump) node;
+				code[pc++] = poolIndex(indices, jump.getConstant());
+				code[pc++] = offsets[jump.getTarget()];
+				break;
+			case Opcodes.JUMP_AND_POP:
+				jump = (IrNode.Jump) node;
+				code[pc++] = poolIndex(indices, jump.getConstant());
+				code[pc++] = offsets[jump.getTarget() + 1]; // Pop is done by this instruction
+				break;
+			case Opcodes.LOAD_PRIMITIVE:
+				long bits = ((IrNode.LoadPrimitive) node).getBits();
+				code[pc++] = (int) (bits >>> Integer.SIZE);
+				code[pc++] = (int) bits;
+				break;
+			case Opcodes.CALL_LANED:
+				call = (IrNode.CallMethod) node;
+				code[pc++] = call.getArgumentCount();
+				code[pc++] = poolIndex(indices, call.getLaneInvoker());
+				code[pc++] = call.hasPrimitiveReturn() ? 1 : 0;
+				break;
+			case Opcodes.SUSPEND_POINT:
+				break;
+			default:
+				throw new AssertionError("unknown opcode " + instruction);
+			}
+		}
+
+		// Pool indices were assigned in order, so this is easy to reverse
+		Object[] pool = new Object[indices.size()];
+		for (Map.Entry<Object, Integer> entry : indices.entrySet()) {
+			pool[entry.getValue()] = entry.getKey();
+		}
+		
+		int[] handlerTable = new int[handlers.length * HANDLER_SIZE];
+		for (int i = 0; i < handlers.length; i++) {
+			int offset = i * HANDLER_SIZE;
+			handlerTable[offset] = offsets[handlers[i].getStart()];
+			handlerTable[offset + 1] = offsets[handlers[i].getEnd()];
+			handlerTable[offset + HANDLER_TARGET] = offsets[handlers[i].getTarget()];
+			handlerTable[offset + HANDLER_HEIGHT] = block.getHandlerHeight(i);
+		}
+		for (int i = 0; i < lines.length; i += 2) {
+			lines[i] = offsets[lines[i]];
+		}
+		return new CompactBlock(code, pool, handlerTable, lines, maxStack);
+	}
+
+	/**
+	 * Selects the instruction that a node is encoded as.
+	 * @param nodes IR nodes.
+	 * @param size Amount of nodes.
+	 * @param index Index of the node.
+	 * @param targets Which nodes are jump targets.
+	 * @param superinstructions Superinstructions that may be used.
+	 * @return Opcode of the instruction.
+	 */
+	private static int selectInstruction(IrNode[] nodes, int size, int index, boolean[] targets,
+			Superinstructions superinstructions) {
+		int opcode = nodes[index].getOpcode();
+		int next = index + 1 < size && !targets[index + 1] ? nodes[index + 1].getOpcode() : -1;
+		switch (opcode) {
+		case Opcodes.LOAD_LITERAL:
+		case Opcodes.LOAD_CONSTANT:
+			boolean nextIsLoad = next == Opcodes.LOAD_LITERAL || next == Opcodes.LOAD_CONSTANT;
+			return superinstructions.loadTwo() && nextIsLoad ? Opcodes.LOAD_CONSTANT2 : Opcodes.LOAD_CONSTANT;
+		case Opcodes.CALL_PLAIN:
+			return superinstructions.callAndPop() && next == Opcodes.POP ? Opcodes.CALL_PLAIN_AND_POP : opcode;
+		case Opcodes.CALL_WITH_STATE:
+			return superinstructions.callAndPop() && next == Opcodes.POP ? Opcodes.CALL_WITH_STATE_AND_POP : opcode;
+		case Opcodes.JUMP:
+			int target = ((IrNode.Jump) nodes[index]).getTarget();
+			boolean toPop = target < size && nodes[target].getOpcode() == Opcodes.POP;
+			return superinstructions.jumpAndPop() && toPop ? Opcodes.JUMP_AND_POP : opcode;
+		default:
+			return opcode;
+		}
+	}
+
+	/**
+	 * Checks if an instruction replaces two nodes.
+	 * @param instruction Opcode of the instruction.
+	 * @return Whether the node after the first one is part of instruction.
+	 */
+	private static boolean isFused(int instruction) {
+		return instruction == Opcodes.LOAD_CONSTANT2 || instruction == Opcodes.CALL_PLAIN_AND_POP
+				|| instruction == Opcodes.CALL_WITH_STATE_AND_POP;
+	}
+
+	/**
+	 * Gets how many operands an instruction has.
+	 * @param instruction Opcode of the instruction.
+	 * @return Operand count.
+	 */
+	private static int operandCount(int instruction) {
+		switch (instruction) {
+		case Opcodes.POP:
+		case Opcodes.RETURN:
+			return 0;
+		case Opcodes.LOAD_CONSTANT:
+			return 1;
+		case Opcodes.CALL_LANED:
+			return LANED_CALL_OPERANDS;
+		default: // Calls, jumps, two loads and primitive loads
+			return 2;
+		}
+	}
+
+	/**
+	 * Gets the value that a literal or constant load node loads.
+	 * @param block IR block that the node is in.
+	 * @param node Load node.
+	 * @return Loaded value.
+	 */
+	private static Object loadedValue(IrBlock block, IrNode node) {
+		if (node instanceof IrNode.LoadLiteral) {
+			return ((IrNode.LoadLiteral) node).getValue();
+		} else {
+			return block.getConstant(((IrNode.LoadConstant) node).getIndex());
+		}
+	}
+
+	private static int poolIndex(Map<Object, Integer> indices, Object value) {
+		return indices.computeIfAbsent(value, key -> indices.size());
+	}
+
+	/**
+	 * Instructions and their operands.
+	 */
+	private final int[] code;
+
+	/**
+	 * Values that instructions refer to.
+	 */
+	private final Object[] pool;
+
+	/**
+	 * Exception handlers, {@link #HANDLER_SIZE} ints each.
+	 */
+	private final int[] handlers;
+
+	/**
+	 * Pairs of first instruction offset and source line, sorted by offset.
+	 */
+	private final int[] lines;
+
+	/**
+	 * Maximum stack height.
+	 */
+	private final int maxStack;
+
+	private CompactBlock(int[] code, Object[] pool, int[] handlers, int[] lines, int maxStack) {
+		this.code = code;
+		this.pool = pool;
+		this.handlers = handlers;
+		this.lines = lines;
+		this.maxStack = maxStack;
+	}
+
+	/**
+	 * Gets the instruction array. It must not be modified.
+	 * @return Instructions and their operands.
+	 */
+	public int[] codeArray() {
+		return code;
+	}
+
+	/**
+	 * Gets the constant pool. It must not be modified.
+	 * @return Constant pool.
+	 */
+	public Object[] poolArray() {
+		return pool;
+	}
+
+	/**
+	 * Gets the exception handler table. It must not be modified.
+	 * @return Exception handlers, {@link #HANDLER_SIZE} ints each.
+	 */
+	public int[] handlerArray() {
+		return handlers;
+	}
+
+	/**
+	 * Finds the exception handler for an instruction.
+	 * @param pc Offset of the instruction.
+	 * @return Offset of the handler in {@link #handlerArray()}, or -1 if the
+	 * instruction is not in any try region.
+	 */
+	public int findHandler(int pc) {
+		for (int i = 0; i < handlers.length; i += HANDLER_SIZE) {
+			if (pc >= handlers[i] && pc < handlers[i + 1]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the offset where a handler starts.
+	 * @param handler Offset of the handler in {@link #handlerArray()}.
+	 * @return Instruction offset.
+	 */
+	public int getHandlerTarget(int handler) {
+		return handlers[handler + HANDLER_TARGET];
+	}
+
+	/**
+	 * Gets the stack height that a handler resets the stack to.
+	 * @param handler Offset of the handler in {@link #handlerArray()}.
+	 * @return Stack height at start of its try region.
+	 */
+	public int getHandlerHeight(int handler) {
+		return handlers[handler + HANDLER_HEIGHT];
+	}
+
+	/**
+	 * Gets the source line of an instruction.
+	 * @param pc Offset of the instruction.
+	 * @return Line number, or -1 if not known.
+	 */
+	public int getLine(int pc) {
+		int line = -1;
+		for (int i = 0; i < lines.length && lines[i] <= pc; i += 2) {
+			line = lines[i + 1]; // Lines are few, linear search is fine
+		}
+		return line;
+	}
+
+	/**
+	 * Gets the maximum height that the stack can reach when this block is
+	 * executed.
+	 * @return Maximum stack height.
+	 */
+	public int getMaxStack() {
+		return maxStack;
+	}
+}
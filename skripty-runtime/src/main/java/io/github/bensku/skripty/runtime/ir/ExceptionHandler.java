@@ -0,0 +1,70 @@
+package io.github.bensku.skripty.runtime.ir;
+
+import io.github.bensku.skripty.core.ScriptException;
+
+/**
+ * A try region of an {@link IrBlock IR block} and the handler of it. When a
+ * node in the region throws an exception, the stack is reset to the height
+ * that it had at start of the region, a {@link ScriptException} is pushed
+ * and control continues from the handler. Other exceptions are wrapped in
+ * script exceptions; {@link Error errors} are never handled.
+ *
+ * <p>Regions may be nested. When several regions contain the node that
+ * threw, the handler that was added to the block first is used, so inner
+ * regions should be added before outer ones.
+ *
+ */
+public final class ExceptionHandler {
+
+	/**
+	 * Index of first node in the region.
+	 */
+	private final int start;
+
+	/**
+	 * Index of first node after the region.
+	 */
+	private final int end;
+
+	/**
+	 * Index of first node of the handler.
+	 */
+	private final int target;
+
+	/**
+	 * Creates a new exception handler.
+	 * @param start Index of first node in the region.
+	 * @param end Index of first node after the region.
+	 * @param target Index of first node of the handler.
+	 * @throws IllegalArgumentException When the region is empty.
+	 */
+	public ExceptionHandler(int start, int end, int target) {
+		if (start < 0 || end <= start) {
+			throw new IllegalArgumentException("empty try region " + start + "-" + end);
+		}
+		this.start = start;
+		this.end = end;
+		this.target = target;
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public int getTarget() {
+		return target;
+	}
+
+	/**
+	 * Checks if a node is in the region of this handler.
+	 * @param index Index of the node.
+	 * @return Whether the node is covered.
+	 */
+	public boolean covers(int index) {
+		return index >= start && index < end;
+	}
+}
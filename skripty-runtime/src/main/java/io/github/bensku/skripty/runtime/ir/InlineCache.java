@@ -0,0 +1,206 @@
+package io.github.bensku.skripty.runtime.ir;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.bensku.skripty.core.ScriptException;
+import io.github.bensku.skripty.core.expression.CallTarget;
+import io.github.bensku.skripty.core.expression.CallableExpression;
+import io.github.bensku.skripty.core.type.SkriptType;
+
+/**
+ * Inline cache of a call site where exact call target could not be resolved
+ * at compile time. Call targets are instead selected based on classes of
+ * arguments when the call is made. Selected targets are remembered, so
+ * {@link CallableExpression#findTarget(SkriptType[], Class[], boolean)} is
+ * only called when arguments of a new combination of classes are seen.
+ *
+ * <p>The cache is a chain of class checks in a {@link MutableCallSite}. Up
+ * to {@link #MAX_ENTRIES} combinations of argument classes are placed in
+ * the chain. After that, the call site is megamorphic; arguments that the
+ * chain does not match end up in one generic handler, which remembers
+ * targets of all combinations it has seen in a map.
+ *
+ */
+public final class InlineCache {
+
+	/**
+	 * Maximum amount of remembered argument class combinations.
+	 */
+	public static final int MAX_ENTRIES = 4;
+
+	private static final MethodHandle CHECK_CLASS;
+	private static final MethodHandle MISS;
+
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			CHECK_CLASS = lookup.findStatic(InlineCache.class, "checkClass",
+					MethodType.methodType(boolean.class, Class.class, Object.class));
+			MISS = lookup.findVirtual(InlineCache.class, "miss",
+					MethodType.methodType(Object.class, Object[].class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static boolean checkClass(Class<?> expected, Object value) {
+		return value != null && value.getClass() == expected;
+	}
+
+	/**
+	 * Expression that is called.
+	 */
+	private final CallableExpression callable;
+
+	/**
+	 * Types of inputs of the expression at the call site.
+	 */
+	private final SkriptType[] inputTypes;
+
+	/**
+	 * Invoker of the call target that is used when arguments are null, or
+	 * null if there is no such target.
+	 */
+	private final MethodHandle fallback;
+
+	/**
+	 * Invokers for argument class combinations that did not fit in the
+	 * chain of class checks.
+	 */
+	private final Map<List<Class<?>>, MethodHandle> megamorphic;
+
+	/**
+	 * Call site that contains the cache.
+	 */
+	private final MutableCallSite site;
+
+	/**
+	 * Handle that calls through the cache.
+	 */
+	private final MethodHandle invoker;
+
+	/**
+	 * Count of remembered argument class combinations.
+	 */
+	private int entries;
+
+	/**
+	 * Creates a new, empty inline cache.
+	 * @param callable Expression that is called.
+	 * @param inputTypes Types of inputs at the call site.
+	 * @param fallback Call target that is used when some of the arguments
+	 * are null, and their classes are thus not known. May be null if there
+	 * is no such target.
+	 */
+	public InlineCache(CallableExpression callable, SkriptType[] inputTypes, CallTarget fallback) {
+		this.callable = callable;
+		this.inputTypes = inputTypes;
+		this.fallback = fallback != null ? createInvoker(fallback) : null;
+		this.megamorphic = new ConcurrentHashMap<>();
+		// Initially, every call misses; runner state is the first argument
+		this.site = new MutableCallSite(MISS.bindTo(this).asCollector(Object[].class, inputTypes.length + 1));
+		this.invoker = site.dynamicInvoker();
+	}
+
+	/**
+	 * Gets a handle that calls through this cache. It is erased, and takes
+	 * the runner state followed by the arguments.
+	 * @return Cached invoker.
+	 */
+	public MethodHandle getInvoker() {
+		return invoker;
+	}
+
+	/**
+	 * Gets how many combinations of argument classes this cache remembers.
+	 * @return Count of cache entries.
+	 */
+	public synchronized int size() {
+		return entries;
+	}
+
+	/**
+	 * Called when arguments do not match any of the cache entries.
+	 * @param args Runner state and arguments.
+	 * @return Return value of the call.
+	 * @throws Throwable Whatever the call target throws.
+	 */
+	private Object miss(Object[] args) throws Throwable {
+		Class<?>[] classes = new Class<?>[args.length - 1];
+		boolean hasNulls = false;
+		for (int i = 0; i < classes.length; i++) {
+			Object arg = args[i + 1];
+			hasNulls |= arg == null;
+			classes[i] = arg == null ? null : arg.getClass();
+		}
+
+		MethodHandle target;
+		if (hasNulls) { // Can't select a target based on classes
+			if (fallback == null) {
+				throw new ScriptException("no call target accepts null arguments");
+			}
+			target = fallback;
+		} else {
+			List<Class<?>> key = Arrays.asList(classes);
+			target = megamorphic.get(key);
+			if (target == null) {
+				CallTarget found = callable.findTarget(inputTypes, classes, true);
+				if (found == null) {
+					found = callable.findTarget(inputTypes, classes, false);
+				}
+				if (found == null) {
+					throw new ScriptException("no call target accepts arguments of classes "
+							+ Arrays.toString(classes));
+				}
+				target = createInvoker(found);
+				if (!link(classes, target)) {
+					megamorphic.put(key, target);
+				}
+			}
+		}
+		return target.invokeWithArguments(args);
+	}
+
+	/**
+	 * Creates an erased handle that calls a call target.
+	 * @param target Call target.
+	 * @return Handle that takes runner state and arguments.
+	 */
+	private MethodHandle createInvoker(CallTarget target) {
+		MethodHandle handle = target.getMethod().bindTo(callable.getInstance());
+		if (!target.shouldInjectState()) {
+			handle = MethodHandles.dropArguments(handle, 0, Object.class); // Ignore the state
+		}
+		return handle.asType(MethodType.genericMethodType(inputTypes.length + 1));
+	}
+
+	/**
+	 * Adds an entry to chain of this cache, unless it is full.
+	 * @param classes Argument classes.
+	 * @param target Handle to call when arguments have these classes.
+	 * @return Whether the entry was added.
+	 */
+	private synchronized boolean link(Class<?>[] classes, MethodHandle target) {
+		if (entries == MAX_ENTRIES) {
+			return false; // Megamorphic, stop growing the chain
+		}
+		MethodHandle next = site.getTarget();
+		MethodHandle hit = target;
+		for (int i = classes.length - 1; i >= 0; i--) {
+			// Test takes state and arguments up to the one that it checks
+			MethodHandle test = CHECK_CLASS.bindTo(classes[i]);
+			test = MethodHandles.dropArguments(test, 0, MethodType.genericMethodType(i + 1).parameterList());
+			hit = MethodHandles.guardWithTest(test, hit, next);
+		}
+		site.setTarget(hit);
+		entries++;
+		return true;
+	}
+}
@@ -3,6 +3,8 @@ package io.github.bensku.skripty.runtime.ir;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Function;
 
 import io.github.bensku.skripty.core.flow.ScopeEntry;
@@ -10,6 +12,10 @@ import io.github.bensku.skripty.core.flow.ScopeEntry;
 /**
  * Converts symbolic assembly language to IR.
  *
+ * <p>Each line is a node, except lines of form
+ * {@code Handler <start> <end> <target>}, which add
+ * {@link ExceptionHandler exception handlers} to the block.
+ *
  */
 public class IrAssembler {
 
@@ -22,19 +28,37 @@ public class IrAssembler {
 		this.literalParser = literalParser;
 	}
 	
+	/**
+	 * Index of handler target in arguments of a Handler line.
+	 */
+	private static final int HANDLER_TARGET = 3;
+	
 	/**
 	 * Parses a block of assembly separated by new lines.
 	 * @param source Source code.
+	 * @param constants Constant pool of the block. LoadConstant instructions
+	 * refer to values in it by their indices.
 	 * @return An IR block.
 	 * @throws IllegalArgumentException When parsing one of the lines failed.
 	 */
-	public IrBlock parseBlock(String source) {
+	public IrBlock parseBlock(String source, Object... constants) {
 		String[] lines = source.split("\n");
-		IrNode[] nodes = new IrNode[lines.length];
-		for (int i = 0; i < nodes.length; i++) {
-			nodes[i] = parseNode(lines[i]);
+		List<IrNode> nodes = new ArrayList<>();
+		List<ExceptionHandler> handlers = new ArrayList<>();
+		for (String line : lines) {
+			if (line.startsWith("Handler ")) { // Not a node, doesn't affect indices
+				String[] args = line.split(" ");
+				handlers.add(new ExceptionHandler(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+						Integer.parseInt(args[HANDLER_TARGET])));
+			} else {
+				nodes.add(parseNode(line));
+			}
+		}
+		IrBlock block = new IrBlock(nodes.toArray(new IrNode[0]), constants);
+		for (ExceptionHandler handler : handlers) {
+			block.addHandler(handler);
 		}
-		return new IrBlock(nodes);
+		return block;
 	}
 	
 	/**
@@ -54,7 +78,11 @@ public class IrAssembler {
 		case "LoadLiteral":
 			return new IrNode.LoadLiteral(parseLiteral(content));
 		case "LoadConstant":
-			throw new UnsupportedOperationException("LoadConstant is not yet supported");
+			try {
+				return new IrNode.LoadConstant(Integer.parseInt(content));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("invalid constant index: " + content, e);
+			}
 		case "CallPlain":
 			try {
 				return new IrNode.CallPlain(parseMethodHandle(content), false);
@@ -72,6 +100,8 @@ public class IrAssembler {
 			return new IrNode.Jump(parseScopeEntry(args[0]), Integer.parseInt(args[1]));
 		case "Return":
 			return IrNode.Return.INSTANCE;
+		case "SuspendPoint":
+			return IrNode.SuspendPoint.INSTANCE;
 		default:
 			throw new IllegalArgumentException("unknown instruction: " + type);
 		}
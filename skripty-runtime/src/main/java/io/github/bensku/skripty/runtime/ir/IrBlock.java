@@ -1,15 +1,30 @@
 package io.github.bensku.skripty.runtime.ir;
 
+import java.util.Arrays;
+
+import io.github.bensku.skripty.core.RunnerState;
 import io.github.bensku.skripty.runtime.ScriptRunner;
 
 /**
  * Represents a block of {@link IrNode IR nodes}.
  *
+ * <p>Blocks are mutable while they are being built. Once a block is
+ * {@link #seal() sealed}, it can no longer be modified, and it can be
+ * executed from many threads concurrently. All state of a single execution
+ * is in the {@link RunnerState runner state} and the stack of the thread
+ * that runs it.
+ *
  */
 public class IrBlock {
 	
 	private static final int INITIAL_NODE_COUNT = 64;
 	
+	private static final Object[] NO_CONSTANTS = new Object[0];
+	
+	private static final int[] NO_LINES = new int[0];
+	
+	private static final ExceptionHandler[] NO_HANDLERS = new ExceptionHandler[0];
+	
 	/**
 	 * The IR nodes in this block.
 	 */
@@ -24,16 +39,76 @@ public class IrBlock {
 	 * Amount of nodes.
 	 */
 	private int nodeCount;
+	
+	/**
+	 * Values that {@link IrNode.LoadConstant} nodes load.
+	 */
+	private Object[] constants;
+	
+	/**
+	 * Amount of constants in pool.
+	 */
+	private int constantCount;
+	
+	/**
+	 * Line number table; pairs of first node index and source line, sorted
+	 * by node index.
+	 */
+	private int[] lines;
+	
+	/**
+	 * Amount of ints used in {@link #lines}.
+	 */
+	private int lineCount;
+	
+	/**
+	 * Exception handlers, in order of priority.
+	 */
+	private ExceptionHandler[] handlers;
+	
+	/**
+	 * Stack heights at starts of try regions of the handlers. Computed
+	 * together with {@link #maxStack}.
+	 */
+	private int[] handlerHeights;
+	
+	/**
+	 * Maximum stack height, or -1 if it has not yet been computed.
+	 */
+	private int maxStack;
+	
+	/**
+	 * If this block can no longer be modified.
+	 */
+	private boolean sealed;
 
 	public IrBlock() {
 		this.nodes = new IrNode[INITIAL_NODE_COUNT];
 		this.opcodes = new int[INITIAL_NODE_COUNT];
+		this.constants = NO_CONSTANTS;
+		this.lines = NO_LINES;
+		this.handlers = NO_HANDLERS;
+		this.maxStack = -1;
 	}
 	
 	public IrBlock(IrNode[] nodes) {
+		this(nodes, NO_CONSTANTS);
+	}
+	
+	/**
+	 * Creates a block with given nodes and constant pool.
+	 * @param nodes IR nodes.
+	 * @param constants Values for {@link IrNode.LoadConstant constant loads}.
+	 */
+	public IrBlock(IrNode[] nodes, Object[] constants) {
 		this.nodes = nodes;
 		this.opcodes = new int[nodes.length];
 		this.nodeCount = nodes.length;
+		this.constants = constants;
+		this.constantCount = constants.length;
+		this.lines = NO_LINES;
+		this.handlers = NO_HANDLERS;
+		this.maxStack = -1;
 		
 		// Fill opcodes array
 		for (int i = 0; i < nodes.length; i++) {
@@ -54,6 +129,7 @@ public class IrBlock {
 	 * @param node Node.
 	 */
 	public void append(IrNode node) {
+		checkNotSealed();
 		set(skip(), node);
 	}
 	
@@ -63,6 +139,7 @@ public class IrBlock {
 	 * @return Index for node.
 	 */
 	public int skip() {
+		checkNotSealed();
 		int slot = nodeCount++;
 		if (slot == nodes.length) { // Enlarge array
 			int[] newOpcodes = new int[opcodes.length * 2];
@@ -82,11 +159,226 @@ public class IrBlock {
 	 * @param node New node.
 	 */
 	public void set(int index, IrNode node) {
+		checkNotSealed();
 		if (index >= nodeCount) {
 			throw new IllegalArgumentException("only existing nodes or skipped slots can be set");
 		}
 		nodes[index] = node;
 		opcodes[index] = node.getOpcode();
+		maxStack = -1; // Needs to be recomputed
+	}
+	
+	/**
+	 * Adds a value to constant pool of this block. If the exact same value
+	 * is already in pool, it is not added again.
+	 * @param value Constant value.
+	 * @return Index of the constant, for {@link IrNode.LoadConstant}.
+	 */
+	public int addConstant(Object value) {
+		checkNotSealed();
+		for (int i = 0; i < constantCount; i++) {
+			if (constants[i] == value) {
+				return i;
+			}
+		}
+		if (constantCount == constants.length) { // Enlarge array
+			Object[] newConstants = new Object[Math.max(1, constants.length * 2)];
+			System.arraycopy(constants, 0, newConstants, 0, constantCount);
+			constants = newConstants;
+		}
+		constants[constantCount] = value;
+		return constantCount++;
+	}
+	
+	/**
+	 * Records that nodes starting from given index come from a source line.
+	 * Entries must be added in order of node indices. If an entry for the
+	 * index already exists, its line is replaced.
+	 * @param index Index of first node from the line.
+	 * @param line Line number.
+	 * @throws IllegalArgumentException When the index is before the index of
+	 * previous entry.
+	 */
+	public void addLine(int index, int line) {
+		checkNotSealed();
+		if (lineCount > 0 && lines[lineCount - 2] >= index) {
+			if (lines[lineCount - 2] > index) {
+				throw new IllegalArgumentException("line table entries must be added in order");
+			}
+			lines[lineCount - 1] = line; // Previous line has no nodes
+			return;
+		}
+		if (lineCount == lines.length) { // Enlarge array
+			lines = Arrays.copyOf(lines, Math.max(2, lines.length * 2));
+		}
+		lines[lineCount++] = index;
+		lines[lineCount++] = line;
+	}
+	
+	/**
+	 * Gets the source line of a node.
+	 * @param index Index of the node.
+	 * @return Line number, or -1 if not known.
+	 */
+	public int getLine(int index) {
+		// Binary search for last entry that starts at or before the node
+		int low = 0;
+		int high = lineCount / 2 - 1;
+		int line = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (lines[middle * 2] <= index) {
+				line = lines[middle * 2 + 1];
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return line;
+	}
+	
+	/**
+	 * Gets the line number table of this block.
+	 * @return Pairs of first node index and source line, sorted by node
+	 * index.
+	 */
+	public int[] getLineTable() {
+		return Arrays.copyOf(lines, lineCount);
+	}
+	
+	/**
+	 * Adds an exception handler to this block. Handlers that are added first
+	 * take priority over later ones when their regions overlap.
+	 * @param handler Exception handler.
+	 */
+	public void addHandler(ExceptionHandler handler) {
+		checkNotSealed();
+		handlers = Arrays.copyOf(handlers, handlers.length + 1);
+		handlers[handlers.length - 1] = handler;
+		maxStack = -1; // Needs to be recomputed
+	}
+	
+	/**
+	 * Gets exception handlers of this block.
+	 * @return Exception handlers, in order of priority.
+	 */
+	public ExceptionHandler[] getHandlers() {
+		return Arrays.copyOf(handlers, handlers.length);
+	}
+	
+	/**
+	 * Gets an exception handler of this block.
+	 * @param index Index of the handler.
+	 * @return Exception handler.
+	 */
+	public ExceptionHandler getHandler(int index) {
+		return handlers[index];
+	}
+	
+	/**
+	 * Finds the exception handler for a node.
+	 * @param index Index of the node.
+	 * @return Index of the handler in {@link #getHandlers()}, or -1 if the
+	 * node is not in any try region.
+	 */
+	public int findHandler(int index) {
+		for (int i = 0; i < handlers.length; i++) {
+			if (handlers[i].covers(index)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Gets the stack height that a handler resets the stack to before it
+	 * pushes the exception.
+	 * @param handler Index of the handler.
+	 * @return Stack height at start of its try region.
+	 * @throws IllegalArgumentException When this block is not valid.
+	 */
+	public int getHandlerHeight(int handler) {
+		getMaxStack(); // Make sure that heights are computed
+		return handlerHeights[handler];
+	}
+	
+	/**
+	 * Seals this block. After this, nodes and constants cannot be changed,
+	 * and the block is safe to run from many threads, provided that it is
+	 * published to them safely (e.g. through an executor or a volatile
+	 * field). Sealing an already sealed block does nothing.
+	 * @return This block.
+	 * @throws IllegalArgumentException When this block is not valid.
+	 */
+	public IrBlock seal() {
+		if (sealed) {
+			return this;
+		}
+		getMaxStack(); // Verify now, so that concurrent runs don't have to
+		if (nodes.length != nodeCount) { // Trim to size
+			nodes = Arrays.copyOf(nodes, nodeCount);
+			opcodes = Arrays.copyOf(opcodes, nodeCount);
+		}
+		if (constants.length != constantCount) {
+			constants = Arrays.copyOf(constants, constantCount);
+		}
+		lines = getLineTable();
+		sealed = true;
+		return this;
+	}
+	
+	/**
+	 * Checks if this block has been {@link #seal() sealed}.
+	 * @return Whether this block can no longer be modified.
+	 */
+	public boolean isSealed() {
+		return sealed;
+	}
+	
+	private void checkNotSealed() {
+		if (sealed) {
+			throw new IllegalStateException("sealed blocks cannot be modified");
+		}
+	}
+	
+	/**
+	 * Gets a value from constant pool of this block.
+	 * @param index Index of the constant.
+	 * @return Constant value.
+	 */
+	public Object getConstant(int index) {
+		if (index >= constantCount) {
+			throw new IndexOutOfBoundsException("constant " + index + " is not in pool");
+		}
+		return constants[index];
+	}
+	
+	/**
+	 * Gets amount of values in constant pool of this block.
+	 * @return Constant count.
+	 */
+	public int getConstantCount() {
+		return constantCount;
+	}
+	
+	/**
+	 * Gets the maximum height that the stack can reach when this block is
+	 * executed. The block is {@link IrVerifier verified} when this is first
+	 * called after it has been modified.
+	 * @return Maximum stack height.
+	 * @throws IllegalArgumentException When this block is not valid.
+	 */
+	public int getMaxStack() {
+		if (maxStack == -1) {
+			IrVerifier.Result result = new IrVerifier().verify(this);
+			int[] heights = new int[handlers.length];
+			for (int i = 0; i < heights.length; i++) {
+				heights[i] = result.getStackHeight(handlers[i].getStart());
+			}
+			handlerHeights = heights;
+			maxStack = result.getMaxStack();
+		}
+		return maxStack;
 	}
 	
 	public IrNode[] getNodes() {
@@ -95,11 +387,30 @@ public class IrBlock {
 		return results;
 	}
 	
+	/**
+	 * Gets the internal node array of this block, without copying it. It
+	 * may be longer than {@link #size()}. The array must not be modified.
+	 * @return Node array.
+	 */
 	public IrNode[] nodeArray() {
 		return nodes;
 	}
 	
+	/**
+	 * Gets the internal opcode array of this block, without copying it. The
+	 * array must not be modified.
+	 * @return Opcode array.
+	 */
 	public int[] opcodeArray() {
 		return opcodes;
 	}
+	
+	/**
+	 * Gets the internal constant pool of this block, without copying it.
+	 * The array must not be modified.
+	 * @return Constant pool.
+	 */
+	public Object[] constantArray() {
+		return constants;
+	}
 }
@@ -1,6 +1,7 @@
 package io.github.bensku.skripty.runtime.ir;
 
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
 
 import io.github.bensku.skripty.core.AstNode;
 import io.github.bensku.skripty.core.RunnerState;
@@ -12,23 +13,30 @@ import io.github.bensku.skripty.core.expression.ConstantExpression;
 import io.github.bensku.skripty.core.expression.Expression;
 import io.github.bensku.skripty.core.flow.ScopeEntry;
 import io.github.bensku.skripty.core.type.SkriptType;
+import io.github.bensku.skripty.runtime.bytecode.BytecodeCompiler;
 
 /**
  * Compiles scripts into a flat, intermediate format that can be interpreted
- * or, in future, compiled to e.g. JVM bytecode.
+ * or compiled to JVM bytecode with {@link BytecodeCompiler}.
  *
  */
 public class IrCompiler {
 
+	/**
+	 * Optimizer for compiled blocks.
+	 */
+	private final IrOptimizer optimizer = new IrOptimizer();
+	
 	/**
 	 * Compiles given script block.
 	 * @param source Parsed script block.
-	 * @return Executable block of IR nodes.
+	 * @return Executable block of IR nodes. It is
+	 * {@link IrBlock#seal() sealed}, so it can be shared between threads.
 	 */
 	public IrBlock compile(ScriptBlock source) {
 		IrBlock block = new IrBlock();
 		compile(block, source);
-		return block;
+		return optimizer.optimize(block).seal();
 	}
 	
 	/**
@@ -37,26 +45,81 @@ public class IrCompiler {
 	 * @param source Source block.
 	 */
 	private void compile(IrBlock block, ScriptBlock source) {
-		int start = block.size();
-		
-		AstNode.Expr title = source.getTitleExpr();
-		int jumpAfterNode = -1;
-		if (title != null) { // If this might be conditional block, reserve space for initial jump
-			emitNode(block, title);
-			jumpAfterNode = block.skip();
+		AstNode.Expr titleExpr = source.getTitleExpr();
+		if (titleExpr == null) { // Not a conditional block
+			emitUnits(block, source);
+			return;
 		}
 		
-		// Emit contents of block
-		for (ScriptUnit unit : source.getUnits()) {
-			emitUnit(block, unit);
+		AstNode title = fold(titleExpr);
+		if (isConstant(title)) { // We know if the block is entered
+			Object entry = constantValue(title);
+			if (entry == ScopeEntry.NO) {
+				return; // Never entered, don't emit anything
+			} else if (entry == ScopeEntry.ONCE) {
+				emitUnits(block, source); // Always entered once, no need for jumps
+				return;
+			}
 		}
 		
-		if (title != null) { // Jump back to calling title if this might be a loop
+		if (canReturn(title, ScopeEntry.YES)) { // This might be a loop
+			// Loop start pops ScopeEntry of previous iteration from stack
+			// Push a placeholder for it to keep stack height same on first iteration
+			block.append(new IrNode.LoadLiteral(ScopeEntry.YES));
+			int start = block.size();
+			block.append(IrNode.Pop.INSTANCE);
+			emitAst(block, title);
+			int jumpAfterNode = block.skip();
+			
+			emitUnits(block, source);
+			
 			block.append(new IrNode.Jump(ScopeEntry.YES, start)); // Jump back to start to check again
 			// Add the initial check to space we reserved at start (NO -> skip this block)
 			block.set(jumpAfterNode, new IrNode.Jump(ScopeEntry.NO, block.size()));
 			// We end there after executing block or jump there
 			block.append(IrNode.Pop.INSTANCE); // In any case, the ScopeEntry goes away
+		} else { // Entered at most once, no need for back-edge
+			emitAst(block, title);
+			boolean canSkip = canReturn(title, ScopeEntry.NO);
+			int jumpAfterNode = canSkip ? block.skip() : -1;
+			emitUnits(block, source); // ScopeEntry stays in stack while block is executed
+			if (canSkip) {
+				block.set(jumpAfterNode, new IrNode.Jump(ScopeEntry.NO, block.size()));
+			}
+			block.append(IrNode.Pop.INSTANCE);
+		}
+	}
+	
+	/**
+	 * Checks if a title of scope may return given scope entry.
+	 * @param title Title AST node.
+	 * @param entry Scope entry.
+	 * @return Whether the entry might be returned.
+	 */
+	private boolean canReturn(AstNode title, ScopeEntry entry) {
+		if (isConstant(title)) {
+			return constantValue(title) == entry;
+		}
+		Expression expr = ((AstNode.Expr) title).getExpression();
+		if (expr instanceof CallableExpression) {
+			return ((CallableExpression) expr).canReturn(entry);
+		}
+		return true; // Not known
+	}
+	
+	/**
+	 * Emits contents of a source block.
+	 * @param block Target IR.
+	 * @param source Source block.
+	 */
+	private void emitUnits(IrBlock block, ScriptBlock source) {
+		ScriptUnit[] units = source.getUnits();
+		for (int i = 0; i < units.length; i++) {
+			int line = source.getLine(i);
+			if (line != -1) { // Nodes from here on are from this line
+				block.addLine(block.size(), line);
+			}
+			emitUnit(block, units[i]);
 		}
 	}
 	
@@ -69,70 +132,308 @@ public class IrCompiler {
 		if (unit instanceof ScriptBlock) { // Flatten block in block
 			compile(block, (ScriptBlock) unit);
 		} else { // Flatten and compile AST node
-			emitNode(block, (AstNode.Expr) unit);
+			AstNode node = fold((AstNode.Expr) unit);
+			if (node instanceof AstNode.Literal) {
+				block.append(new IrNode.LoadLiteral(((AstNode.Literal) node).getValue()));
+			} else { // Pop works with both lanes, so primitive results need not be boxed
+				emitNode(block, resolve((AstNode.Expr) node), true);
+			}
+			block.append(IrNode.Pop.INSTANCE); // Statements don't leave values to stack
 		}
 	}
 	
 	/**
-	 * Emits an expression node.
+	 * Emits a {@link #fold(AstNode) folded} AST node.
 	 * @param block Target IR.
+	 * @param node Literal or expression AST node.
+	 */
+	private void emitAst(IrBlock block, AstNode node) {
+		if (node instanceof AstNode.Literal) { // Whole expression was folded
+			block.append(new IrNode.LoadLiteral(((AstNode.Literal) node).getValue()));
+		} else {
+			emitNode(block, resolve((AstNode.Expr) node), false);
+		}
+	}
+	
+	/**
+	 * Checks if an AST node is a literal or a constant expression.
+	 * @param node AST node.
+	 * @return Whether the node always has same value.
+	 */
+	private static boolean isConstant(AstNode node) {
+		return node instanceof AstNode.Literal || ((AstNode.Expr) node).getExpression() instanceof ConstantExpression;
+	}
+	
+	/**
+	 * Gets value of a {@link #isConstant(AstNode) constant} AST node.
+	 * @param node Literal or constant expression node.
+	 * @return Value of the node.
+	 */
+	private static Object constantValue(AstNode node) {
+		if (node instanceof AstNode.Literal) {
+			return ((AstNode.Literal) node).getValue();
+		}
+		return ((AstNode.Expr) node).getExpression().call();
+	}
+	
+	/**
+	 * Evaluates constant parts of an AST node. {@link CallTarget#isPure() Pure}
+	 * calls where all inputs are {@link #isConstant(AstNode) constants} are
+	 * replaced by literals. Constant expressions are left as they are; their
+	 * values are snapshotted to constant pool of the block when they are
+	 * emitted.
+	 * @param node AST node.
+	 * @return A literal if the whole node was folded, otherwise an
+	 * expression node with folded inputs.
+	 */
+	private AstNode fold(AstNode node) {
+		if (isConstant(node)) {
+			return node; // Nothing to evaluate
+		}
+		AstNode.Expr expr = (AstNode.Expr) node;
+		Expression expression = expr.getExpression();
+		
+		// Fold inputs first; if they're all constants, this might be too
+		AstNode[] inputs = expr.getInputs();
+		AstNode[] folded = new AstNode[inputs.length];
+		boolean changed = false;
+		boolean constantInputs = true;
+		for (int i = 0; i < inputs.length; i++) {
+			folded[i] = fold(inputs[i]);
+			changed |= folded[i] != inputs[i];
+			constantInputs &= isConstant(folded[i]);
+		}
+		AstNode result = changed ? new AstNode.Expr(expression, folded) : expr;
+		if (!constantInputs) {
+			return result;
+		}
+		
+		// Find what would be called at runtime
+		SkriptType[] inputTypes = new SkriptType[inputs.length];
+		Class<?>[] inputClasses = new Class<?>[inputs.length];
+		Object[] values = new Object[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			inputTypes[i] = folded[i].getReturnType();
+			values[i] = constantValue(folded[i]);
+			if (values[i] == null) {
+				return result; // Target cannot be selected by class of null
+			}
+			inputClasses[i] = values[i].getClass();
+		}
+		CallableExpression callable = (CallableExpression) expression;
+		CallTarget target = callable.findTarget(inputTypes, inputClasses, true);
+		if (target == null) {
+			target = callable.findTarget(inputTypes, inputClasses, false);
+		}
+		if (target == null || !target.isPure() || target.shouldInjectState()) {
+			return result; // Runner state does not exist at compile time
+		}
+		
+		Object value;
+		try {
+			value = target.getMethod().bindTo(callable.getInstance()).invokeWithArguments(values);
+		} catch (Error e) {
+			throw e; // Not a failure of this expression
+		} catch (Throwable e) {
+			return result; // Let it fail at runtime, if it is ever executed
+		}
+		return value != null ? new AstNode.Literal(expression.getReturnType(), value) : result;
+	}
+	
+	/**
+	 * An expression node with its call target resolved.
+	 *
+	 */
+	private static class Resolved {
+		
+		/**
+		 * Inputs of the node.
+		 */
+		final AstNode[] inputs;
+		
+		/**
+		 * Types of the inputs.
+		 */
+		final SkriptType[] inputTypes;
+		
+		/**
+		 * Resolved expression inputs, or nulls for literal inputs.
+		 */
+		final Resolved[] resolvedInputs;
+		
+		/**
+		 * Expression that is called.
+		 */
+		final CallableExpression callable;
+		
+		/**
+		 * Call target, or null if the expression is constant or no target
+		 * could be resolved at compile time.
+		 */
+		final CallTarget target;
+		
+		/**
+		 * If no type conversions are needed to call the target.
+		 */
+		final boolean exact;
+		
+		/**
+		 * Value of a constant expression.
+		 */
+		final Object constant;
+		
+		Resolved(AstNode[] inputs, SkriptType[] inputTypes, Resolved[] resolvedInputs, CallableExpression callable,
+				CallTarget target, boolean exact) {
+			this.inputs = inputs;
+			this.inputTypes = inputTypes;
+			this.resolvedInputs = resolvedInputs;
+			this.callable = callable;
+			this.target = target;
+			this.exact = exact;
+			this.constant = null;
+		}
+		
+		Resolved(Object constant) {
+			this.inputs = new AstNode[0];
+			this.inputTypes = new SkriptType[0];
+			this.resolvedInputs = new Resolved[0];
+			this.callable = null;
+			this.target = null;
+			this.exact = false;
+			this.constant = constant;
+		}
+		
+		/**
+		 * Gets superclass of values this node returns.
+		 * @return Return class, which is primitive if the call target
+		 * returns a primitive.
+		 */
+		Class<?> getReturnClass() {
+			if (callable == null) { // Constant
+				return constant != null ? constant.getClass() : Object.class;
+			} else if (!exact) { // Inline cache selects target at runtime; it might return anything
+				return Object.class;
+			}
+			return target.getMethod().type().returnType();
+		}
+		
+		/**
+		 * Checks if the return value of this node can be placed in
+		 * primitive lane of the stack.
+		 * @param type Primitive type that is expected.
+		 * @return Whether a primitive of given type can be returned.
+		 */
+		boolean canReturnPrimitive(Class<?> type) {
+			return exact && getReturnClass() == type && inputs.length <= IrNode.CallMethod.MAX_DIRECT_ARGS;
+		}
+	}
+	
+	/**
+	 * Resolves call targets of an expression node and its inputs.
 	 * @param node Expression AST node.
-	 * @return Superclass of values this node returns.
+	 * @return Resolved node.
 	 */
-	private Class<?> emitNode(IrBlock block, AstNode.Expr node) {
+	private Resolved resolve(AstNode.Expr node) {
+		Expression expr = node.getExpression();
+		if (expr instanceof ConstantExpression) {
+			// Constant expressions always return same value, so take a snapshot now
+			return new Resolved(expr.call());
+		}
+		
 		AstNode[] inputs = node.getInputs();
+		Resolved[] resolvedInputs = new Resolved[inputs.length];
 		SkriptType[] inputTypes = new SkriptType[inputs.length];
-		Class<?>[] inputClasses = new Class[inputs.length];
-		for (int i = 0; i < inputs.length; i++) { // Emit nodes that load inputs to stack
+		Class<?>[] inputClasses = new Class<?>[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
 			AstNode input = inputs[i];
 			inputTypes[i] = input.getReturnType();
-			try {
-				inputClasses[i] = input.getReturnType().materialize().getBackingClass();
-			} catch (ClassNotFoundException e) {
-				assert false : "class we're compiling IR for is not loaded"; // TODO API usage error, handle better
-			}
-			if (input instanceof AstNode.Literal) { // Literal -> constant
-				Object constant = ((AstNode.Literal) input).getValue();
-				block.append(new IrNode.LoadLiteral(constant));
-				inputClasses[i] = constant.getClass();
+			if (input instanceof AstNode.Literal) {
+				inputClasses[i] = ((AstNode.Literal) input).getValue().getClass();
 			} else { // Handle expressions recursively
-				inputClasses[i] = emitNode(block, (AstNode.Expr) input);
+				resolvedInputs[i] = resolve((AstNode.Expr) input);
+				inputClasses[i] = resolvedInputs[i].getReturnClass();
 			}
 		}
 		
-		// Emit call to implementation of this node
-		return emitExpression(block, node.getExpression(), inputTypes, inputClasses);
+		CallableExpression callable = (CallableExpression) expr;
+		CallTarget target = callable.findTarget(inputTypes, inputClasses, true);
+		if (target == null) { // Boxed constants can be given as primitives, too
+			Class<?>[] unboxed = inputClasses.clone();
+			for (int i = 0; i < inputs.length; i++) {
+				if (isConstant(inputs[i])) {
+					Class<?> primitive = PrimitiveLanes.primitiveType(constantValue(inputs[i]));
+					unboxed[i] = primitive != null ? primitive : inputClasses[i];
+				}
+			}
+			target = callable.findTarget(inputTypes, unboxed, true);
+		}
+		if (target != null) {
+			return new Resolved(inputs, inputTypes, resolvedInputs, callable, target, true);
+		}
+		
+		// No exact target, inline cache will select one at runtime
+		// Target that accepts inputs of these classes, if any, is used for null arguments
+		target = callable.findTarget(inputTypes, inputClasses, false);
+		return new Resolved(inputs, inputTypes, resolvedInputs, callable, target, false);
 	}
 	
 	/**
-	 * Emits an expression.
+	 * Emits an expression node.
 	 * @param block Target IR.
-	 * @param expr Expression to emit.
-	 * @param inputTypes Types of the inputs.
-	 * @param inputClasses Classes of inputs given to the expression.
-	 * @return Superclass of values this expression returns.
+	 * @param node Resolved expression node.
+	 * @param primitiveResult If the result may be left in primitive lane of
+	 * the stack, when the call target returns a primitive.
 	 */
-	private Class<?> emitExpression(IrBlock block, Expression expr, SkriptType[] inputTypes, Class<?>[] inputClasses) {
-		if (expr instanceof ConstantExpression) { // Constant expression -> constant
-			// Do not allocate unnecessary vararg array
-			block.append(new IrNode.LoadConstant((ConstantExpression) expr));
-			// Constant "calls" are cheap, do one just to get the type
-			return expr.call((Object[]) null).getClass();
-		} else { // Resolve call target, emit call to it
-			CallableExpression callable = (CallableExpression) expr;
-			CallTarget target = callable.findTarget(inputTypes, inputClasses, true);
-			if (target != null) {
-				emitMethod(block, callable.getInstance(), target.getMethod(), true, target.shouldInjectState());
-				return target.getMethod().type().returnType(); // Do not emit two calls to same method
-			}
-			target = callable.findTarget(inputTypes, inputClasses, false);
-			if (target != null) {
-				emitMethod(block, callable.getInstance(), target.getMethod(), false, target.shouldInjectState());
+	private void emitNode(IrBlock block, Resolved node, boolean primitiveResult) {
+		if (node.callable == null) { // Constant expression -> constant
+			block.append(new IrNode.LoadConstant(block.addConstant(node.constant)));
+			return;
+		}
+		
+		// Primitives can be passed in primitive lanes if there are not too many arguments
+		// Inline caches take only objects
+		AstNode[] inputs = node.inputs;
+		boolean laned = node.exact && inputs.length <= IrNode.CallMethod.MAX_DIRECT_ARGS;
+		MethodType type = node.exact ? node.target.getMethod().type() : null;
+		int primitiveArgs = 0;
+		for (int i = 0; i < inputs.length; i++) { // Emit nodes that load inputs to stack
+			Class<?> param = laned ? type.parameterType(type.parameterCount() - inputs.length + i) : Object.class;
+			boolean primitive;
+			if (inputs[i] instanceof AstNode.Literal) { // Literal -> constant
+				Object constant = ((AstNode.Literal) inputs[i]).getValue();
+				primitive = laned && param.isPrimitive() && PrimitiveLanes.primitiveType(constant) == param;
+				block.append(primitive ? new IrNode.LoadPrimitive(constant) : new IrNode.LoadLiteral(constant));
+			} else if (node.resolvedInputs[i].callable == null) { // Snapshot of constant expression
+				Object constant = node.resolvedInputs[i].constant;
+				primitive = laned && param.isPrimitive() && PrimitiveLanes.primitiveType(constant) == param;
+				if (primitive) {
+					block.append(new IrNode.LoadPrimitive(constant));
+				} else {
+					emitNode(block, node.resolvedInputs[i], false);
+				}
 			} else {
-				throw new AssertionError("call target not found"); // TODO handle this API usage error better
+				primitive = laned && param.isPrimitive() && node.resolvedInputs[i].canReturnPrimitive(param);
+				emitNode(block, node.resolvedInputs[i], primitive);
 			}
-			return target.getMethod().type().returnType();
+			if (primitive) {
+				primitiveArgs |= 1 << i;
+			}
+		}
+		
+		// Emit call to implementation of this node
+		boolean blocking = node.exact ? node.target.isBlocking() : node.callable.canBlock();
+		if (blocking) { // Runtime may want to make the call elsewhere
+			block.append(IrNode.SuspendPoint.INSTANCE);
+		}
+		if (!node.exact) { // Select target at runtime based on classes of arguments
+			InlineCache cache = new InlineCache(node.callable, node.inputTypes, node.target);
+			block.append(new IrNode.CallCached(cache));
+			return;
 		}
+		Class<?> returnType = type.returnType();
+		boolean primitiveReturn = primitiveResult && laned && returnType.isPrimitive() && returnType != void.class;
+		emitMethod(block, node.callable.getInstance(), node.target.getMethod(), node.exact,
+				node.target.shouldInjectState(), primitiveArgs, primitiveReturn);
 	}
 	
 	/**
@@ -143,13 +444,18 @@ public class IrCompiler {
 	 * @param exact If handle is exactly correct (i.e. no type casting needed).
 	 * @param injectState If first parameter of method should be the
 	 * {@link RunnerState runner state}
+	 * @param primitiveArgs Which arguments are in primitive lane, one bit
+	 * per argument.
+	 * @param primitiveReturn If the return value should be pushed to
+	 * primitive lane.
 	 */
-	private void emitMethod(IrBlock block, Object instance, MethodHandle handle, boolean exact, boolean injectState) {
+	private void emitMethod(IrBlock block, Object instance, MethodHandle handle, boolean exact, boolean injectState,
+			int primitiveArgs, boolean primitiveReturn) {
 		handle = handle.bindTo(instance);
 		if (injectState) {
-			block.append(new IrNode.CallWithState(handle, exact));
+			block.append(new IrNode.CallWithState(handle, exact, primitiveArgs, primitiveReturn));
 		} else {
-			block.append(new IrNode.CallPlain(handle, exact));
+			block.append(new IrNode.CallPlain(handle, exact, primitiveArgs, primitiveReturn));
 		}
 	}
 }
@@ -1,10 +1,11 @@
 package io.github.bensku.skripty.runtime.ir;
 
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 
 import io.github.bensku.skripty.core.RunnerState;
 import io.github.bensku.skripty.core.ScriptBlock;
-import io.github.bensku.skripty.core.expression.ConstantExpression;
 
 /**
  * IR node is a single operation in flat, stack-based representation of a
@@ -64,23 +65,23 @@ public abstract class IrNode {
 	}
 	
 	/**
-	 * Loads value of a constant expression to the stack.
+	 * Loads a value from {@link IrBlock#getConstant(int) constant pool} of
+	 * the block to the stack.
 	 *
 	 */
 	public static class LoadConstant extends IrNode {
 		
 		/**
-		 * The constant expression.
+		 * Index of the constant in pool.
 		 */
-		private final ConstantExpression expr;
+		private final int index;
 		
-		public LoadConstant(ConstantExpression expr) {
-			this.expr = expr;
+		public LoadConstant(int index) {
+			this.index = index;
 		}
 		
-		public Object getValue() {
-			// ConstantExpression doesn't need args, so don't allocate an array
-			return expr.call((Object[]) null);
+		public int getIndex() {
+			return index;
 		}
 
 		@Override
@@ -88,13 +89,87 @@ public abstract class IrNode {
 			return Opcodes.LOAD_CONSTANT;
 		}
 	}
-	
+
+	/**
+	 * Loads a primitive value to the primitive lane of the stack, so that it
+	 * does not need to be unboxed when it is passed to a
+	 * {@link CallMethod#isLaned() laned call}.
+	 *
+	 */
+	public static class LoadPrimitive extends IrNode {
+
+		/**
+		 * Boxed value.
+		 */
+		private final Object value;
+
+		/**
+		 * Primitive type of the value.
+		 */
+		private final Class<?> type;
+
+		/**
+		 * The value as it is stored in primitive lane.
+		 */
+		private final long bits;
+
+		/**
+		 * Creates a new primitive load.
+		 * @param value Boxed primitive value.
+		 * @throws IllegalArgumentException When the value is not a boxed
+		 * primitive.
+		 */
+		public LoadPrimitive(Object value) {
+			this.type = PrimitiveLanes.primitiveType(value);
+			if (type == null) {
+				throw new IllegalArgumentException("not a primitive: " + value);
+			}
+			this.value = value;
+			this.bits = PrimitiveLanes.toBits(value);
+		}
+
+		/**
+		 * Gets the loaded value in boxed form.
+		 * @return Boxed value.
+		 */
+		public Object getValue() {
+			return value;
+		}
+
+		/**
+		 * Gets primitive type of the loaded value.
+		 * @return Primitive type.
+		 */
+		public Class<?> getType() {
+			return type;
+		}
+
+		/**
+		 * Gets the loaded value as it is stored in the primitive lane.
+		 * @return Lane representation of value.
+		 */
+		public long getBits() {
+			return bits;
+		}
+
+		@Override
+		public int getOpcode() {
+			return Opcodes.LOAD_PRIMITIVE;
+		}
+	}
+
 	/**
 	 * Superclass of different method call nodes.
 	 *
 	 */
 	public abstract static class CallMethod extends IrNode {
 		
+		/**
+		 * Calls that take more arguments from stack than this are made
+		 * through a {@link #getSpreader() spreader}.
+		 */
+		public static final int MAX_DIRECT_ARGS = 3;
+		
 		/**
 		 * Handle of method that we're going to invoke.
 		 */
@@ -105,9 +180,101 @@ public abstract class IrNode {
 		 */
 		private final boolean exact;
 		
-		private CallMethod(MethodHandle handle, boolean isExact) {
+		/**
+		 * How many arguments the call takes from stack.
+		 */
+		private final int argCount;
+		
+		/**
+		 * The handle with all parameters and return type erased to
+		 * {@link Object}.
+		 */
+		private final MethodHandle invoker;
+		
+		/**
+		 * Erased handle that takes arguments from stack in an array, or null
+		 * if there are no more than {@link #MAX_DIRECT_ARGS} of them.
+		 */
+		private final MethodHandle spreader;
+
+		/**
+		 * Which arguments are taken from primitive lane of the stack, one bit
+		 * per argument.
+		 */
+		private final int primitiveArgs;
+
+		/**
+		 * If the return value is pushed to primitive lane.
+		 */
+		private final boolean primitiveReturn;
+
+		/**
+		 * Handle that takes arguments from both lanes, or null if this call
+		 * does not use primitive lanes.
+		 */
+		private final MethodHandle laneInvoker;
+
+		private CallMethod(MethodHandle handle, boolean isExact, int injectedCount, int primitiveArgs,
+				boolean primitiveReturn) {
 			this.handle = handle;
 			this.exact = isExact;
+			this.argCount = handle.type().parameterCount() - injectedCount;
+			this.invoker = handle.asType(MethodType.genericMethodType(handle.type().parameterCount()));
+			this.spreader = argCount > MAX_DIRECT_ARGS ? invoker.asSpreader(Object[].class, argCount) : null;
+			this.primitiveArgs = primitiveArgs;
+			this.primitiveReturn = primitiveReturn;
+			this.laneInvoker = primitiveArgs != 0 || primitiveReturn ? createLaneInvoker(injectedCount) : null;
+		}
+
+		/**
+		 * Creates the {@link #getLaneInvoker() lane invoker}.
+		 * @param injectedCount Count of injected parameters.
+		 * @return Lane invoker.
+		 */
+		private MethodHandle createLaneInvoker(int injectedCount) {
+			if (argCount > MAX_DIRECT_ARGS) {
+				throw new IllegalArgumentException("laned calls can take at most " + MAX_DIRECT_ARGS + " arguments");
+			}
+			if (primitiveArgs >>> argCount != 0) {
+				throw new IllegalArgumentException("call has only " + argCount + " arguments");
+			}
+			MethodType type = handle.type();
+			MethodHandle lanes = injectedCount == 0 ? MethodHandles.dropArguments(handle, 0, Object.class) : handle;
+
+			// Convert arguments and return value to lane types
+			Class<?>[] laneTypes = new Class<?>[argCount + 1];
+			laneTypes[0] = Object.class; // Runner state, whether it is used or not
+			for (int i = 0; i < argCount; i++) {
+				Class<?> param = type.parameterType(injectedCount + i);
+				if (isPrimitiveArgument(i)) {
+					if (!param.isPrimitive()) {
+						throw new IllegalArgumentException("argument " + i + " is not a primitive");
+					}
+					lanes = MethodHandles.filterArguments(lanes, i + 1, PrimitiveLanes.fromBits(param));
+					laneTypes[i + 1] = long.class;
+				} else {
+					laneTypes[i + 1] = Object.class;
+				}
+			}
+			Class<?> returnType = type.returnType();
+			if (primitiveReturn) {
+				if (!returnType.isPrimitive() || returnType == void.class) {
+					throw new IllegalArgumentException("return value is not a primitive");
+				}
+				lanes = MethodHandles.filterReturnValue(lanes, PrimitiveLanes.toBits(returnType));
+			}
+			lanes = lanes.asType(MethodType.methodType(primitiveReturn ? long.class : Object.class, laneTypes));
+
+			// Each argument is given from both lanes; add parameters for the lane that is not used
+			// Go backwards, so that positions of arguments not yet processed stay same
+			for (int i = argCount - 1; i >= 0; i--) {
+				if (isPrimitiveArgument(i)) {
+					lanes = MethodHandles.dropArguments(lanes, i + 1, Object.class);
+				} else {
+					lanes = MethodHandles.dropArguments(lanes, i + 2, long.class);
+				}
+			}
+			return lanes;
 		}
 		
 		public MethodHandle getHandle() {
@@ -117,8 +284,85 @@ public abstract class IrNode {
 		public boolean isExact() {
 			return exact;
 		}
+		
+		/**
+		 * Gets how many arguments this call takes from the stack.
+		 * @return Argument count.
+		 */
+		public int getArgumentCount() {
+			return argCount;
+		}
+		
+		/**
+		 * Gets an erased version of the {@link #getHandle() handle}. All its
+		 * parameters and the return value are {@link Object}s, so it can be
+		 * called with {@link MethodHandle#invokeExact(Object...)} without
+		 * knowing the types at compile time. Primitive values are boxed and
+		 * unboxed as needed.
+		 * 
+		 * <p>If this call is {@link #isExact() exact}, the casts that the
+		 * invoker does cannot fail. Otherwise, a {@link ClassCastException}
+		 * is thrown when an argument has wrong type.
+		 * @return Erased method handle.
+		 */
+		public MethodHandle getInvoker() {
+			return invoker;
+		}
+		
+		/**
+		 * Gets an {@link #getInvoker() erased handle} that takes arguments
+		 * from the stack in an array instead of as separate parameters.
+		 * Injected parameters, if any, are still given before the array.
+		 * @return Spreader handle, or null if this call takes no more than
+		 * {@link #MAX_DIRECT_ARGS} arguments from stack.
+		 */
+		public MethodHandle getSpreader() {
+			return spreader;
+		}
+
+		/**
+		 * Checks if this call uses primitive lanes of the stack for its
+		 * arguments or return value. Such calls have opcode
+		 * {@link Opcodes#CALL_LANED}.
+		 * @return Whether this call is laned.
+		 */
+		public boolean isLaned() {
+			return laneInvoker != null;
+		}
+
+		/**
+		 * Checks if an argument is taken from primitive lane of the stack.
+		 * @param index Index of argument, not counting injected parameters.
+		 * @return Whether the argument is in primitive lane.
+		 */
+		public boolean isPrimitiveArgument(int index) {
+			return (primitiveArgs & 1 << index) != 0;
+		}
+
+		/**
+		 * Checks if the return value is pushed to primitive lane of the stack.
+		 * @return Whether return value is in primitive lane.
+		 */
+		public boolean hasPrimitiveReturn() {
+			return primitiveReturn;
+		}
+
+		/**
+		 * Gets a handle for calling this with arguments from both lanes of
+		 * the stack. Its first parameter is the runner state, which is
+		 * ignored if this call does not need it. After that, every argument
+		 * is given as an {@link Object} from normal lane and a long from
+		 * primitive lane; the one that the argument is not in is ignored.
+		 * Return value is a long if it is
+		 * {@link #hasPrimitiveReturn() primitive}, otherwise an Object.
+		 * @return Lane invoker, or null if this call is not
+		 * {@link #isLaned() laned}.
+		 */
+		public MethodHandle getLaneInvoker() {
+			return laneInvoker;
+		}
 	}
-	
+
 	/**
 	 * Just call the method.
 	 *
@@ -126,14 +370,28 @@ public abstract class IrNode {
 	public static class CallPlain extends CallMethod {
 
 		public CallPlain(MethodHandle handle, boolean isExact) {
-			super(handle, isExact);
+			super(handle, isExact, 0, 0, false);
+		}
+
+		/**
+		 * Creates a call that may use primitive lanes of the stack.
+		 * @param handle Method handle.
+		 * @param isExact If no type conversions are needed.
+		 * @param primitiveArgs Which arguments are taken from primitive lane,
+		 * one bit per argument starting from lowest bit.
+		 * @param primitiveReturn If return value is pushed to primitive lane.
+		 * @throws IllegalArgumentException When the method cannot be called
+		 * with given lanes.
+		 */
+		public CallPlain(MethodHandle handle, boolean isExact, int primitiveArgs, boolean primitiveReturn) {
+			super(handle, isExact, 0, primitiveArgs, primitiveReturn);
 		}
 
 		@Override
 		public int getOpcode() {
-			return Opcodes.CALL_PLAIN;
+			return isLaned() ? Opcodes.CALL_LANED : Opcodes.CALL_PLAIN;
 		}
-		
+
 	}
 	
 	/**
@@ -144,12 +402,56 @@ public abstract class IrNode {
 	public static class CallWithState extends CallMethod {
 
 		public CallWithState(MethodHandle handle, boolean isExact) {
-			super(handle, isExact);
+			super(handle, isExact, 1, 0, false);
+		}
+
+		/**
+		 * Creates a call that may use primitive lanes of the stack.
+		 * @param handle Method handle.
+		 * @param isExact If no type conversions are needed.
+		 * @param primitiveArgs Which arguments are taken from primitive lane,
+		 * one bit per argument starting from lowest bit.
+		 * @param primitiveReturn If return value is pushed to primitive lane.
+		 * @throws IllegalArgumentException When the method cannot be called
+		 * with given lanes.
+		 */
+		public CallWithState(MethodHandle handle, boolean isExact, int primitiveArgs, boolean primitiveReturn) {
+			super(handle, isExact, 1, primitiveArgs, primitiveReturn);
 		}
 
 		@Override
 		public int getOpcode() {
-			return Opcodes.CALL_WITH_STATE;
+			return isLaned() ? Opcodes.CALL_LANED : Opcodes.CALL_WITH_STATE;
+		}
+	}
+	
+	/**
+	 * Call through an {@link InlineCache inline cache}, which selects the
+	 * call target based on classes of arguments. This is executed like
+	 * {@link CallWithState}; runner state is given to the cache, which passes
+	 * it to call targets that need it.
+	 *
+	 */
+	public static class CallCached extends CallWithState {
+		
+		/**
+		 * The inline cache.
+		 */
+		private final InlineCache cache;
+		
+		/**
+		 * Creates a new cached call. Its handle is the erased
+		 * {@link InlineCache#getInvoker() invoker} of the cache, because
+		 * call targets selected at runtime may return values of any class.
+		 * @param cache Inline cache.
+		 */
+		public CallCached(InlineCache cache) {
+			super(cache.getInvoker(), false);
+			this.cache = cache;
+		}
+		
+		public InlineCache getCache() {
+			return cache;
 		}
 	}
 	
@@ -208,5 +510,24 @@ public abstract class IrNode {
 			return Opcodes.RETURN;
 		}
 	}
+	
+	/**
+	 * Marks that the next call may block. When a block is run with an
+	 * instruction budget, it is suspended here, so that the call can be
+	 * made on a thread where blocking is acceptable. Otherwise, this does
+	 * nothing.
+	 *
+	 */
+	public static class SuspendPoint extends IrNode {
+		
+		public static final SuspendPoint INSTANCE = new SuspendPoint();
+		
+		private SuspendPoint() {} // Singleton
+
+		@Override
+		public int getOpcode() {
+			return Opcodes.SUSPEND_POINT;
+		}
+	}
 
 }
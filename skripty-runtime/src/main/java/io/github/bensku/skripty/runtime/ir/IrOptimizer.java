@@ -0,0 +1,160 @@
+package io.github.bensku.skripty.runtime.ir;
+
+import java.util.Arrays;
+
+/**
+ * Optimizes control flow of {@link IrBlock IR blocks}. This does not change
+ * what blocks do, but can make them smaller and reduce the amount of nodes
+ * that need to be executed.
+ *
+ * <p>Optimizations done are:
+ * <ul>
+ * <li>Jumps that test a value that was loaded right before them are either
+ * removed (never taken) or make the nodes after them unreachable (always
+ * taken)
+ * <li>Jumps to other jumps are threaded, i.e. they jump directly to where
+ * control would end up
+ * <li>Nodes that control can never reach are removed
+ * </ul>
+ *
+ */
+public class IrOptimizer {
+
+	/**
+	 * Optimizes a block.
+	 * @param block IR block. It is not modified.
+	 * @return Optimized block.
+	 */
+	public IrBlock optimize(IrBlock block) {
+		IrNode[] nodes = block.getNodes();
+		int size = nodes.length;
+		boolean[] targets = new boolean[size + 1];
+		for (IrNode node : nodes) {
+			if (node instanceof IrNode.Jump) {
+				int target = ((IrNode.Jump) node).getTarget();
+				if (target >= 0 && target <= size) {
+					targets[target] = true;
+				}
+			}
+		}
+
+		// Simplify jumps
+		boolean[] removed = new boolean[size];
+		boolean[] alwaysTaken = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			if (!(nodes[i] instanceof IrNode.Jump)) {
+				continue;
+			}
+			IrNode.Jump jump = (IrNode.Jump) nodes[i];
+			if (i > 0 && !targets[i] && nodes[i - 1] instanceof IrNode.LoadLiteral) {
+				// Value at top of stack is known, so is whether jump will be taken
+				if (((IrNode.LoadLiteral) nodes[i - 1]).getValue() != jump.getConstant()) {
+					removed[i] = true;
+					continue;
+				}
+				alwaysTaken[i] = true;
+			}
+			int target = threadJump(nodes, jump);
+			if (target != jump.getTarget()) {
+				nodes[i] = new IrNode.Jump(jump.getConstant(), target);
+			}
+		}
+
+		// Find out which nodes are reachable
+		ExceptionHandler[] handlers = block.getHandlers();
+		boolean[] reachable = new boolean[size + 1];
+		int[] worklist = new int[size + 1];
+		int pending = 0;
+		reachable[0] = true;
+		worklist[pending++] = 0;
+		while (pending > 0) {
+			int i = worklist[--pending];
+			if (i == size) {
+				continue; // End of block
+			}
+			for (ExceptionHandler handler : handlers) {
+				if (handler.getStart() == i) { // Anything in region might throw
+					pending = markReachable(reachable, worklist, pending, handler.getTarget());
+				}
+			}
+			IrNode node = nodes[i];
+			if (node instanceof IrNode.Return) {
+				continue;
+			}
+			if (node instanceof IrNode.Jump && !removed[i]) {
+				pending = markReachable(reachable, worklist, pending, ((IrNode.Jump) node).getTarget());
+				if (alwaysTaken[i]) {
+					continue; // Never falls through
+				}
+			}
+			pending = markReachable(reachable, worklist, pending, i + 1);
+		}
+
+		// Remove unreachable and useless nodes, and fix jump targets
+		int[] newIndices = new int[size + 1];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			newIndices[i] = count;
+			if (reachable[i] && !removed[i]) {
+				count++;
+			}
+		}
+		newIndices[size] = count;
+		IrNode[] result = new IrNode[count];
+		for (int i = 0; i < size; i++) {
+			if (!reachable[i] || removed[i]) {
+				continue;
+			}
+			IrNode node = nodes[i];
+			if (node instanceof IrNode.Jump) {
+				IrNode.Jump jump = (IrNode.Jump) node;
+				node = new IrNode.Jump(jump.getConstant(), newIndices[jump.getTarget()]);
+			}
+			result[newIndices[i]] = node;
+		}
+		IrBlock optimized = new IrBlock(result, Arrays.copyOf(block.constantArray(), block.getConstantCount()));
+		int[] lines = block.getLineTable();
+		for (int i = 0; i < lines.length; i += 2) { // Lines whose nodes were all removed are replaced
+			optimized.addLine(newIndices[lines[i]], lines[i + 1]);
+		}
+		for (ExceptionHandler handler : handlers) {
+			int start = newIndices[handler.getStart()];
+			int end = newIndices[handler.getEnd()];
+			if (start != end) { // Drop handlers whose regions became empty
+				optimized.addHandler(new ExceptionHandler(start, end, newIndices[handler.getTarget()]));
+			}
+		}
+		return optimized;
+	}
+
+	/**
+	 * Finds where control ends up after a jump, skipping over other jumps
+	 * that test same value.
+	 * @param nodes IR nodes.
+	 * @param jump A jump.
+	 * @return Index of first node that is not a jump.
+	 */
+	private int threadJump(IrNode[] nodes, IrNode.Jump jump) {
+		int target = jump.getTarget();
+		for (int steps = 0; steps < nodes.length; steps++) { // Don't get stuck in loops of jumps
+			if (target < 0 || target >= nodes.length || !(nodes[target] instanceof IrNode.Jump)) {
+				break;
+			}
+			// If we jumped, top of stack is the constant of our jump
+			IrNode.Jump next = (IrNode.Jump) nodes[target];
+			target = next.getConstant() == jump.getConstant() ? next.getTarget() : target + 1;
+		}
+		return target;
+	}
+
+	private int markReachable(boolean[] reachable, int[] worklist, int pending, int index) {
+		if (index < 0 || index >= reachable.length) {
+			throw new IllegalArgumentException("jump target " + index + " out of block");
+		}
+		if (!reachable[index]) {
+			reachable[index] = true;
+			worklist[pending++] = index;
+		}
+		return pending;
+	}
+}
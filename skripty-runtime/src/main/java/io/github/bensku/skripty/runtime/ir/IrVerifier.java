@@ -0,0 +1,357 @@
+package io.github.bensku.skripty.runtime.ir;
+
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+import io.github.bensku.skripty.core.ScriptException;
+
+/**
+ * Verifies that {@link IrBlock IR blocks} can be safely executed. This is
+ * done by simulating what each node does to the stack, following all paths
+ * that control could take through the block.
+ *
+ * <p>A block is valid when:
+ * <ul>
+ * <li>No node pops more values than the stack has
+ * <li>All jump targets are inside the block (or at its end)
+ * <li>All loaded constants are in constant pool of the block
+ * <li>Stack height before every node is same regardless of how control
+ * flows to it
+ * <li>Arguments of {@link IrNode.CallMethod#isExact() exact} calls have
+ * types that the call accepts, when their types are known
+ * <li>Values are in the stack lanes that nodes expect them in; values in
+ * primitive lane are only given to {@link IrNode.CallMethod#isLaned() laned
+ * calls} that take exactly same primitive type
+ * <li>{@link ExceptionHandler Try regions} are only entered through their
+ * first node, and the stack never goes below the height that it had there
+ * inside them, so that handlers can reset the stack to that height
+ * </ul>
+ *
+ * <p>When these hold, the stack can be allocated before the block is
+ * executed, and the nodes do not need to check for stack underflow or
+ * overflow themselves.
+ *
+ */
+public class IrVerifier {
+
+	/**
+	 * Results of verifying a block.
+	 *
+	 */
+	public static class Result {
+
+		/**
+		 * Stack heights before nodes, and at end of block.
+		 */
+		private final int[] heights;
+
+		/**
+		 * Known types of stack values before nodes.
+		 */
+		private final Class<?>[][] types;
+
+		/**
+		 * Maximum stack height.
+		 */
+		private final int maxStack;
+
+		private Result(int[] heights, Class<?>[][] types, int maxStack) {
+			this.heights = heights;
+			this.types = types;
+			this.maxStack = maxStack;
+		}
+
+		/**
+		 * Gets the maximum height that the stack can reach when the block
+		 * is executed.
+		 * @return Maximum stack height.
+		 */
+		public int getMaxStack() {
+			return maxStack;
+		}
+
+		/**
+		 * Gets stack height before a node.
+		 * @param index Index of the node. Size of the block can be given to
+		 * get height at end of block.
+		 * @return Stack height, or -1 if control can never reach the node.
+		 */
+		public int getStackHeight(int index) {
+			return heights[index];
+		}
+
+		/**
+		 * Gets stack heights before all nodes. Element after the last node
+		 * is the stack height at end of block.
+		 * @return Stack heights, with -1 for unreachable nodes.
+		 */
+		public int[] getStackHeights() {
+			return Arrays.copyOf(heights, heights.length);
+		}
+
+		/**
+		 * Gets types of the values that are in stack before a node.
+		 * @param index Index of the node.
+		 * @return Types of values from bottom to top of the stack. Types that
+		 * are not known are null. Values in primitive lane have primitive
+		 * types. If control can never reach the node, null
+		 * is returned instead of an array.
+		 */
+		public Class<?>[] getStackTypes(int index) {
+			Class<?>[] slots = types[index];
+			return slots == null ? null : Arrays.copyOf(slots, slots.length);
+		}
+	}
+
+	/**
+	 * Verifies a block.
+	 * @param block IR block.
+	 * @return Verification results.
+	 * @throws IllegalArgumentException When the block is not valid.
+	 */
+	public Result verify(IrBlock block) {
+		IrNode[] nodes = block.nodeArray();
+		int size = block.size();
+		ExceptionHandler[] handlers = block.getHandlers();
+		for (ExceptionHandler handler : handlers) {
+			if (handler.getEnd() > size || handler.getTarget() < 0 || handler.getTarget() > size) {
+				throw new IllegalArgumentException("exception handler out of block");
+			}
+		}
+		int[] heights = new int[size + 1];
+		Arrays.fill(heights, -1);
+		Class<?>[][] types = new Class<?>[size + 1][];
+		int maxStack = 0;
+
+		// Nodes are re-added to worklist when types at them change
+		// Types can only become less specific, so this terminates
+		int[] worklist = new int[size + 1];
+		boolean[] queued = new boolean[size + 1];
+		int pending = 0;
+		heights[0] = 0;
+		types[0] = new Class<?>[0];
+		worklist[pending++] = 0;
+		queued[0] = true;
+		while (pending > 0) {
+			int i = worklist[--pending];
+			queued[i] = false;
+			if (i == size) {
+				continue; // End of block
+			}
+			int height = heights[i];
+			Class<?>[] slots = types[i];
+			IrNode node = nodes[i];
+			if (node == null) {
+				throw new IllegalArgumentException("skipped slot at " + i + " was never set");
+			}
+			for (ExceptionHandler handler : handlers) {
+				if (handler.getStart() == i) { // Handler gets stack from start of region, and the exception
+					Class<?>[] caught = Arrays.copyOf(slots, height + 1);
+					caught[height] = ScriptException.class;
+					maxStack = Math.max(maxStack, caught.length);
+					pending = flow(heights, types, worklist, queued, pending, handler.getTarget(), caught, i);
+				}
+			}
+			Class<?>[] next; // Stack after this node
+			switch (node.getOpcode()) {
+			case Opcodes.POP:
+				checkUnderflow(height, 1, i);
+				next = Arrays.copyOf(slots, height - 1);
+				break;
+			case Opcodes.LOAD_LITERAL:
+				next = Arrays.copyOf(slots, height + 1);
+				Object value = ((IrNode.LoadLiteral) node).getValue();
+				next[height] = value == null ? null : value.getClass();
+				break;
+			case Opcodes.LOAD_CONSTANT:
+				int index = ((IrNode.LoadConstant) node).getIndex();
+				if (index < 0 || index >= block.getConstantCount()) {
+					throw new IllegalArgumentException("constant " + index + " not in pool at " + i);
+				}
+				next = Arrays.copyOf(slots, height + 1);
+				Object constant = block.getConstant(index);
+				next[height] = constant == null ? null : constant.getClass();
+				break;
+			case Opcodes.LOAD_PRIMITIVE:
+				next = Arrays.copyOf(slots, height + 1);
+				next[height] = ((IrNode.LoadPrimitive) node).getType();
+				break;
+			case Opcodes.CALL_PLAIN:
+			case Opcodes.CALL_WITH_STATE:
+			case Opcodes.CALL_LANED:
+				IrNode.CallMethod call = (IrNode.CallMethod) node;
+				int argCount = call.getArgumentCount();
+				checkUnderflow(height, argCount, i);
+				checkArguments(call, slots, height - argCount, i);
+				next = Arrays.copyOf(slots, height - argCount + 1);
+				Class<?> returnType = call.getHandle().type().returnType();
+				if (!call.hasPrimitiveReturn()) {
+					returnType = call.getHandle().type().wrap().returnType(); // Boxed
+				}
+				next[height - argCount] = returnType == Void.class ? null : returnType; // Void methods push null
+				break;
+			case Opcodes.JUMP:
+				checkUnderflow(height, 1, i);
+				checkNotPrimitive(slots[height - 1], i);
+				next = slots;
+				int target = ((IrNode.Jump) node).getTarget();
+				if (target < 0 || target > size) {
+					throw new IllegalArgumentException("jump target " + target + " out of block at " + i);
+				}
+				pending = flow(heights, types, worklist, queued, pending, target, next, i);
+				break;
+			case Opcodes.SUSPEND_POINT:
+				next = slots;
+				break;
+			case Opcodes.RETURN:
+				if (height > 0) {
+					checkNotPrimitive(slots[height - 1], i);
+				}
+				continue; // Nothing after return, unless something jumps there
+			default:
+				throw new AssertionError("unknown opcode " + node.getOpcode());
+			}
+			maxStack = Math.max(maxStack, next.length);
+			pending = flow(heights, types, worklist, queued, pending, i + 1, next, i);
+		}
+		for (ExceptionHandler handler : handlers) {
+			checkRegion(handler, nodes, heights);
+		}
+		return new Result(heights, types, maxStack);
+	}
+
+	/**
+	 * Checks that stack height inside a try region never goes below the
+	 * height at its start.
+	 * @param handler Exception handler.
+	 * @param nodes IR nodes.
+	 * @param heights Stack heights before nodes.
+	 */
+	private void checkRegion(ExceptionHandler handler, IrNode[] nodes, int[] heights) {
+		int startHeight = heights[handler.getStart()];
+		for (int i = handler.getStart(); i < handler.getEnd(); i++) {
+			if (heights[i] == -1) {
+				continue; // Unreachable
+			}
+			if (startHeight == -1) {
+				throw new IllegalArgumentException("try region entered without its start at " + i);
+			}
+			int consumed = 0;
+			if (nodes[i] instanceof IrNode.CallMethod) {
+				consumed = ((IrNode.CallMethod) nodes[i]).getArgumentCount();
+			} else if (nodes[i] instanceof IrNode.Pop) {
+				consumed = 1;
+			}
+			if (heights[i] - consumed < startHeight) {
+				throw new IllegalArgumentException("stack below start of try region at " + i);
+			}
+		}
+	}
+
+	private void checkUnderflow(int height, int required, int index) {
+		if (height < required) {
+			throw new IllegalArgumentException("stack underflow at " + index);
+		}
+	}
+
+	/**
+	 * Checks that a value is not in primitive lane.
+	 * @param type Type of the value.
+	 * @param index Index of node that uses the value.
+	 */
+	private void checkNotPrimitive(Class<?> type, int index) {
+		if (type != null && type.isPrimitive()) {
+			throw new IllegalArgumentException("primitive value used as an object at " + index);
+		}
+	}
+
+	/**
+	 * Checks that arguments of a call are in lanes it expects them in, and
+	 * that known types of arguments are accepted by exact calls.
+	 * @param call Call node.
+	 * @param slots Types of values in stack.
+	 * @param first Stack slot of the first argument.
+	 * @param index Index of the call node.
+	 */
+	private void checkArguments(IrNode.CallMethod call, Class<?>[] slots, int first, int index) {
+		MethodType type = call.getHandle().type();
+		MethodType boxed = type.wrap(); // Values in normal lane are boxed
+		int offset = type.parameterCount() - call.getArgumentCount(); // Skip injected parameters
+		for (int j = 0; j < call.getArgumentCount(); j++) {
+			Class<?> actual = slots[first + j];
+			boolean primitive = actual != null && actual.isPrimitive(); // Unknown values are objects
+			if (call.isPrimitiveArgument(j)) {
+				if (actual != type.parameterType(offset + j)) {
+					throw new IllegalArgumentException("argument " + j + " of call at " + index + " must be a "
+							+ type.parameterType(offset + j).getName() + " in primitive lane");
+				}
+			} else if (primitive) {
+				throw new IllegalArgumentException("argument " + j + " of call at " + index
+						+ " is in primitive lane, but call expects an object");
+			} else if (call.isExact() && actual != null && !boxed.parameterType(offset + j).isAssignableFrom(actual)) {
+				throw new IllegalArgumentException("argument " + j + " of call at " + index + " has type "
+						+ actual.getName() + ", but " + boxed.parameterType(offset + j).getName() + " is expected");
+			}
+		}
+	}
+
+	/**
+	 * Records stack state for a node that control flows to.
+	 * @param heights Stack heights.
+	 * @param types Types of stack values.
+	 * @param worklist Nodes to process.
+	 * @param queued Which nodes are currently in the worklist.
+	 * @param pending Count of nodes in the worklist.
+	 * @param index Index of the node.
+	 * @param slots Types of stack values before the node.
+	 * @param from Index of node that control flows from.
+	 * @return New count of nodes in the worklist.
+	 */
+	private int flow(int[] heights, Class<?>[][] types, int[] worklist, boolean[] queued, int pending,
+			int index, Class<?>[] slots, int from) {
+		if (heights[index] == -1) {
+			heights[index] = slots.length;
+			types[index] = slots;
+		} else if (heights[index] != slots.length) {
+			throw new IllegalArgumentException("inconsistent stack height at " + index + " (" + heights[index]
+					+ " vs. " + slots.length + " from " + from + ")");
+		} else {
+			Class<?>[] merged = merge(types[index], slots, index);
+			if (merged == types[index]) {
+				return pending; // Nothing changed, no need to process the node again
+			}
+			types[index] = merged;
+		}
+		if (!queued[index]) {
+			worklist[pending++] = index;
+			queued[index] = true;
+		}
+		return pending;
+	}
+
+	/**
+	 * Merges types of stack values from two paths. Types that differ are no
+	 * longer known after merge.
+	 * @param old Old types.
+	 * @param other Types from another path.
+	 * @param index Index of node that the paths meet at.
+	 * @return Merged types, or the old array if nothing changed.
+	 */
+	private Class<?>[] merge(Class<?>[] old, Class<?>[] other, int index) {
+		Class<?>[] merged = old;
+		for (int i = 0; i < old.length; i++) {
+			boolean oldPrimitive = old[i] != null && old[i].isPrimitive();
+			boolean otherPrimitive = other[i] != null && other[i].isPrimitive();
+			if ((oldPrimitive || otherPrimitive) && old[i] != other[i]) {
+				throw new IllegalArgumentException("inconsistent lane of stack slot " + i + " at " + index);
+			}
+			if (old[i] != null && old[i] != other[i]) {
+				if (merged == old) {
+					merged = Arrays.copyOf(old, old.length);
+				}
+				merged[i] = null;
+			}
+		}
+		return merged;
+	}
+}
@@ -0,0 +1,89 @@
+package io.github.bensku.skripty.runtime.ir;
+
+/**
+ * Counts how often IR nodes with given opcodes follow each other. This can be
+ * used to {@link Superinstructions#select(OpcodeProfile, double) select}
+ * which superinstructions are worth using.
+ *
+ * <p>Both nodes that are next to each other and jumps to their targets are
+ * counted as pairs. Nothing follows returns.
+ *
+ */
+public class OpcodeProfile {
+
+	/**
+	 * Amount of different opcodes in IR nodes.
+	 */
+	private static final int OPCODE_COUNT = Opcodes.SUSPEND_POINT + 1; // Largest opcode, some are only in compact blocks
+
+	/**
+	 * Counts of opcode pairs, indexed by first * {@link #OPCODE_COUNT} + second.
+	 */
+	private final long[] pairs;
+
+	/**
+	 * Total count of recorded pairs.
+	 */
+	private long total;
+
+	public OpcodeProfile() {
+		this.pairs = new long[OPCODE_COUNT * OPCODE_COUNT];
+	}
+
+	/**
+	 * Records opcode pairs of a block.
+	 * @param block IR block.
+	 */
+	public void record(IrBlock block) {
+		IrNode[] nodes = block.nodeArray();
+		int size = block.size();
+		for (int i = 0; i < size; i++) {
+			int opcode = nodes[i].getOpcode();
+			if (opcode == Opcodes.RETURN) {
+				continue; // Control never flows to next node from here
+			}
+			if (i + 1 < size) {
+				add(opcode, nodes[i + 1].getOpcode());
+			}
+			if (opcode == Opcodes.JUMP) {
+				int target = ((IrNode.Jump) nodes[i]).getTarget();
+				if (target >= 0 && target < size) {
+					add(opcode, nodes[target].getOpcode());
+				}
+			}
+		}
+	}
+
+	private void add(int first, int second) {
+		pairs[first * OPCODE_COUNT + second]++;
+		total++;
+	}
+
+	/**
+	 * Gets how many times an opcode pair has been recorded.
+	 * @param first Opcode of first node.
+	 * @param second Opcode of node that follows it.
+	 * @return Count of the pair.
+	 */
+	public long getCount(int first, int second) {
+		return pairs[first * OPCODE_COUNT + second];
+	}
+
+	/**
+	 * Gets total count of all recorded pairs.
+	 * @return Total count.
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Gets how large part of all recorded pairs an opcode pair is.
+	 * @param first Opcode of first node.
+	 * @param second Opcode of node that follows it.
+	 * @return Share of the pair, between 0 and 1.
+	 */
+	public double getShare(int first, int second) {
+		return total == 0 ? 0 : (double) getCount(first, second) / total;
+	}
+}
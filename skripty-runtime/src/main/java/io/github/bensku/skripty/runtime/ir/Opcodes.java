@@ -1,7 +1,9 @@
 package io.github.bensku.skripty.runtime.ir;
 
 /**
- * Opcodes of IR nodes.
+ * Opcodes of IR nodes. Some opcodes are used only by
+ * {@link Superinstructions superinstructions} of {@link CompactBlock compact
+ * blocks}; there are no IR nodes for them.
  *
  */
 public class Opcodes {
@@ -42,4 +44,44 @@ public class Opcodes {
 	 * {@link IrNode.Return}
 	 */
 	public static final int RETURN = 6;
+	
+	/**
+	 * {@link IrNode.CallPlain} followed by {@link IrNode.Pop}. Only in
+	 * compact blocks.
+	 */
+	public static final int CALL_PLAIN_AND_POP = 7;
+	
+	/**
+	 * {@link IrNode.CallWithState} followed by {@link IrNode.Pop}. Only in
+	 * compact blocks.
+	 */
+	public static final int CALL_WITH_STATE_AND_POP = 8;
+	
+	/**
+	 * Two consecutive {@link IrNode.LoadLiteral literal} or
+	 * {@link IrNode.LoadConstant constant} loads. Only in compact blocks.
+	 */
+	public static final int LOAD_CONSTANT2 = 9;
+	
+	/**
+	 * {@link IrNode.Jump} to a {@link IrNode.Pop}. If the jump is taken, the
+	 * pop is executed too. Only in compact blocks.
+	 */
+	public static final int JUMP_AND_POP = 10;
+	
+	/**
+	 * {@link IrNode.LoadPrimitive}
+	 */
+	public static final int LOAD_PRIMITIVE = 11;
+	
+	/**
+	 * {@link IrNode.CallPlain} or {@link IrNode.CallWithState} that uses
+	 * primitive lanes of the stack; see {@link IrNode.CallMethod#isLaned()}.
+	 */
+	public static final int CALL_LANED = 12;
+	
+	/**
+	 * {@link IrNode.SuspendPoint}
+	 */
+	public static final int SUSPEND_POINT = 13;
 }
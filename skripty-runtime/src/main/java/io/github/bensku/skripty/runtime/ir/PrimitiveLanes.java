@@ -0,0 +1,98 @@
+package io.github.bensku.skripty.runtime.ir;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Conversions between primitive values and their representation in the
+ * primitive lane of the stack. All primitives are stored as longs: integral
+ * types and chars are widened, booleans are 0 or 1 and floating point values
+ * are stored as their raw bits.
+ *
+ */
+final class PrimitiveLanes {
+
+	private PrimitiveLanes() {}
+
+	/**
+	 * Gets the primitive type of a boxed value.
+	 * @param value Value.
+	 * @return Primitive type, or null if the value is not a boxed primitive.
+	 */
+	static Class<?> primitiveType(Object value) {
+		if (value == null) {
+			return null;
+		}
+		Class<?> type = MethodType.methodType(value.getClass()).unwrap().returnType();
+		return type.isPrimitive() ? type : null;
+	}
+
+	/**
+	 * Converts a boxed primitive to its lane representation.
+	 * @param value Boxed primitive value.
+	 * @return Value in primitive lane.
+	 */
+	static long toBits(Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value ? 1 : 0;
+		} else if (value instanceof Character) {
+			return (Character) value;
+		} else if (value instanceof Double) {
+			return Double.doubleToRawLongBits((Double) value);
+		} else if (value instanceof Float) {
+			return Float.floatToRawIntBits((Float) value);
+		} else if (value instanceof Number) { // Integral types
+			return ((Number) value).longValue();
+		}
+		throw new IllegalArgumentException("not a primitive: " + value);
+	}
+
+	/**
+	 * Creates a handle that converts a value of given primitive type to its
+	 * lane representation.
+	 * @param type Primitive type.
+	 * @return Handle of type (type)long.
+	 */
+	static MethodHandle toBits(Class<?> type) {
+		try {
+			if (type == double.class) {
+				return MethodHandles.lookup().findStatic(Double.class, "doubleToRawLongBits",
+						MethodType.methodType(long.class, double.class));
+			} else if (type == float.class) {
+				MethodHandle handle = MethodHandles.lookup().findStatic(Float.class, "floatToRawIntBits",
+						MethodType.methodType(int.class, float.class));
+				return MethodHandles.explicitCastArguments(handle, MethodType.methodType(long.class, float.class));
+			}
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new AssertionError(e);
+		}
+		// Widening; booleans become 0 or 1
+		return MethodHandles.explicitCastArguments(MethodHandles.identity(type),
+				MethodType.methodType(long.class, type));
+	}
+
+	/**
+	 * Creates a handle that converts a value from its lane representation
+	 * back to given primitive type.
+	 * @param type Primitive type.
+	 * @return Handle of type (long)type.
+	 */
+	static MethodHandle fromBits(Class<?> type) {
+		try {
+			if (type == double.class) {
+				return MethodHandles.lookup().findStatic(Double.class, "longBitsToDouble",
+						MethodType.methodType(double.class, long.class));
+			} else if (type == float.class) {
+				MethodHandle handle = MethodHandles.lookup().findStatic(Float.class, "intBitsToFloat",
+						MethodType.methodType(float.class, int.class));
+				return MethodHandles.explicitCastArguments(handle, MethodType.methodType(float.class, long.class));
+			}
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new AssertionError(e);
+		}
+		// Narrowing; booleans are tested by their lowest bit
+		return MethodHandles.explicitCastArguments(MethodHandles.identity(long.class),
+				MethodType.methodType(type, long.class));
+	}
+}
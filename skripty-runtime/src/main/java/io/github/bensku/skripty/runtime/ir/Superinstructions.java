@@ -0,0 +1,87 @@
+package io.github.bensku.skripty.runtime.ir;
+
+/**
+ * Selects which superinstructions are used when {@link CompactBlock compact
+ * blocks} are encoded. Superinstructions perform work of two IR nodes, which
+ * reduces how many instructions the interpreter needs to dispatch.
+ *
+ * <p>Available superinstructions are:
+ * <ul>
+ * <li>{@link Opcodes#CALL_PLAIN_AND_POP} and
+ * {@link Opcodes#CALL_WITH_STATE_AND_POP}: call followed by pop, which is
+ * how all statements are compiled
+ * <li>{@link Opcodes#LOAD_CONSTANT2}: two consecutive loads, e.g. literal
+ * inputs of a call
+ * <li>{@link Opcodes#JUMP_AND_POP}: jump to a pop, such as jumps at start and
+ * end of conditional blocks
+ * </ul>
+ *
+ * <p>Nodes are never fused if the second of them is a jump target.
+ *
+ */
+public final class Superinstructions {
+
+	private static final int CALL_AND_POP = 1;
+	private static final int LOAD_TWO = 2;
+	private static final int JUMP_AND_POP = 4;
+
+	/**
+	 * No superinstructions.
+	 */
+	public static final Superinstructions NONE = new Superinstructions(0);
+
+	/**
+	 * All available superinstructions.
+	 */
+	public static final Superinstructions ALL = new Superinstructions(CALL_AND_POP | LOAD_TWO | JUMP_AND_POP);
+
+	/**
+	 * Selects superinstructions for opcode pairs that are common in a
+	 * profile.
+	 * @param profile Opcode pair profile.
+	 * @param minShare Minimum {@link OpcodeProfile#getShare(int, int) share}
+	 * of the pair of nodes that a superinstruction replaces.
+	 * @return Selected superinstructions.
+	 */
+	public static Superinstructions select(OpcodeProfile profile, double minShare) {
+		int flags = 0;
+		if (profile.getShare(Opcodes.CALL_PLAIN, Opcodes.POP)
+				+ profile.getShare(Opcodes.CALL_WITH_STATE, Opcodes.POP) >= minShare) {
+			flags |= CALL_AND_POP;
+		}
+		double loads = 0;
+		for (int first = Opcodes.LOAD_LITERAL; first <= Opcodes.LOAD_CONSTANT; first++) {
+			for (int second = Opcodes.LOAD_LITERAL; second <= Opcodes.LOAD_CONSTANT; second++) {
+				loads += profile.getShare(first, second);
+			}
+		}
+		if (loads >= minShare) {
+			flags |= LOAD_TWO;
+		}
+		if (profile.getShare(Opcodes.JUMP, Opcodes.POP) >= minShare) {
+			flags |= JUMP_AND_POP;
+		}
+		return new Superinstructions(flags);
+	}
+
+	/**
+	 * Enabled superinstructions as bit flags.
+	 */
+	private final int flags;
+
+	private Superinstructions(int flags) {
+		this.flags = flags;
+	}
+
+	boolean callAndPop() {
+		return (flags & CALL_AND_POP) != 0;
+	}
+
+	boolean loadTwo() {
+		return (flags & LOAD_TWO) != 0;
+	}
+
+	boolean jumpAndPop() {
+		return (flags & JUMP_AND_POP) != 0;
+	}
+}
@@ -0,0 +1,32 @@
+package io.github.bensku.skripty.runtime.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import io.github.bensku.skripty.runtime.ir.IrAssembler;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+
+/**
+ * Loads IR assembly files from test resources.
+ *
+ */
+public class Assemblies {
+
+	private static final IrAssembler ASSEMBLER = new IrAssembler(text -> text);
+	
+	/**
+	 * Assembles a block from {@code src/test/resources/assembly}.
+	 * @param name File name.
+	 * @param constants Constants for the block.
+	 * @return Assembled block.
+	 */
+	public static IrBlock load(String name, Object... constants) {
+		try {
+			String source = Files.readString(Paths.get("src", "test", "resources", "assembly", name));
+			return ASSEMBLER.parseBlock(source, constants);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
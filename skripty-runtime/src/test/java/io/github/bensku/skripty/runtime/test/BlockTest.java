@@ -2,6 +2,7 @@ package io.github.bensku.skripty.runtime.test;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import org.junit.jupiter.api.Test;
@@ -25,4 +26,20 @@ public class BlockTest {
 		IrNode[] nodes = block.getNodes();
 		assertEquals(2, nodes.length);
 	}
+	
+	@Test
+	public void sealed() {
+		IrBlock block = new IrBlock();
+		block.append(new IrNode.LoadLiteral("test"));
+		block.append(IrNode.Return.INSTANCE);
+		assertSame(block, block.seal());
+		assertEquals(2, block.nodeArray().length); // Trimmed
+		assertEquals(1, block.getMaxStack());
+		
+		IrNode node = IrNode.Pop.INSTANCE;
+		assertThrows(IllegalStateException.class, () -> block.append(node));
+		assertThrows(IllegalStateException.class, () -> block.skip());
+		assertThrows(IllegalStateException.class, () -> block.set(0, node));
+		assertThrows(IllegalStateException.class, () -> block.addConstant("foo"));
+	}
 }
@@ -0,0 +1,83 @@
+package io.github.bensku.skripty.runtime.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.core.flow.ScopeEntry;
+import io.github.bensku.skripty.runtime.bytecode.BytecodeCompiler;
+import io.github.bensku.skripty.runtime.bytecode.CompiledBlock;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+import io.github.bensku.skripty.runtime.ir.IrNode;
+
+public class BytecodeCompilerTest {
+
+	private BytecodeCompiler compiler = new BytecodeCompiler();
+	
+	private Object runAssembly(String name, Object... constants) {
+		CompiledBlock<RunnerState> block = compiler.compile(Assemblies.load(name, constants));
+		try {
+			return block.run(null);
+		} catch (Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	@Test
+	public void empty() throws Throwable {
+		assertNull(compiler.compile(new IrBlock()).run(null));
+	}
+	
+	@Test
+	public void simpleReturn() {
+		assertEquals("test text", runAssembly("return1"));
+		assertNull(runAssembly("return2"));
+	}
+	
+	@Test
+	public void constant() {
+		assertEquals("second", runAssembly("constant", "first", "second"));
+	}
+	
+	@Test
+	public void simpleCall() {
+		assertEquals("alphabetagamma", runAssembly("call"));
+	}
+	
+	@Test
+	public void manyArguments() {
+		assertEquals("abcdefg", runAssembly("spread"));
+	}
+	
+	@Test
+	public void condition() {
+		assertEquals("correct return", runAssembly("condition"));
+	}
+	
+	@Test
+	public void loop() {
+		assertEquals("done", runAssembly("loop"));
+	}
+	
+	@Test
+	public void invalidStack() {
+		// Jump target is out of block
+		assertThrows(IllegalArgumentException.class, () -> compiler.compile(Assemblies.load("selftest")));
+		// Pop from empty stack
+		assertThrows(IllegalArgumentException.class, () -> compiler.compile(new IrBlock(new IrNode[] {IrNode.Pop.INSTANCE})));
+	}
+	
+	@Test
+	public void resume() throws Throwable {
+		CompiledBlock<RunnerState> block = compiler.compile(Assemblies.load("loop"));
+		assertTrue(block.canResume(1)); // Loop header
+		assertFalse(block.canResume(0));
+		assertThrows(IllegalArgumentException.class, () -> block.resume(null, 0, new Object[0]));
+		assertEquals("done", block.resume(null, 1, new Object[] {ScopeEntry.YES}));
+	}
+}
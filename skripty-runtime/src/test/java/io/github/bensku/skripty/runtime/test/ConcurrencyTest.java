@@ -0,0 +1,145 @@
+package io.github.bensku.skripty.runtime.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.runtime.RunResult;
+import io.github.bensku.skripty.runtime.ScriptRunner;
+import io.github.bensku.skripty.runtime.TieredBlock;
+import io.github.bensku.skripty.runtime.ir.CompactBlock;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+import io.github.bensku.skripty.runtime.ir.IrNode;
+import io.github.bensku.skripty.runtime.ir.Superinstructions;
+
+public class ConcurrencyTest {
+
+	private static final int THREADS = 8;
+	private static final int ITERATIONS = 10_000;
+
+	/**
+	 * Runs a block once.
+	 */
+	private interface Run {
+		Object run() throws Throwable;
+	}
+
+	public static class Entity implements RunnerState {
+		
+		private final int id;
+		
+		public Entity(int id) {
+			this.id = id;
+		}
+	}
+	
+	public static String name(RunnerState state) {
+		int id = ((Entity) state).id;
+		if (id % 10 == 0) {
+			throw new IllegalStateException("entity " + id);
+		}
+		return "entity " + id;
+	}
+
+	
+	/**
+	 * Runs a task on many threads at once and checks that every run
+	 * returned the expected value.
+	 * @param expected Expected return value.
+	 * @param task Task to run.
+	 * @throws Exception If any run failed.
+	 */
+	private void stress(Object expected, Run task) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++) {
+				futures.add(pool.submit(() -> {
+					start.await(); // Maximize contention
+					try {
+						for (int j = 0; j < ITERATIONS; j++) {
+							assertEquals(expected, task.run());
+						}
+					} catch (Throwable e) {
+						throw new AssertionError(e);
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get(); // Rethrows failures
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	public void sharedBlock() throws Exception {
+		ScriptRunner<RunnerState> runner = new ScriptRunner<>(8);
+		IrBlock block = Assemblies.load("spread").seal();
+		stress("abcdefg", () -> runner.run(block, null));
+		
+		CompactBlock compact = CompactBlock.encode(block, Superinstructions.ALL);
+		stress("abcdefg", () -> runner.run(compact, null));
+	}
+	
+	@Test
+	public void sharedTieredBlock() throws Exception {
+		// Compiled while other threads are interpreting it
+		ScriptRunner<RunnerState> runner = new ScriptRunner<>(8, Runnable::run, ITERATIONS);
+		TieredBlock<RunnerState> block = new TieredBlock<>(Assemblies.load("call"));
+		stress("alphabetagamma", () -> runner.run(block, null));
+		assertNotNull(block.getCompiled());
+	}
+	
+	@Test
+	public void runAll() throws ReflectiveOperationException {
+		IrBlock block = new IrBlock();
+		block.append(new IrNode.CallWithState(MethodHandles.lookup().findStatic(getClass(), "name",
+				MethodType.methodType(String.class, RunnerState.class)), true));
+		block.append(IrNode.Return.INSTANCE);
+		
+		List<Entity> states = new ArrayList<>();
+		for (int i = 0; i < ITERATIONS; i++) {
+			states.add(new Entity(i));
+		}
+		ScriptRunner<Entity> runner = new ScriptRunner<>(8);
+		ForkJoinPool pool = new ForkJoinPool(THREADS);
+		List<RunResult<Entity>> results;
+		try {
+			results = runner.runAll(block, states, pool);
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue(block.isSealed());
+		assertEquals(ITERATIONS, results.size());
+		for (int i = 0; i < ITERATIONS; i++) {
+			RunResult<Entity> result = results.get(i);
+			assertSame(states.get(i), result.getState());
+			if (i % 10 == 0) { // Failures don't stop other states
+				assertFalse(result.isSuccess());
+				assertEquals(IllegalStateException.class, result.getFailure().getClass());
+			} else {
+				assertEquals("entity " + i, result.getValue());
+			}
+		}
+	}
+}
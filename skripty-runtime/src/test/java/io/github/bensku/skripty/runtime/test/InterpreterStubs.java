@@ -1,9 +1,12 @@
 package io.github.bensku.skripty.runtime.test;
 
 import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.core.ScriptException;
 import io.github.bensku.skripty.core.flow.ScopeEntry;
 
 public class InterpreterStubs {
+	
+	private int counter;
 
 	public void nothing() {}
 	
@@ -17,7 +20,27 @@ public class InterpreterStubs {
 		return a + b;
 	}
 	
+	public String concat(String a, String b, String c, String d) {
+		return a + b + c + d;
+	}
+	
+	public String concat(RunnerState state, String a, String b, String c, String d) {
+		return a + b + c + d;
+	}
+	
 	public ScopeEntry enterScope(String when) {
 		return ScopeEntry.valueOf(when);
 	}
+	
+	public ScopeEntry countDown(String times) {
+		return counter++ < Integer.parseInt(times) ? ScopeEntry.YES : ScopeEntry.NO;
+	}
+	
+	public String fail(String message) {
+		throw new ScriptException(message);
+	}
+	
+	public String caught(ScriptException e) {
+		return "caught " + e.getMessage() + " at " + e.getIndex();
+	}
 }
@@ -1,38 +1,42 @@
 package io.github.bensku.skripty.runtime.test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
-
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Test;
 
 import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.core.ScriptException;
 import io.github.bensku.skripty.core.flow.ScopeEntry;
+import io.github.bensku.skripty.runtime.Continuation;
 import io.github.bensku.skripty.runtime.ScriptRunner;
+import io.github.bensku.skripty.runtime.ir.CompactBlock;
 import io.github.bensku.skripty.runtime.ir.IrAssembler;
 import io.github.bensku.skripty.runtime.ir.IrBlock;
 import io.github.bensku.skripty.runtime.ir.IrNode;
+import io.github.bensku.skripty.runtime.ir.OpcodeProfile;
+import io.github.bensku.skripty.runtime.ir.Opcodes;
+import io.github.bensku.skripty.runtime.ir.Superinstructions;
 
 public class InterpreterTest {
 
 	private IrAssembler assembler = new IrAssembler(text -> text);
 	private ScriptRunner<RunnerState> runner = new ScriptRunner<>(64);
 	
-	private IrBlock loadAssembly(String name) {
+	private Object runAssembly(String name, Object... constants) {
 		try {
-			String source = Files.readString(Paths.get("src", "test", "resources", "assembly", name));
-			return assembler.parseBlock(source);
-		} catch (IOException e) {
+			return runner.run(Assemblies.load(name, constants), null);
+		} catch (Throwable e) {
 			throw new AssertionError(e);
 		}
 	}
 	
-	private Object runAssembly(String name) {
+	private Object runCompact(String name, Superinstructions superinstructions, Object... constants) {
 		try {
-			return runner.run(loadAssembly(name), null);
+			return runner.run(CompactBlock.encode(Assemblies.load(name, constants), superinstructions), null);
 		} catch (Throwable e) {
 			throw new AssertionError(e);
 		}
@@ -41,8 +45,7 @@ public class InterpreterTest {
 	@Test
 	public void assemblerCheck() {
 		// Check that the assembler correctly parses things
-		// TODO add LoadConstant once assembler supports it here
-		IrBlock block = loadAssembly("selftest");
+		IrBlock block = Assemblies.load("selftest");
 		IrNode[] nodes = block.getNodes();
 		assertEquals(IrNode.Pop.INSTANCE, nodes[0]);
 		assertEquals("foo bar", ((IrNode.LoadLiteral) nodes[1]).getValue());
@@ -50,6 +53,7 @@ public class InterpreterTest {
 		IrNode.Jump jump = (IrNode.Jump) nodes[4];
 		assertEquals(ScopeEntry.YES, jump.getConstant());
 		assertEquals(-2, jump.getTarget());
+		assertEquals(3, ((IrNode.LoadConstant) assembler.parseNode("LoadConstant 3")).getIndex());
 	}
 	
 	@Test
@@ -63,13 +67,141 @@ public class InterpreterTest {
 		assertNull(runAssembly("return2"));
 	}
 	
+	@Test
+	public void constant() {
+		assertEquals("second", runAssembly("constant", "first", "second"));
+	}
+	
 	@Test
 	public void simpleCall() {
 		assertEquals("alphabetagamma", runAssembly("call"));
 	}
 	
+	@Test
+	public void manyArguments() {
+		assertEquals("abcdefg", runAssembly("spread"));
+	}
+	
+	@Test
+	public void stackReuse() throws Throwable {
+		IrBlock block = Assemblies.load("spread");
+		assertEquals(4, block.getMaxStack());
+		
+		// Stack must grow for the block, and be reusable after it
+		ScriptRunner<RunnerState> small = new ScriptRunner<>(1);
+		assertEquals("abcdefg", small.run(block, null));
+		assertEquals("abcdefg", small.run(block, null));
+	}
+	
 	@Test
 	public void condition() {
 		assertEquals("correct return", runAssembly("condition"));
 	}
+	
+	@Test
+	public void loop() {
+		assertEquals("done", runAssembly("loop"));
+	}
+	
+	@Test
+	public void exceptionHandler() {
+		assertEquals("caught boom at 2", runAssembly("handler"));
+		assertEquals("caught boom at 4", runCompact("handler", Superinstructions.ALL)); // Offset of call instruction
+		
+		// Script exceptions are cheap, but know where they came from
+		ScriptException e = assertThrows(ScriptException.class, () -> runner.run(Assemblies.load("failure"), null));
+		assertEquals(1, e.getIndex());
+		assertEquals(0, e.getStackTrace().length);
+		
+		// With line numbers, they also know the line
+		IrBlock block = Assemblies.load("failure");
+		block.addLine(0, 7);
+		e = assertThrows(ScriptException.class, () -> runner.run(block, null));
+		assertEquals(7, e.getLine());
+		e = assertThrows(ScriptException.class, () -> runner.run(CompactBlock.encode(block, Superinstructions.ALL), null));
+		assertEquals(7, e.getLine());
+	}
+	
+	@Test
+	public void budget() throws Throwable {
+		// Three iterations; budget is checked when jumping back
+		Continuation<RunnerState> continuation = runner.start(Assemblies.load("loop"), null, 1);
+		assertFalse(continuation.isDone());
+		assertThrows(IllegalStateException.class, continuation::getResult);
+		continuation = runner.resume(continuation, 0);
+		assertFalse(continuation.isDone());
+		continuation = runner.resume(continuation, 5);
+		assertTrue(continuation.isDone());
+		assertEquals("done", continuation.getResult());
+		
+		Continuation<RunnerState> done = continuation;
+		assertThrows(IllegalArgumentException.class, () -> runner.resume(done, 1));
+		assertThrows(IllegalArgumentException.class, () -> runner.start(Assemblies.load("loop"), null, -1));
+	}
+	
+	@Test
+	public void suspendPoint() throws Throwable {
+		// Ignored without a budget
+		assertEquals("ab", runAssembly("blocking"));
+		
+		Continuation<RunnerState> continuation = runner.start(Assemblies.load("blocking"), null, 10);
+		assertTrue(continuation.isBlocked());
+		continuation = runner.resume(continuation, 10);
+		assertFalse(continuation.isBlocked());
+		assertEquals("ab", continuation.getResult());
+	}
+	
+	@Test
+	public void compactEncoding() {
+		CompactBlock block = CompactBlock.encode(Assemblies.load("condition"), Superinstructions.NONE);
+		int[] code = block.codeArray();
+		assertEquals(Opcodes.CALL_PLAIN, code[2]);
+		assertEquals(1, code[3]); // One argument
+		assertEquals(Opcodes.JUMP, code[5]);
+		assertEquals(11, code[7]); // Offset of 6th node
+		assertEquals(5, block.poolArray().length); // Literals, method handle and ScopeEntry
+	}
+	
+	@Test
+	public void superinstructions() {
+		CompactBlock block = CompactBlock.encode(Assemblies.load("condition"), Superinstructions.ALL);
+		int[] code = block.codeArray();
+		assertEquals(Opcodes.JUMP_AND_POP, code[5]);
+		assertEquals(12, code[7]); // After the pop
+		
+		block = CompactBlock.encode(Assemblies.load("loop"), Superinstructions.ALL);
+		code = block.codeArray();
+		assertEquals(Opcodes.LOAD_CONSTANT, code[0]); // Next node is a jump target
+		assertEquals(Opcodes.POP, code[2]);
+		assertEquals(Opcodes.LOAD_CONSTANT, code[3]);
+		assertEquals(Opcodes.CALL_PLAIN, code[5]);
+	}
+	
+	@Test
+	public void profile() {
+		OpcodeProfile profile = new OpcodeProfile();
+		profile.record(Assemblies.load("spread"));
+		assertEquals(9, profile.getTotal());
+		assertEquals(5, profile.getCount(Opcodes.LOAD_LITERAL, Opcodes.LOAD_LITERAL));
+		assertEquals(0, profile.getCount(Opcodes.CALL_PLAIN, Opcodes.POP));
+		
+		// Only consecutive loads are common enough
+		Superinstructions selected = Superinstructions.select(profile, 0.2);
+		CompactBlock block = CompactBlock.encode(Assemblies.load("condition"), selected);
+		assertEquals(Opcodes.JUMP, block.codeArray()[5]);
+		block = CompactBlock.encode(Assemblies.load("spread"), selected);
+		assertEquals(Opcodes.LOAD_CONSTANT2, block.codeArray()[0]);
+	}
+	
+	@Test
+	public void compactRun() {
+		for (Superinstructions superinstructions : new Superinstructions[] {Superinstructions.NONE, Superinstructions.ALL}) {
+			assertNull(runCompact("return2", superinstructions));
+			assertEquals("second", runCompact("constant", superinstructions, "first", "second"));
+			assertEquals("alphabetagamma", runCompact("call", superinstructions));
+			assertEquals("abcdefg", runCompact("spread", superinstructions));
+			assertEquals("correct return", runCompact("condition", superinstructions));
+			assertEquals("done", runCompact("loop", superinstructions));
+		}
+	}
 }
@@ -1,21 +1,452 @@
 package io.github.bensku.skripty.runtime.test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 
 import org.junit.jupiter.api.Test;
 
+import io.github.bensku.skripty.core.AstNode;
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.core.ScriptException;
 import io.github.bensku.skripty.core.ScriptBlock;
 import io.github.bensku.skripty.core.ScriptUnit;
+import io.github.bensku.skripty.core.expression.CallTarget;
+import io.github.bensku.skripty.core.expression.CallableExpression;
+import io.github.bensku.skripty.core.expression.ConstantExpression;
+import io.github.bensku.skripty.core.expression.ExpressionRegistry;
+import io.github.bensku.skripty.core.expression.InputType;
+import io.github.bensku.skripty.core.flow.ScopeEntry;
+import io.github.bensku.skripty.core.type.SkriptType;
+import io.github.bensku.skripty.runtime.ScriptRunner;
+import io.github.bensku.skripty.runtime.bytecode.BytecodeCompiler;
+import io.github.bensku.skripty.runtime.ir.CompactBlock;
+import io.github.bensku.skripty.runtime.ir.InlineCache;
 import io.github.bensku.skripty.runtime.ir.IrBlock;
 import io.github.bensku.skripty.runtime.ir.IrCompiler;
+import io.github.bensku.skripty.runtime.ir.IrNode;
+import io.github.bensku.skripty.runtime.ir.Opcodes;
 
 public class IrCompilerTest {
 
+	private static final SkriptType TEXT = SkriptType.create(String.class);
+	private static final SkriptType NUMBER = SkriptType.create(Long.class);
+	private static final SkriptType DECIMAL = SkriptType.create(Double.class);
+	private static final SkriptType BOOLEAN = SkriptType.create(Boolean.class);
+	private static final SkriptType ANY = SkriptType.create(Object.class);
+	
 	private IrCompiler compiler = new IrCompiler();
+	private ExpressionRegistry registry = new ExpressionRegistry();
+	private StringBuilder log = new StringBuilder();
+	private Object variable;
+	
+	public String concat(String a, String b) {
+		return a + b;
+	}
+	
+	public ScopeEntry enter(String flag) {
+		return flag.equals("yes") ? ScopeEntry.ONCE : ScopeEntry.NO;
+	}
+	
+	public String record(String text) {
+		log.append(text);
+		return text;
+	}
+	
+	public String fail(String message) {
+		throw new ScriptException(message);
+	}
+	
+	public long twice(long value) {
+		return value * 2;
+	}
+	
+	public double half(long value) {
+		return value / 2.0;
+	}
+	
+	public boolean positive(double value) {
+		log.append(value);
+		return value > 0;
+	}
+	
+	public Object variable() {
+		return variable;
+	}
+	
+	public String describe(String text) {
+		return record("text ");
+	}
+	
+	public String describe(Long number) {
+		return record("number ");
+	}
+	
+	public Number number() {
+		return (Number) variable;
+	}
+	
+	public Long tag(Long value) {
+		log.append("long ");
+		return value;
+	}
+	
+	public String tag(Object value) {
+		log.append("object ");
+		return value.toString();
+	}
+	
+	public String className(Object value) {
+		return value != null ? value.getClass().getSimpleName() : "null";
+	}
+	
+	private CallableExpression makePrimitive(String name, SkriptType type, Class<?> returnType, Class<?> param,
+			SkriptType paramType) throws ReflectiveOperationException {
+		CallTarget target = new CallTarget(MethodHandles.lookup().findVirtual(getClass(), name,
+				MethodType.methodType(returnType, param)), false, paramType);
+		return registry.makeCallable(this)
+				.inputTypes(new InputType(false, paramType))
+				.returnType(type)
+				.callTargets(target)
+				.create();
+	}
+	
+	private CallableExpression makeScope(boolean pure) throws ReflectiveOperationException {
+		CallTarget target = new CallTarget(MethodHandles.lookup().findVirtual(getClass(), "enter",
+				MethodType.methodType(ScopeEntry.class, String.class)), false, pure, TEXT);
+		return registry.makeCallable(this)
+				.inputTypes(new InputType(false, TEXT))
+				.returnType(ScopeEntry.TYPE)
+				.callTargets(target)
+				.scopeEntries(ScopeEntry.ONCE, ScopeEntry.NO)
+				.create();
+	}
+	
+	private ScriptBlock makeConditional(CallableExpression scope, String flag) throws ReflectiveOperationException {
+		CallTarget target = new CallTarget(MethodHandles.lookup().findVirtual(getClass(), "record",
+				MethodType.methodType(String.class, String.class)), false, TEXT);
+		CallableExpression record = registry.makeCallable(this)
+				.inputTypes(new InputType(false, TEXT))
+				.returnType(TEXT)
+				.callTargets(target)
+				.create();
+		AstNode.Expr title = new AstNode.Expr(scope, new AstNode[] {new AstNode.Literal(TEXT, flag)});
+		AstNode.Expr body = new AstNode.Expr(record, new AstNode[] {new AstNode.Literal(TEXT, "entered")});
+		return new ScriptBlock(null, new ScriptUnit[] {new ScriptBlock(title, new ScriptUnit[] {body})});
+	}
+	
+	private CallableExpression makeConcat(boolean pure) throws ReflectiveOperationException {
+		CallTarget target = new CallTarget(MethodHandles.lookup().findVirtual(getClass(), "concat",
+				MethodType.methodType(String.class, String.class, String.class)), false, pure, TEXT, TEXT);
+		return registry.makeCallable(this)
+				.inputTypes(new InputType(false, TEXT), new InputType(false, TEXT))
+				.returnType(TEXT)
+				.callTargets(target)
+				.create();
+	}
 	
 	@Test
 	public void emptyScript() {
 		IrBlock block = compiler.compile(new ScriptBlock(null, new ScriptUnit[0]));
 		assertEquals(0, block.size());
 	}
+	
+	@Test
+	public void constantFolding() throws ReflectiveOperationException {
+		CallableExpression concat = makeConcat(true);
+		AstNode.Expr inner = new AstNode.Expr(concat, new AstNode[] {new AstNode.Literal(TEXT, "a"), new AstNode.Literal(TEXT, "b")});
+		AstNode.Expr outer = new AstNode.Expr(concat, new AstNode[] {inner, new AstNode.Literal(TEXT, "c")});
+		IrBlock block = compiler.compile(new ScriptBlock(null, new ScriptUnit[] {outer}));
+		
+		// Both calls were evaluated at compile time
+		IrNode[] nodes = block.getNodes();
+		assertEquals(2, nodes.length);
+		assertEquals("abc", ((IrNode.LoadLiteral) nodes[0]).getValue());
+		assertEquals(IrNode.Pop.INSTANCE, nodes[1]);
+	}
+	
+	@Test
+	public void constantExpressions() throws ReflectiveOperationException {
+		ConstantExpression constant = registry.makeConstant(TEXT, "a");
+		AstNode.Expr expr = new AstNode.Expr(constant, new AstNode[0]);
+		IrBlock block = compiler.compile(new ScriptBlock(null, new ScriptUnit[] {expr}));
+		
+		// Value is snapshotted to constant pool
+		IrNode[] nodes = block.getNodes();
+		assertEquals(2, nodes.length);
+		assertEquals("a", block.getConstant(((IrNode.LoadConstant) nodes[0]).getIndex()));
+		
+		// Pure calls with constant inputs are still folded
+		AstNode.Expr call = new AstNode.Expr(makeConcat(true), new AstNode[] {expr, new AstNode.Literal(TEXT, "b")});
+		nodes = compiler.compile(new ScriptBlock(null, new ScriptUnit[] {call})).getNodes();
+		assertEquals(2, nodes.length);
+		assertEquals("ab", ((IrNode.LoadLiteral) nodes[0]).getValue());
+		
+		// And so are scopes with constant titles
+		AstNode.Expr title = new AstNode.Expr(registry.makeConstant(ScopeEntry.TYPE, ScopeEntry.NO), new AstNode[0]);
+		ScriptBlock scope = new ScriptBlock(title, new ScriptUnit[] {expr});
+		assertEquals(0, compiler.compile(new ScriptBlock(null, new ScriptUnit[] {scope})).size());
+	}
+	
+	@Test
+	public void impureNotFolded() throws ReflectiveOperationException {
+		CallableExpression concat = makeConcat(false);
+		AstNode.Expr expr = new AstNode.Expr(concat, new AstNode[] {new AstNode.Literal(TEXT, "a"), new AstNode.Literal(TEXT, "b")});
+		IrBlock block = compiler.compile(new ScriptBlock(null, new ScriptUnit[] {expr}));
+		
+		IrNode[] nodes = block.getNodes();
+		assertEquals(4, nodes.length);
+		assertEquals("a", ((IrNode.LoadLiteral) nodes[0]).getValue());
+		assertEquals("b", ((IrNode.LoadLiteral) nodes[1]).getValue());
+		assertEquals(IrNode.CallPlain.class, nodes[2].getClass());
+	}
+	
+	@Test
+	public void blockingCall() throws Throwable {
+		CallTarget target = new CallTarget(MethodHandles.lookup().findVirtual(getClass(), "concat",
+				MethodType.methodType(String.class, String.class, String.class)), false, false, true, TEXT, TEXT);
+		CallableExpression concat = registry.makeCallable(this)
+				.inputTypes(new InputType(false, TEXT), new InputType(false, TEXT))
+				.returnType(TEXT)
+				.callTargets(target)
+				.create();
+		AstNode.Expr expr = new AstNode.Expr(concat, new AstNode[] {new AstNode.Literal(TEXT, "a"), new AstNode.Literal(TEXT, "b")});
+		IrBlock block = compiler.compile(new ScriptBlock(null, new ScriptUnit[] {expr}));
+		
+		// Suspended after arguments are on stack, right before the call
+		IrNode[] nodes = block.getNodes();
+		assertEquals(5, nodes.length);
+		assertEquals(IrNode.SuspendPoint.INSTANCE, nodes[2]);
+		assertEquals(IrNode.CallPlain.class, nodes[3].getClass());
+	}
+	
+	@Test
+	public void constantScope() throws ReflectiveOperationException {
+		CallableExpression scope = makeScope(true);
+		
+		// Never entered, nothing to emit
+		assertEquals(0, compiler.compile(makeConditional(scope, "no")).size());
+		
+		// Always entered once, only body is emitted
+		IrNode[] nodes = compiler.compile(makeConditional(scope, "yes")).getNodes();
+		assertEquals(3, nodes.length);
+		assertEquals("entered", ((IrNode.LoadLiteral) nodes[0]).getValue());
+	}
+	
+	@Test
+	public void lineNumbers() throws ReflectiveOperationException {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		CallableExpression record = registry.makeCallable(this)
+				.inputTypes(new InputType(false, TEXT))
+				.returnType(TEXT)
+				.callTargets(new CallTarget(lookup.findVirtual(getClass(), "record",
+						MethodType.methodType(String.class, String.class)), false, TEXT))
+				.create();
+		CallableExpression fail = registry.makeCallable(this)
+				.inputTypes(new InputType(false, TEXT))
+				.returnType(TEXT)
+				.callTargets(new CallTarget(lookup.findVirtual(getClass(), "fail",
+						MethodType.methodType(String.class, String.class)), false, TEXT))
+				.create();
+		
+		// Line 2 starts a scope that is entered at runtime, line 4 one that folds away
+		ScriptBlock entered = new ScriptBlock(new AstNode.Expr(makeScope(false), new AstNode[] {new AstNode.Literal(TEXT, "yes")}),
+				new ScriptUnit[] {new AstNode.Expr(record, new AstNode[] {new AstNode.Literal(TEXT, "b")})}, new int[] {3});
+		ScriptBlock folded = new ScriptBlock(new AstNode.Expr(makeScope(true), new AstNode[] {new AstNode.Literal(TEXT, "no")}),
+				new ScriptUnit[] {new AstNode.Expr(record, new AstNode[] {new AstNode.Literal(TEXT, "x")})}, new int[] {5});
+		ScriptBlock source = new ScriptBlock(null, new ScriptUnit[] {
+				new AstNode.Expr(record, new AstNode[] {new AstNode.Literal(TEXT, "a")}),
+				entered,
+				folded,
+				new AstNode.Expr(fail, new AstNode[] {new AstNode.Literal(TEXT, "boom")})
+		}, new int[] {1, 2, 4, 6});
+		IrBlock block = compiler.compile(source);
+		
+		IrNode[] nodes = block.getNodes();
+		assertEquals(13, nodes.length);
+		assertEquals(1, block.getLine(1)); // record("a")
+		assertEquals(2, block.getLine(4)); // Scope title
+		assertEquals(IrNode.Jump.class, nodes[5].getClass());
+		assertEquals(3, block.getLine(7)); // record("b")
+		assertEquals(6, block.getLine(11)); // fail("boom")
+		assertEquals(IrNode.CallPlain.class, nodes[11].getClass());
+		for (int i = 0; i < nodes.length; i++) {
+			assertTrue(block.getLine(i) != 4 && block.getLine(i) != 5); // Folded scope left nothing behind
+		}
+		
+		// Failures report the line of the call that threw
+		ScriptRunner<RunnerState> runner = new ScriptRunner<>(8);
+		ScriptException e = assertThrows(ScriptException.class, () -> runner.run(block, null));
+		assertEquals("ab", log.toString());
+		assertEquals(11, e.getIndex());
+		assertEquals(6, e.getLine());
+	}
+	
+	@Test
+	public void scopeWithoutLoop() throws Throwable {
+		CallableExpression scope = makeScope(false);
+		ScriptRunner<RunnerState> runner = new ScriptRunner<>(8);
+		
+		IrBlock block = compiler.compile(makeConditional(scope, "yes"));
+		for (IrNode node : block.getNodes()) {
+			if (node instanceof IrNode.Jump) {
+				assertEquals(ScopeEntry.NO, ((IrNode.Jump) node).getConstant()); // No back-edge
+			}
+		}
+		runner.run(block, null);
+		assertEquals("entered", log.toString());
+		
+		runner.run(compiler.compile(makeConditional(scope, "no")), null);
+		assertEquals("entered", log.toString()); // Not entered again
+	}
+	
+	@Test
+	public void primitiveLanes() throws Throwable {
+		CallableExpression twice = makePrimitive("twice", NUMBER, long.class, long.class, NUMBER);
+		CallableExpression half = makePrimitive("half", DECIMAL, double.class, long.class, NUMBER);
+		CallableExpression positive = makePrimitive("positive", BOOLEAN, boolean.class, double.class, DECIMAL);
+		AstNode.Expr expr = new AstNode.Expr(twice, new AstNode[] {new AstNode.Literal(NUMBER, 5L)});
+		expr = new AstNode.Expr(half, new AstNode[] {expr});
+		expr = new AstNode.Expr(positive, new AstNode[] {expr});
+		IrBlock block = compiler.compile(new ScriptBlock(null, new ScriptUnit[] {expr}));
+		
+		// Values are passed between calls without boxing them
+		IrNode[] nodes = block.getNodes();
+		assertEquals(5, nodes.length);
+		assertEquals(Opcodes.LOAD_PRIMITIVE, nodes[0].getOpcode());
+		for (int i = 1; i < 4; i++) {
+			IrNode.CallMethod call = (IrNode.CallMethod) nodes[i];
+			assertEquals(Opcodes.CALL_LANED, call.getOpcode());
+			assertTrue(call.isPrimitiveArgument(0));
+			assertTrue(call.hasPrimitiveReturn()); // Even the last one, since it is just popped
+		}
+		
+		ScriptRunner<RunnerState> runner = new ScriptRunner<>(8);
+		runner.run(block, null);
+		assertEquals("5.0", log.toString());
+		runner.run(CompactBlock.encode(block), null);
+		assertEquals("5.05.0", log.toString());
+		new BytecodeCompiler().compile(block).run(null);
+		assertEquals("5.05.05.0", log.toString());
+	}
+	
+	@Test
+	public void inlineCache() throws Throwable {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		CallableExpression getter = registry.makeCallable(this)
+				.inputTypes()
+				.returnType(ANY)
+				.callTargets(new CallTarget(lookup.findVirtual(getClass(), "variable",
+						MethodType.methodType(Object.class)), false))
+				.create();
+		CallableExpression describe = registry.makeCallable(this)
+				.inputTypes(new InputType(false, ANY))
+				.returnType(ANY)
+				.callTargets(new CallTarget(lookup.findVirtual(getClass(), "describe",
+						MethodType.methodType(String.class, String.class)), false, new SkriptType[1]),
+						new CallTarget(lookup.findVirtual(getClass(), "describe",
+						MethodType.methodType(String.class, Long.class)), false, new SkriptType[1]))
+				.create();
+		AstNode.Expr expr = new AstNode.Expr(describe, new AstNode[] {new AstNode.Expr(getter, new AstNode[0])});
+		IrBlock block = compiler.compile(new ScriptBlock(null, new ScriptUnit[] {expr}));
+		
+		// Target depends on what the variable contains
+		IrNode.CallCached call = (IrNode.CallCached) block.getNodes()[1];
+		ScriptRunner<RunnerState> runner = new ScriptRunner<>(8);
+		variable = "text";
+		runner.run(block, null);
+		variable = 1L;
+		runner.run(block, null);
+		variable = "more text";
+		runner.run(block, null);
+		assertEquals("text number text ", log.toString());
+		assertEquals(2, call.getCache().size()); // Third call hit the cache
+		
+		// No target accepts this; that is a script failure
+		variable = 1;
+		ScriptException e = assertThrows(ScriptException.class, () -> runner.run(block, null));
+		assertEquals(1, e.getIndex());
+		assertEquals(2, call.getCache().size()); // Failures are not cached
+		
+		// Nothing accepts null, either
+		variable = null;
+		e = assertThrows(ScriptException.class, () -> runner.run(block, null));
+		assertEquals(1, e.getIndex());
+	}
+	
+	@Test
+	public void inlineCacheReturns() throws Throwable {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		CallableExpression getter = registry.makeCallable(this)
+				.inputTypes()
+				.returnType(ANY)
+				.callTargets(new CallTarget(lookup.findVirtual(getClass(), "number",
+						MethodType.methodType(Number.class)), false))
+				.create();
+		CallableExpression tag = registry.makeCallable(this)
+				.inputTypes(new InputType(false, ANY))
+				.returnType(ANY)
+				.callTargets(new CallTarget(lookup.findVirtual(getClass(), "tag",
+						MethodType.methodType(Long.class, Long.class)), false, new SkriptType[1]),
+						new CallTarget(lookup.findVirtual(getClass(), "tag",
+						MethodType.methodType(String.class, Object.class)), false, new SkriptType[1]))
+				.create();
+		AstNode.Expr expr = new AstNode.Expr(tag, new AstNode[] {new AstNode.Expr(getter, new AstNode[0])});
+		IrBlock block = compiler.compile(new ScriptBlock(null, new ScriptUnit[] {expr}));
+		
+		// Target that accepts any Number returns a String, but the one for Longs does not
+		ScriptRunner<RunnerState> runner = new ScriptRunner<>(8);
+		variable = 1.0;
+		runner.run(block, null);
+		variable = 1L;
+		runner.run(block, null);
+		runner.run(CompactBlock.encode(block), null);
+		new BytecodeCompiler().compile(block).run(null);
+		assertEquals("object long long long ", log.toString());
+	}
+	
+	@Test
+	public void inlineCacheNulls() throws Throwable {
+		CallTarget target = new CallTarget(MethodHandles.lookup().findVirtual(getClass(), "className",
+				MethodType.methodType(String.class, Object.class)), false, new SkriptType[1]);
+		CallableExpression expr = registry.makeCallable(this)
+				.inputTypes(new InputType(false, ANY))
+				.returnType(TEXT)
+				.callTargets(target)
+				.create();
+		
+		// Null arguments go to fallback, which is not cached
+		InlineCache cache = new InlineCache(expr, new SkriptType[] {ANY}, target);
+		assertEquals("null", cache.getInvoker().invoke(null, null));
+		assertEquals(0, cache.size());
+		
+		cache = new InlineCache(expr, new SkriptType[] {ANY}, null);
+		MethodHandle invoker = cache.getInvoker();
+		assertThrows(ScriptException.class, () -> invoker.invoke(null, null));
+	}
+	
+	@Test
+	public void megamorphicCache() throws Throwable {
+		CallTarget target = new CallTarget(MethodHandles.lookup().findVirtual(getClass(), "className",
+				MethodType.methodType(String.class, Object.class)), false, new SkriptType[1]);
+		CallableExpression expr = registry.makeCallable(this)
+				.inputTypes(new InputType(false, ANY))
+				.returnType(TEXT)
+				.callTargets(target)
+				.create();
+		InlineCache cache = new InlineCache(expr, new SkriptType[] {ANY}, null);
+		
+		// More classes than fit in the chain; rest are still called correctly
+		Object[] values = {"a", 1L, 1, 1.0, true, 'c', 1.0f};
+		for (int round = 0; round < 2; round++) {
+			for (Object value : values) {
+				assertEquals(value.getClass().getSimpleName(), cache.getInvoker().invoke(null, value));
+			}
+		}
+		assertEquals(InlineCache.MAX_ENTRIES, cache.size());
+	}
 }
@@ -0,0 +1,106 @@
+package io.github.bensku.skripty.runtime.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.bensku.skripty.core.flow.ScopeEntry;
+import io.github.bensku.skripty.runtime.ir.ExceptionHandler;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+import io.github.bensku.skripty.runtime.ir.IrNode;
+import io.github.bensku.skripty.runtime.ir.IrOptimizer;
+
+public class IrOptimizerTest {
+
+	private IrOptimizer optimizer = new IrOptimizer();
+	
+	@Test
+	public void neverTaken() {
+		IrNode[] nodes = optimizer.optimize(new IrBlock(new IrNode[] {
+				new IrNode.LoadLiteral(ScopeEntry.NO),
+				new IrNode.Jump(ScopeEntry.YES, 3),
+				IrNode.Pop.INSTANCE,
+				new IrNode.LoadLiteral("a"),
+				IrNode.Return.INSTANCE
+		})).getNodes();
+		assertEquals(4, nodes.length);
+		assertEquals(IrNode.Pop.INSTANCE, nodes[1]);
+	}
+	
+	@Test
+	public void alwaysTaken() {
+		IrNode[] nodes = optimizer.optimize(new IrBlock(new IrNode[] {
+				new IrNode.LoadLiteral(ScopeEntry.YES),
+				new IrNode.Jump(ScopeEntry.YES, 4),
+				new IrNode.LoadLiteral("dead"),
+				IrNode.Return.INSTANCE,
+				IrNode.Pop.INSTANCE,
+				new IrNode.LoadLiteral("live"),
+				IrNode.Return.INSTANCE
+		})).getNodes();
+		assertEquals(5, nodes.length);
+		assertEquals(2, ((IrNode.Jump) nodes[1]).getTarget());
+		assertEquals("live", ((IrNode.LoadLiteral) nodes[3]).getValue());
+	}
+	
+	@Test
+	public void threading() {
+		IrBlock block = optimizer.optimize(new IrBlock(new IrNode[] {
+				new IrNode.LoadConstant(0), // Value not known by optimizer
+				new IrNode.Jump(ScopeEntry.YES, 3),
+				IrNode.Return.INSTANCE,
+				new IrNode.Jump(ScopeEntry.YES, 5),
+				IrNode.Return.INSTANCE,
+				IrNode.Return.INSTANCE
+		}, new Object[] {ScopeEntry.YES}));
+		IrNode[] nodes = block.getNodes();
+		assertEquals(4, nodes.length); // Second jump is no longer reachable
+		assertEquals(3, ((IrNode.Jump) nodes[1]).getTarget());
+		assertEquals(ScopeEntry.YES, block.getConstant(0));
+	}
+	
+	@Test
+	public void handlers() {
+		IrBlock block = new IrBlock(new IrNode[] {
+				new IrNode.LoadLiteral(ScopeEntry.YES),
+				new IrNode.Jump(ScopeEntry.YES, 4),
+				new IrNode.LoadLiteral("dead"),
+				IrNode.Return.INSTANCE,
+				IrNode.Pop.INSTANCE,
+				new IrNode.LoadLiteral("live"),
+				IrNode.Return.INSTANCE,
+				new IrNode.LoadLiteral("handled"), // Only reachable through handler
+				IrNode.Return.INSTANCE
+		});
+		block.addHandler(new ExceptionHandler(5, 6, 7));
+		IrBlock optimized = optimizer.optimize(block);
+		assertEquals(7, optimized.size());
+		ExceptionHandler handler = optimized.getHandler(0);
+		assertEquals(3, handler.getStart());
+		assertEquals(4, handler.getEnd());
+		assertEquals(5, handler.getTarget());
+		assertEquals(2, optimized.getMaxStack());
+	}
+	
+	@Test
+	public void lines() {
+		IrBlock block = new IrBlock(new IrNode[] {
+				new IrNode.LoadLiteral(ScopeEntry.YES),
+				new IrNode.Jump(ScopeEntry.YES, 4),
+				new IrNode.LoadLiteral("dead"),
+				IrNode.Return.INSTANCE,
+				IrNode.Pop.INSTANCE,
+				new IrNode.LoadLiteral("live"),
+				IrNode.Return.INSTANCE
+		});
+		block.addLine(0, 1);
+		block.addLine(2, 2); // Removed with dead code
+		block.addLine(4, 3);
+		block.addLine(5, 4);
+		IrBlock optimized = optimizer.optimize(block);
+		assertEquals(1, optimized.getLine(1));
+		assertEquals(3, optimized.getLine(2));
+		assertEquals(4, optimized.getLine(3));
+		assertEquals(4, optimized.getLine(4));
+	}
+}
@@ -0,0 +1,128 @@
+package io.github.bensku.skripty.runtime.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.bensku.skripty.core.flow.ScopeEntry;
+import io.github.bensku.skripty.runtime.ir.ExceptionHandler;
+import io.github.bensku.skripty.runtime.ir.IrBlock;
+import io.github.bensku.skripty.runtime.ir.IrNode;
+import io.github.bensku.skripty.runtime.ir.IrVerifier;
+
+public class IrVerifierTest {
+
+	private IrVerifier verifier = new IrVerifier();
+	
+	private MethodHandle toHexString() {
+		try {
+			return MethodHandles.publicLookup().findStatic(Integer.class, "toHexString",
+					MethodType.methodType(String.class, int.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	@Test
+	public void empty() {
+		IrVerifier.Result result = verifier.verify(new IrBlock());
+		assertEquals(0, result.getMaxStack());
+		assertEquals(0, result.getStackHeight(0));
+	}
+	
+	@Test
+	public void handler() {
+		IrVerifier.Result result = verifier.verify(Assemblies.load("handler"));
+		assertEquals(2, result.getStackHeight(4)); // Value from before region, and the exception
+		
+		// Region pops a value that was there before it
+		IrBlock block = new IrBlock(new IrNode[] {new IrNode.LoadLiteral("a"), IrNode.Pop.INSTANCE});
+		block.addHandler(new ExceptionHandler(1, 2, 2));
+		assertThrows(IllegalArgumentException.class, () -> verifier.verify(block));
+	}
+	
+	@Test
+	public void loop() {
+		IrVerifier.Result result = verifier.verify(Assemblies.load("loop"));
+		assertEquals(2, result.getMaxStack());
+		assertArrayEquals(new int[] {0, 1, 0, 1, 1, 1, 2, 1, 1, 0, 1, -1}, result.getStackHeights());
+	}
+	
+	@Test
+	public void unreachable() {
+		IrVerifier.Result result = verifier.verify(new IrBlock(new IrNode[] {
+				IrNode.Return.INSTANCE,
+				IrNode.Pop.INSTANCE // Would underflow, but is never executed
+		}));
+		assertEquals(-1, result.getStackHeight(1));
+	}
+	
+	@Test
+	public void types() {
+		IrVerifier.Result result = verifier.verify(new IrBlock(new IrNode[] {
+				new IrNode.LoadLiteral(10),
+				new IrNode.CallPlain(toHexString(), true),
+				new IrNode.LoadLiteral(ScopeEntry.YES),
+				new IrNode.Jump(ScopeEntry.YES, 6),
+				IrNode.Pop.INSTANCE,
+				new IrNode.LoadLiteral("foo"),
+				IrNode.Return.INSTANCE
+		}));
+		assertArrayEquals(new Class<?>[] {Integer.class}, result.getStackTypes(1));
+		assertArrayEquals(new Class<?>[] {String.class, ScopeEntry.class}, result.getStackTypes(3));
+		// Two paths merge here, and they left different types at top
+		assertArrayEquals(new Class<?>[] {String.class, null}, result.getStackTypes(6));
+	}
+	
+	@Test
+	public void invalid() {
+		// Jump target is out of block
+		assertThrows(IllegalArgumentException.class, () -> verifier.verify(Assemblies.load("selftest")));
+		// Pop from empty stack
+		assertThrows(IllegalArgumentException.class, () -> verifier.verify(new IrBlock(new IrNode[] {IrNode.Pop.INSTANCE})));
+		// Stack height depends on whether jump is taken
+		assertThrows(IllegalArgumentException.class, () -> verifier.verify(new IrBlock(new IrNode[] {
+				new IrNode.LoadLiteral(ScopeEntry.YES),
+				new IrNode.Jump(ScopeEntry.YES, 3),
+				new IrNode.LoadLiteral("extra"),
+				IrNode.Return.INSTANCE
+		})));
+		// Exact call with argument of wrong type
+		assertThrows(IllegalArgumentException.class, () -> verifier.verify(new IrBlock(new IrNode[] {
+				new IrNode.LoadLiteral("not a number"),
+				new IrNode.CallPlain(toHexString(), true)
+		})));
+		// Primitive given to a call that expects an object
+		assertThrows(IllegalArgumentException.class, () -> verifier.verify(new IrBlock(new IrNode[] {
+				new IrNode.LoadPrimitive(1),
+				new IrNode.CallPlain(toHexString(), false)
+		})));
+		// Primitive lane of a laned call has wrong type
+		assertThrows(IllegalArgumentException.class, () -> verifier.verify(new IrBlock(new IrNode[] {
+				new IrNode.LoadPrimitive(1L),
+				new IrNode.CallPlain(toHexString(), false, 1, false)
+		})));
+		// Jump on primitive
+		assertThrows(IllegalArgumentException.class, () -> verifier.verify(new IrBlock(new IrNode[] {
+				new IrNode.LoadPrimitive(1),
+				new IrNode.Jump(ScopeEntry.YES, 0)
+		})));
+	}
+	
+	@Test
+	public void lanes() {
+		IrVerifier.Result result = verifier.verify(new IrBlock(new IrNode[] {
+				new IrNode.LoadPrimitive(1),
+				new IrNode.CallPlain(toHexString(), true, 1, false),
+				IrNode.Return.INSTANCE
+		}));
+		assertArrayEquals(new Class<?>[] {int.class}, result.getStackTypes(1));
+		assertArrayEquals(new Class<?>[] {String.class}, result.getStackTypes(2));
+	}
+}
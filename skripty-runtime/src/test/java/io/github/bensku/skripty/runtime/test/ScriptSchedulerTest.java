@@ -0,0 +1,62 @@
+package io.github.bensku.skripty.runtime.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.runtime.ScriptRunner;
+import io.github.bensku.skripty.runtime.ScriptScheduler;
+
+public class ScriptSchedulerTest {
+
+	private ScriptRunner<RunnerState> runner = new ScriptRunner<>(64);
+	
+	@Test
+	public void timeSlicing() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(1);
+		try {
+			ScriptScheduler<RunnerState> scheduler = new ScriptScheduler<>(runner, pool, 10);
+			
+			// Infinite loop must not starve other blocks on the only thread
+			CompletableFuture<Object> infinite = scheduler.submit(Assemblies.load("infinite"), null);
+			CompletableFuture<Object> loop = scheduler.submit(Assemblies.load("loop"), null);
+			assertEquals("done", loop.get(10, TimeUnit.SECONDS));
+			assertEquals("test text", scheduler.submit(Assemblies.load("return1"), null).get(10, TimeUnit.SECONDS));
+			assertFalse(infinite.isDone());
+			
+			infinite.cancel(false);
+		} finally {
+			pool.shutdown();
+			assertEquals(true, pool.awaitTermination(10, TimeUnit.SECONDS));
+		}
+	}
+	
+	@Test
+	public void blockingCalls() throws Exception {
+		AtomicInteger blockingSlices = new AtomicInteger();
+		ScriptScheduler<RunnerState> scheduler = new ScriptScheduler<>(runner, Runnable::run, task -> {
+			blockingSlices.incrementAndGet();
+			task.run();
+		}, 10);
+		assertEquals("ab", scheduler.submit(Assemblies.load("blocking"), null).get());
+		assertEquals(1, blockingSlices.get());
+		
+		// No blocking calls, so blocking executor is not used
+		assertEquals("done", scheduler.submit(Assemblies.load("loop"), null).get());
+		assertEquals(1, blockingSlices.get());
+	}
+	
+	@Test
+	public void invalidSlice() {
+		assertThrows(IllegalArgumentException.class, () -> new ScriptScheduler<>(runner, Runnable::run, 0));
+	}
+}
@@ -2,6 +2,7 @@ package io.github.bensku.skripty.runtime.test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import org.junit.jupiter.api.Test;
 
@@ -37,4 +38,39 @@ public class ScriptStackTest {
 			assertEquals(i, out[i + 1]);
 		}
 	}
+	
+	@Test
+	public void noCopyOps() {
+		ScriptStack stack = new ScriptStack(64);
+		for (int i = 0; i < 10; i++) {
+			stack.push(i);
+		}
+		assertEquals(9, stack.peekAt(0));
+		assertEquals(5, stack.peekAt(4));
+		stack.drop(2);
+		assertEquals(8, stack.size());
+		
+		Object[] buffer = stack.popToBuffer(3);
+		assertEquals(3, buffer.length);
+		assertEquals(5, buffer[0]);
+		assertEquals(7, buffer[2]);
+		assertSame(buffer, stack.popToBuffer(3)); // Buffer is reused
+		assertEquals(2, stack.size());
+	}
+	
+	@Test
+	public void growAndUnwind() {
+		ScriptStack stack = new ScriptStack(2);
+		stack.push(0);
+		stack.ensureFree(10);
+		for (int i = 1; i <= 10; i++) {
+			stack.push(i);
+		}
+		assertEquals(11, stack.size());
+		assertEquals(0, stack.peekAt(10)); // Old values were preserved
+		
+		stack.unwind(1, 10);
+		assertEquals(1, stack.size());
+		assertEquals(0, stack.peek());
+	}
 }
@@ -0,0 +1,79 @@
+package io.github.bensku.skripty.runtime.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.bensku.skripty.core.RunnerState;
+import io.github.bensku.skripty.runtime.ScriptRunner;
+import io.github.bensku.skripty.runtime.TieredBlock;
+
+public class TieredBlockTest {
+
+	private List<Runnable> compileQueue = new ArrayList<>();
+	private ScriptRunner<RunnerState> runner = new ScriptRunner<>(64, compileQueue::add, 5);
+	
+	@Test
+	public void invocations() throws Throwable {
+		TieredBlock<RunnerState> block = new TieredBlock<>(Assemblies.load("call"));
+		for (int i = 0; i < 4; i++) {
+			assertEquals("alphabetagamma", runner.run(block, null));
+		}
+		assertEquals(0, compileQueue.size());
+		assertEquals("alphabetagamma", runner.run(block, null));
+		assertEquals(1, compileQueue.size()); // Hot now
+		
+		// Interpreted until compiler has finished
+		assertNull(block.getCompiled());
+		assertEquals("alphabetagamma", runner.run(block, null));
+		compileQueue.get(0).run();
+		assertNotNull(block.getCompiled());
+		assertEquals("alphabetagamma", runner.run(block, null));
+		assertEquals(1, compileQueue.size()); // Not queued again
+	}
+	
+	@Test
+	public void backEdges() throws Throwable {
+		// One invocation and three iterations
+		TieredBlock<RunnerState> block = new TieredBlock<>(Assemblies.load("loop"));
+		assertEquals("done", runner.run(block, null));
+		assertEquals(4, block.getHotness());
+		assertEquals(0, compileQueue.size());
+		assertEquals("done", runner.run(block, null));
+		assertEquals(1, compileQueue.size());
+	}
+	
+	@Test
+	public void uncompilable() throws Throwable {
+		// Bytecode compiler does not support exception handlers
+		TieredBlock<RunnerState> block = new TieredBlock<>(Assemblies.load("handler"));
+		for (int i = 0; i < 5; i++) {
+			runner.run(block, null);
+		}
+		assertEquals(1, compileQueue.size());
+		compileQueue.get(0).run();
+		assertNull(block.getCompiled());
+		assertTrue(block.isUncompilable());
+		
+		// Still interpreted, but no longer profiled
+		assertEquals("caught boom at 2", runner.run(block, null));
+		assertEquals(5, block.getHotness());
+	}
+	
+	@Test
+	public void onStackReplacement() throws Throwable {
+		// Compile immediately when loop gets hot
+		ScriptRunner<RunnerState> eager = new ScriptRunner<>(64, Runnable::run, 2);
+		TieredBlock<RunnerState> block = new TieredBlock<>(Assemblies.load("loop"));
+		assertEquals("done", eager.run(block, null));
+		assertNotNull(block.getCompiled());
+		// After first back-edge, rest of iterations were not interpreted
+		assertEquals(2, block.getHotness());
+	}
+}
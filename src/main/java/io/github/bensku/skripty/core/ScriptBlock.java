@@ -19,9 +19,30 @@ public class ScriptBlock implements ScriptUnit {
 	 */
 	private final ScriptUnit[] units;
 	
-	public ScriptBlock(AstNode.Expr titleExpr, ScriptUnit[] units) {
+	/**
+	 * Source lines of units, or null if they are not known. Lines of
+	 * blocks are lines of their titles.
+	 */
+	private final int[] lines;
+	
+	/**
+	 * Creates a new script block.
+	 * @param titleExpr Title expression, or null.
+	 * @param units Units in the block.
+	 * @param lines Source lines of the units, or null if not known.
+	 * @throws IllegalArgumentException When there is not one line per unit.
+	 */
+	public ScriptBlock(AstNode.Expr titleExpr, ScriptUnit[] units, int[] lines) {
+		if (lines != null && lines.length != units.length) {
+			throw new IllegalArgumentException("expected " + units.length + " lines, got " + lines.length);
+		}
 		this.titleExpr = titleExpr;
 		this.units = units;
+		this.lines = lines;
+	}
+	
+	public ScriptBlock(AstNode.Expr titleExpr, ScriptUnit[] units) {
+		this(titleExpr, units, null);
 	}
 
 	public AstNode.Expr getTitleExpr() {
@@ -32,4 +53,13 @@ public class ScriptBlock implements ScriptUnit {
 		return units;
 	}
 	
+	/**
+	 * Gets the source line of a unit in this block.
+	 * @param index Index of the unit.
+	 * @return Line number, or -1 if it is not known.
+	 */
+	public int getLine(int index) {
+		return lines != null ? lines[index] : -1;
+	}
+	
 }
@@ -0,0 +1,99 @@
+package io.github.bensku.skripty.core;
+
+/**
+ * Thrown when a script fails in a way that its author can expect, e.g. when
+ * an expression is given a value that it cannot handle. Call targets should
+ * throw these instead of other exceptions for such failures.
+ *
+ * <p>Script exceptions do not have stack traces by default. Filling in a
+ * stack trace is by far the most expensive part of throwing an exception,
+ * and the Java stack is rarely useful for finding out what went wrong in a
+ * script. Instead, the runtime records the index of IR node that failed,
+ * and the source line of it when known.
+ *
+ */
+public class ScriptException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Index of the IR node that failed (or instruction offset, for compact
+	 * blocks), or -1 if not known.
+	 */
+	private int index;
+
+	/**
+	 * Source line of the node that failed, or -1 if not known.
+	 */
+	private int line;
+
+	/**
+	 * Creates a new script exception without a stack trace.
+	 * @param message Message that describes the failure.
+	 */
+	public ScriptException(String message) {
+		this(message, null, false);
+	}
+
+	/**
+	 * Creates a new script exception without a stack trace.
+	 * @param message Message that describes the failure.
+	 * @param cause What caused the failure.
+	 */
+	public ScriptException(String message, Throwable cause) {
+		this(message, cause, false);
+	}
+
+	/**
+	 * Creates a new script exception.
+	 * @param message Message that describes the failure.
+	 * @param cause What caused the failure, or null.
+	 * @param stackTrace Whether a stack trace should be recorded.
+	 */
+	protected ScriptException(String message, Throwable cause, boolean stackTrace) {
+		super(message, cause, false, stackTrace);
+		this.index = -1;
+		this.line = -1;
+	}
+
+	/**
+	 * Gets index of the IR node where this was thrown.
+	 * @return Node index, or -1 if not known.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Gets the source line where this was thrown.
+	 * @return Line number, or -1 if not known.
+	 */
+	public int getLine() {
+		return line;
+	}
+
+	/**
+	 * Records where this was thrown. This is done by the runtime; if the
+	 * location is already known, it is not changed, so that exceptions that
+	 * propagate through many blocks keep the innermost location.
+	 * @param index Index of the IR node.
+	 * @param line Source line, or -1 if not known.
+	 */
+	public void setLocation(int index, int line) {
+		if (this.index == -1) {
+			this.index = index;
+			this.line = line;
+		}
+	}
+
+	@Override
+	public String toString() {
+		String text = super.toString();
+		if (line != -1) {
+			return text + " (line " + line + ")";
+		} else if (index != -1) {
+			return text + " (node " + index + ")";
+		}
+		return text;
+	}
+}
@@ -0,0 +1,21 @@
+package io.github.bensku.skripty.core.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicates that the annotated {@link CallTarget call target} may block,
+ * for example while it waits for I/O. Runtimes that run many scripts on
+ * shared threads may suspend scripts before calling such targets, and make
+ * the calls on threads reserved for blocking work.
+ *
+ * <p>Call targets that block cannot be {@link Pure pure}.
+ *
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Blocking {
+
+}
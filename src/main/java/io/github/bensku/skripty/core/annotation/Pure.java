@@ -0,0 +1,21 @@
+package io.github.bensku.skripty.core.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicates that the annotated {@link CallTarget call target} has no side
+ * effects, and that its return value depends only on its inputs. When all
+ * inputs are constants, calls to it may be evaluated when scripts are
+ * compiled.
+ *
+ * <p>Call targets that take runner state cannot be pure.
+ *
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Pure {
+
+}
@@ -0,0 +1,22 @@
+package io.github.bensku.skripty.core.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import io.github.bensku.skripty.core.flow.ScopeEntry;
+
+/**
+ * Denotes which {@link ScopeEntry scope entries} the scope expression it
+ * annotates may return. If this is not present, any of them may be returned.
+ * Compilers can use this to e.g. avoid emitting loops for scopes that are
+ * never entered more than once.
+ *
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ScopeEntries {
+
+	ScopeEntry[] value();
+}
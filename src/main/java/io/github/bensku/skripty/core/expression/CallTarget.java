@@ -20,6 +20,17 @@ public class CallTarget {
 	 * If this call target should receive runner state as first parameter.
 	 */
 	private final boolean injectState;
+	
+	/**
+	 * If this call target has no side effects and its return value depends
+	 * only on its inputs.
+	 */
+	private final boolean pure;
+	
+	/**
+	 * If this call target may block the thread that calls it.
+	 */
+	private final boolean blocking;
 
 	/**
 	 * Accepted input {@link SkriptType types} this call target can take.
@@ -28,11 +39,28 @@ public class CallTarget {
 	 */
 	private final SkriptType[] inputTypes;
 
-	public CallTarget(MethodHandle method, boolean injectState, SkriptType... inputTypes) {
+	public CallTarget(MethodHandle method, boolean injectState, boolean pure, boolean blocking,
+			SkriptType... inputTypes) {
+		if (injectState && pure) {
+			throw new IllegalArgumentException("call targets that take runner state cannot be pure");
+		}
+		if (blocking && pure) {
+			throw new IllegalArgumentException("call targets that block cannot be pure");
+		}
 		this.method = method;
 		this.injectState = injectState;
+		this.pure = pure;
+		this.blocking = blocking;
 		this.inputTypes = inputTypes;
 	}
+	
+	public CallTarget(MethodHandle method, boolean injectState, boolean pure, SkriptType... inputTypes) {
+		this(method, injectState, pure, false, inputTypes);
+	}
+	
+	public CallTarget(MethodHandle method, boolean injectState, SkriptType... inputTypes) {
+		this(method, injectState, false, inputTypes);
+	}
 
 	public MethodHandle getMethod() {
 		return method;
@@ -42,6 +70,24 @@ public class CallTarget {
 		return injectState;
 	}
 
+	/**
+	 * Checks if this call target is pure, i.e. it has no side effects and
+	 * its return value depends only on its inputs. Calls to pure targets
+	 * with constant inputs can be evaluated ahead of time.
+	 * @return Whether this target is pure.
+	 */
+	public boolean isPure() {
+		return pure;
+	}
+	
+	/**
+	 * Checks if this call target may block, e.g. to wait for I/O.
+	 * @return Whether this target may block.
+	 */
+	public boolean isBlocking() {
+		return blocking;
+	}
+
 	public SkriptType[] getInputTypes() {
 		return inputTypes;
 	}
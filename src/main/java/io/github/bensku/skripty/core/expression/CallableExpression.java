@@ -2,7 +2,12 @@ package io.github.bensku.skripty.core.expression;
 
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
 
+import io.github.bensku.skripty.core.ScriptException;
+import io.github.bensku.skripty.core.flow.ScopeEntry;
 import io.github.bensku.skripty.core.type.SkriptType;
 
 /**
@@ -20,6 +25,7 @@ public class CallableExpression extends Expression {
 		private InputType[] inputTypes;
 		private SkriptType returnType;
 		private CallTarget[] callTargets;
+		private Set<ScopeEntry> scopeEntries = EnumSet.allOf(ScopeEntry.class);
 		
 		Builder(ExpressionRegistry registry, int id, Object instance) {
 			this.registry = registry;
@@ -163,13 +169,30 @@ public class CallableExpression extends Expression {
 			return true;
 		}
 		
+		/**
+		 * Sets which {@link ScopeEntry scope entries} the expression may
+		 * return, if it is used as title of a scope. By default, all of them
+		 * may be returned.
+		 * @param entries Possible scope entries.
+		 * @return This builder.
+		 * @throws IllegalArgumentException When no entries are given.
+		 */
+		public Builder scopeEntries(ScopeEntry... entries) {
+			if (entries.length == 0) {
+				throw new IllegalArgumentException("at least one scope entry must be possible");
+			}
+			this.scopeEntries = EnumSet.copyOf(Arrays.asList(entries));
+			return this;
+		}
+		
 		/**
 		 * Creates a callable expression. This causes it to be registered to
 		 * the registry that created this builder.
 		 * @return The callable expression.
 		 */
 		public CallableExpression create() {
-			CallableExpression expr = new CallableExpression(id, instance, inputTypes, returnType, callTargets);
+			CallableExpression expr = new CallableExpression(id, instance, inputTypes, returnType, callTargets,
+					scopeEntries);
 			registry.addExpression(expr);
 			return expr;
 		}
@@ -194,14 +217,20 @@ public class CallableExpression extends Expression {
 	 * Possible call targets for this expression.
 	 */
 	private final CallTarget[] callTargets;
+	
+	/**
+	 * Scope entries that this expression may return.
+	 */
+	private final Set<ScopeEntry> scopeEntries;
 
 	private CallableExpression(int id, Object instance, InputType[] inputTypes, SkriptType returnType,
-			CallTarget[] callTargets) {
+			CallTarget[] callTargets, Set<ScopeEntry> scopeEntries) {
 		super(id);
 		this.instance = instance;
 		this.inputTypes = inputTypes;
 		this.returnType = returnType;
 		this.callTargets = callTargets;
+		this.scopeEntries = scopeEntries;
 	}
 
 	@Override
@@ -223,8 +252,10 @@ public class CallableExpression extends Expression {
 			System.arraycopy(inputs, 0, newInputs, injectedCount, inputs.length);
 			inputs = newInputs;
 			return target.getMethod().invokeWithArguments(inputs);
-		} catch (Throwable e) {
-			throw new AssertionError(e); // TODO handle this better
+		} catch (RuntimeException | Error e) {
+			throw e; // Includes script exceptions
+		} catch (Throwable e) { // Checked exception from call target
+			throw new ScriptException("call to " + target.getMethod() + " failed", e);
 		}
 	}
 
@@ -241,6 +272,30 @@ public class CallableExpression extends Expression {
 	public Object getInstance() {
 		return instance;
 	}
+	
+	/**
+	 * Checks if this expression may return given scope entry when it is
+	 * used as title of a scope.
+	 * @param entry Scope entry.
+	 * @return Whether the entry is possible.
+	 */
+	public boolean canReturn(ScopeEntry entry) {
+		return scopeEntries.contains(entry);
+	}
+
+	/**
+	 * Checks if any call target of this expression may block.
+	 * @return Whether calls to this expression may block.
+	 * @see CallTarget#isBlocking()
+	 */
+	public boolean canBlock() {
+		for (CallTarget target : callTargets) {
+			if (target.isBlocking()) {
+				return true;
+			}
+		}
+		return false;
+	}
 
 	/**
 	 * Attempts to find a suitable call target for inputs of given types.
@@ -28,7 +28,7 @@ public class ConstantExpression extends Expression {
 	
 	@Override
 	public Object call(Object... inputs) {
-		assert inputs.length == 0 : "constants don't take inputs";
+		assert inputs == null || inputs.length == 0 : "constants don't take inputs";
 		return value;
 	}
 
@@ -8,7 +8,10 @@ import java.util.function.Consumer;
 
 import io.github.bensku.skripty.core.RunnerState;
 import io.github.bensku.skripty.core.annotation.Inputs;
+import io.github.bensku.skripty.core.annotation.Blocking;
+import io.github.bensku.skripty.core.annotation.Pure;
 import io.github.bensku.skripty.core.annotation.Returns;
+import io.github.bensku.skripty.core.annotation.ScopeEntries;
 import io.github.bensku.skripty.core.annotation.Type;
 import io.github.bensku.skripty.core.type.SkriptType;
 import io.github.bensku.skripty.core.type.TypeSystem;
@@ -115,7 +118,9 @@ public class ExpressionRegistry {
 						}
 					}
 					
-					callTargets[targetCount++] = new CallTarget(handle, injectState, inputTypes);
+					boolean pure = method.getAnnotation(Pure.class) != null;
+					boolean blocking = method.getAnnotation(Blocking.class) != null;
+					callTargets[targetCount++] = new CallTarget(handle, injectState, pure, blocking, inputTypes);
 				} catch (IllegalAccessException e) {
 					throw new IllegalArgumentException("cannot access call target '" + method.getName() + "'", e);
 				}
@@ -124,11 +129,17 @@ public class ExpressionRegistry {
 		
 		CallTarget[] targets = new CallTarget[targetCount];
 		System.arraycopy(callTargets, 0, targets, 0, targetCount);
-		return makeCallable(instance)
+		CallableExpression.Builder builder = makeCallable(instance)
 				.inputTypes(inputs)
 				.returnType(returnType)
-				.callTargets(targets)
-				.create();
+				.callTargets(targets);
+		
+		// Scope entries, if this is a scope
+		ScopeEntries entriesAnn = impl.getAnnotation(ScopeEntries.class);
+		if (entriesAnn != null) {
+			builder.scopeEntries(entriesAnn.value());
+		}
+		return builder.create();
 	}
 	
 	/**
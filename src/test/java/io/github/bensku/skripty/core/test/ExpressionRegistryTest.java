@@ -1,15 +1,20 @@
 package io.github.bensku.skripty.core.test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Test;
 
+import io.github.bensku.skripty.core.annotation.Blocking;
 import io.github.bensku.skripty.core.annotation.CallTarget;
 import io.github.bensku.skripty.core.annotation.Inputs;
 import io.github.bensku.skripty.core.annotation.Returns;
+import io.github.bensku.skripty.core.annotation.ScopeEntries;
 import io.github.bensku.skripty.core.expression.CallableExpression;
 import io.github.bensku.skripty.core.expression.ExpressionRegistry;
 import io.github.bensku.skripty.core.expression.InputType;
+import io.github.bensku.skripty.core.flow.ScopeEntry;
 import io.github.bensku.skripty.core.type.SkriptType;
 import io.github.bensku.skripty.core.type.TypeSystem;
 
@@ -18,6 +23,7 @@ public class ExpressionRegistryTest {
 	// Two different types backed by same Java class
 	public static final SkriptType FOO = SkriptType.create(String.class);
 	public static final SkriptType BAR = SkriptType.create(String.class);
+	public static final SkriptType SCOPE = ScopeEntry.TYPE;
 
 	private ExpressionRegistry registry = new ExpressionRegistry();
 	
@@ -36,6 +42,18 @@ public class ExpressionRegistryTest {
 		}
 	}
 	
+	@Inputs({"foo"})
+	@Returns("scope")
+	@ScopeEntries({ScopeEntry.ONCE})
+	public static class TestScope {
+		
+		@CallTarget
+		@Blocking
+		public ScopeEntry enter(String a) {
+			return ScopeEntry.ONCE;
+		}
+	}
+	
 	@Test
 	public void annotatedCallable() {
 		TypeSystem types = new TypeSystem();
@@ -49,4 +67,25 @@ public class ExpressionRegistryTest {
 		assertEquals("alphabeta", expr.call("alpha", "beta"));
 		assertEquals("fooalpha", expr.call("alpha"));
 	}
+	
+	@Test
+	public void scopeEntries() {
+		TypeSystem types = new TypeSystem();
+		types.registerTypes(getClass());
+		CallableExpression expr = registry.makeCallable(types, new TestExpr());
+		assertTrue(expr.canReturn(ScopeEntry.YES)); // Not declared, so anything is possible
+		
+		CallableExpression scope = registry.makeCallable(types, new TestScope());
+		assertTrue(scope.canReturn(ScopeEntry.ONCE));
+		assertFalse(scope.canReturn(ScopeEntry.YES));
+		assertFalse(scope.canReturn(ScopeEntry.NO));
+	}
+	
+	@Test
+	public void blocking() {
+		TypeSystem types = new TypeSystem();
+		types.registerTypes(getClass());
+		assertFalse(registry.makeCallable(types, new TestExpr()).canBlock());
+		assertTrue(registry.makeCallable(types, new TestScope()).canBlock());
+	}
 }